@@ -0,0 +1,72 @@
+package io.phasetwo.keycloak.events;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * Accumulates items per key, and flushes them as one batch when the batch is full, or when the
+ * linger time since its first item has passed, whichever comes first.
+ */
+@JBossLog
+public class Batcher<T> {
+
+  private final SenderExecutor exec;
+  private final Map<String, Batch<T>> batches = new HashMap<>();
+
+  public Batcher(SenderExecutor exec) {
+    this.exec = exec;
+  }
+
+  static class Batch<T> {
+    final List<T> items = new ArrayList<>();
+    final Consumer<List<T>> flush;
+
+    Batch(Consumer<List<T>> flush) {
+      this.flush = flush;
+    }
+  }
+
+  /**
+   * Add the item to the open batch for the key, or open a new one that will be flushed with the
+   * given function.
+   */
+  public void add(String key, int maxSize, long lingerMillis, T item, Consumer<List<T>> flush) {
+    Batch<T> full = null;
+    synchronized (batches) {
+      Batch<T> batch = batches.get(key);
+      if (batch == null) {
+        batch = new Batch<>(flush);
+        batches.put(key, batch);
+        final Batch<T> opened = batch;
+        exec.schedule(() -> expire(key, opened), lingerMillis, TimeUnit.MILLISECONDS);
+      }
+      batch.items.add(item);
+      if (batch.items.size() >= maxSize) {
+        batches.remove(key);
+        full = batch;
+      }
+    }
+    if (full != null) flush(key, full);
+  }
+
+  private void expire(String key, Batch<T> batch) {
+    synchronized (batches) {
+      if (!batches.remove(key, batch)) return; // already flushed because it was full
+    }
+    flush(key, batch);
+  }
+
+  private void flush(String key, Batch<T> batch) {
+    log.tracef("flushing batch of %d for %s", batch.items.size(), key);
+    try {
+      batch.flush.accept(batch.items);
+    } catch (Exception e) {
+      log.warn("Error flushing batch for " + key, e);
+    }
+  }
+}
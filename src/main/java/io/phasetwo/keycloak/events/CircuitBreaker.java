@@ -0,0 +1,104 @@
+package io.phasetwo.keycloak.events;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Tracks the health of one endpoint (a webhook, or a target URI). After {@code failureThreshold}
+ * consecutive failed sends the breaker opens, and sends are held back until {@code openMillis} has
+ * passed. It then lets a single trial send through (half-open), which closes the breaker if it
+ * succeeds, or opens it again if it fails. A threshold of 0 disables the breaker.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED,
+    OPEN,
+    HALF_OPEN
+  }
+
+  private final String key;
+  private final int failureThreshold;
+  private final long openMillis;
+  private final LongSupplier clock;
+  private State state = State.CLOSED;
+  private int failures = 0;
+  private long openedAt = 0;
+  private boolean trialInFlight = false;
+  private long rejected = 0;
+
+  CircuitBreaker(String key, int failureThreshold, long openMillis) {
+    this(key, failureThreshold, openMillis, System::currentTimeMillis);
+  }
+
+  CircuitBreaker(String key, int failureThreshold, long openMillis, LongSupplier clock) {
+    this.key = key;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+    this.clock = clock;
+  }
+
+  /** Whether a send may go through now. A send that is allowed must report its outcome. */
+  synchronized boolean allowRequest() {
+    if (state == State.OPEN && clock.getAsLong() - openedAt >= openMillis) {
+      state = State.HALF_OPEN;
+      trialInFlight = false;
+    }
+    switch (state) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        if (!trialInFlight) {
+          trialInFlight = true;
+          return true;
+        }
+        // fall through, the trial send is still in flight
+      default:
+        rejected++;
+        return false;
+    }
+  }
+
+  /** Millis the breaker stays open before letting a trial send through */
+  long getOpenMillis() {
+    return openMillis;
+  }
+
+  /** Millis until a held back send should try again */
+  synchronized long getRetryDelay() {
+    if (state != State.OPEN) return openMillis;
+    return Math.max(0l, openMillis - (clock.getAsLong() - openedAt));
+  }
+
+  synchronized void onSuccess() {
+    state = State.CLOSED;
+    failures = 0;
+    trialInFlight = false;
+  }
+
+  synchronized void onFailure() {
+    failures++;
+    if (failureThreshold <= 0) return;
+    if (state == State.HALF_OPEN || failures >= failureThreshold) {
+      state = State.OPEN;
+      openedAt = clock.getAsLong();
+      trialInFlight = false;
+    }
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public synchronized State getState() {
+    if (state == State.OPEN && clock.getAsLong() - openedAt >= openMillis) return State.HALF_OPEN;
+    return state;
+  }
+
+  public synchronized int getFailures() {
+    return failures;
+  }
+
+  public synchronized long getRejected() {
+    return rejected;
+  }
+}
@@ -0,0 +1,108 @@
+package io.phasetwo.keycloak.events;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import io.phasetwo.keycloak.representation.ExtendedAdminEvent;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * Holds items per key for a window, and flushes only the latest item of the key when the window
+ * since its first item has passed. An item that is replaced by a later one is never flushed.
+ */
+@JBossLog
+public class Coalescer<T> {
+
+  public static final String TYPE = "type";
+  public static final String USER_ID = "userId";
+  public static final String RESOURCE_PATH = "resourcePath";
+
+  static final List<String> ALL_FIELDS = ImmutableList.of(TYPE, USER_ID, RESOURCE_PATH);
+
+  private final SenderExecutor exec;
+  private final Map<String, Pending<T>> pending = new HashMap<>();
+
+  public Coalescer(SenderExecutor exec) {
+    this.exec = exec;
+  }
+
+  static class Pending<T> {
+    T latest;
+    final Consumer<T> flush;
+
+    Pending(T item, Consumer<T> flush) {
+      this.latest = item;
+      this.flush = flush;
+    }
+  }
+
+  /**
+   * Hold the item until the window of its key closes, or open a new window that will be flushed
+   * with the given function. Returns the item it replaced, or null if there was none.
+   */
+  public T add(String key, long windowMillis, T item, Consumer<T> flush) {
+    synchronized (pending) {
+      Pending<T> p = pending.get(key);
+      if (p != null) {
+        T replaced = p.latest;
+        p.latest = item;
+        return replaced;
+      }
+      final Pending<T> opened = new Pending<>(item, flush);
+      pending.put(key, opened);
+      exec.schedule(() -> expire(key, opened), windowMillis, TimeUnit.MILLISECONDS);
+      return null;
+    }
+  }
+
+  private void expire(String key, Pending<T> p) {
+    T latest;
+    synchronized (pending) {
+      if (!pending.remove(key, p)) return;
+      latest = p.latest;
+    }
+    log.tracef("flushing coalesced item for %s", key);
+    try {
+      p.flush.accept(latest);
+    } catch (Exception e) {
+      log.warn("Error flushing coalesced item for " + key, e);
+    }
+  }
+
+  /**
+   * Parse the comma separated event fields of a coalesce key. Null or empty is all of them.
+   *
+   * @throws IllegalArgumentException if a field is unknown
+   */
+  public static List<String> parseFields(String key) {
+    if (key == null || key.trim().isEmpty()) return ALL_FIELDS;
+    List<String> fields = Splitter.on(',').trimResults().omitEmptyStrings().splitToList(key);
+    for (String f : fields) {
+      if (!ALL_FIELDS.contains(f)) {
+        throw new IllegalArgumentException(
+            String.format("unknown coalesce key field %s, must be one of %s", f, ALL_FIELDS));
+      }
+    }
+    return ImmutableList.copyOf(fields);
+  }
+
+  /** The values of the fields of the event, joined into a key */
+  public static String key(List<String> fields, ExtendedAdminEvent event) {
+    StringBuilder key = new StringBuilder();
+    for (String f : fields) {
+      key.append('|');
+      if (TYPE.equals(f)) {
+        key.append(event.getType());
+      } else if (USER_ID.equals(f)) {
+        key.append(event.getAuthDetails() == null ? null : event.getAuthDetails().getUserId());
+      } else if (RESOURCE_PATH.equals(f)) {
+        key.append(event.getResourcePath());
+      }
+    }
+    return key.toString();
+  }
+}
@@ -0,0 +1,91 @@
+package io.phasetwo.keycloak.events;
+
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * The in-flight limit of one endpoint's {@link DeliveryQueue}. With the {@code aimd} algorithm, the
+ * limit is learned from the sends to the endpoint: it grows by one per window of sends that succeed
+ * without their latency rising above {@code tolerance} times the lowest latency seen, and is cut by
+ * {@code backoffRatio} when a send fails or is slow. Fast receivers get more parallel sends, and
+ * struggling ones are throttled down, to as little as one send at a time. With the {@code fixed}
+ * algorithm, the limit is always the initial limit.
+ */
+@JBossLog
+public class ConcurrencyLimit {
+
+  public enum Algorithm {
+    FIXED,
+    AIMD;
+
+    static Algorithm from(String input) {
+      try {
+        return Algorithm.valueOf(input.toUpperCase());
+      } catch (Exception e) {
+        log.warnf("Unknown %s %s. Using %s", SenderExecutor.QUEUE_LIMITER, input, AIMD);
+        return AIMD;
+      }
+    }
+  }
+
+  static final double DEFAULT_BACKOFF_RATIO = 0.9;
+  static final double DEFAULT_TOLERANCE = 2.0;
+  // forget the lowest latency this often, in case the endpoint's baseline has changed
+  static final int MIN_RTT_RESET_SAMPLES = 1000;
+
+  private final Algorithm algorithm;
+  private final int maxLimit;
+  private final double backoffRatio;
+  private final double tolerance;
+  private double limit;
+  private long minRtt = 0;
+  private int samples = 0;
+
+  ConcurrencyLimit(Algorithm algorithm, int initialLimit, int maxLimit) {
+    this(algorithm, initialLimit, maxLimit, DEFAULT_BACKOFF_RATIO, DEFAULT_TOLERANCE);
+  }
+
+  ConcurrencyLimit(
+      Algorithm algorithm, int initialLimit, int maxLimit, double backoffRatio, double tolerance) {
+    this.algorithm = algorithm;
+    this.maxLimit = Math.max(1, maxLimit);
+    this.backoffRatio = backoffRatio;
+    this.tolerance = tolerance;
+    this.limit = Math.max(1, Math.min(initialLimit, this.maxLimit));
+  }
+
+  static ConcurrencyLimit fixed(int limit) {
+    return new ConcurrencyLimit(Algorithm.FIXED, limit, limit);
+  }
+
+  /** Learn from a completed send that took {@code rttNanos}, and whether it failed */
+  synchronized void onSample(long rttNanos, boolean failed) {
+    if (algorithm == Algorithm.FIXED) return;
+    if (++samples >= MIN_RTT_RESET_SAMPLES) {
+      samples = 0;
+      minRtt = 0;
+    }
+    if (!failed && (minRtt == 0 || rttNanos < minRtt)) minRtt = rttNanos;
+    if (failed || rttNanos > minRtt * tolerance) {
+      limit = Math.max(1, limit * backoffRatio);
+    } else {
+      limit = Math.min(maxLimit, limit + 1 / limit);
+    }
+  }
+
+  public Algorithm getAlgorithm() {
+    return algorithm;
+  }
+
+  public synchronized int getLimit() {
+    return (int) limit;
+  }
+
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  /** The lowest latency seen recently, in milliseconds */
+  public synchronized long getMinRttMillis() {
+    return minRtt / 1000000l;
+  }
+}
@@ -0,0 +1,55 @@
+package io.phasetwo.keycloak.events;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.hash.Hashing;
+import java.util.Collection;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * A hash ring that maps each key to one of a set of nodes. Each node is placed on the ring at a
+ * number of points, and a key is owned by the node of the first point at or after the key's hash.
+ * When a node joins or leaves, only the keys of the segments it takes over or gives up move. Nodes
+ * that are given the same members build the same ring.
+ */
+public class ConsistentHash {
+
+  static final int DEFAULT_POINTS = 128;
+
+  private final Set<String> nodes;
+  private final NavigableMap<Long, String> ring = new TreeMap<>();
+
+  public ConsistentHash(Collection<String> nodes) {
+    this(nodes, DEFAULT_POINTS);
+  }
+
+  ConsistentHash(Collection<String> nodes, int points) {
+    // sorted, so that colliding points are won by the same node everywhere
+    this.nodes = ImmutableSortedSet.copyOf(nodes);
+    for (String node : this.nodes) {
+      for (int i = 0; i < points; i++) {
+        ring.putIfAbsent(hash(node + "#" + i), node);
+      }
+    }
+  }
+
+  /** The node that owns the key, or null if there are no nodes */
+  public String getOwner(String key) {
+    if (ring.isEmpty()) return null;
+    Map.Entry<Long, String> point = ring.ceilingEntry(hash(key));
+    if (point == null) point = ring.firstEntry();
+    return point.getValue();
+  }
+
+  public Set<String> getNodes() {
+    return nodes;
+  }
+
+  static long hash(String s) {
+    return Hashing.murmur3_128().hashString(s, UTF_8).asLong();
+  }
+}
@@ -0,0 +1,148 @@
+package io.phasetwo.keycloak.events;
+
+import io.phasetwo.keycloak.model.WebhookDeadLetterModel;
+import io.phasetwo.keycloak.model.WebhookModel;
+import io.phasetwo.keycloak.model.WebhookProvider;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Replays the dead letters of a webhook in the background. Dead letters are read a page at a time,
+ * oldest first, and each is removed in the transaction that schedules its send, so that a replay
+ * never holds more than a page in memory. Sends are spaced out by a {@link RateLimiter}, and the
+ * next page is read once the sends of the last one are due. A send that fails again becomes a dead
+ * letter again, and is not replayed again by the same replay, which stops at the dead letters that
+ * were created after it started.
+ */
+@JBossLog
+public class DeadLetterReplayer {
+
+  public static final String REPLAY_RATE = "deadLetterReplayRate";
+  public static final String REPLAY_BATCH_SIZE = "deadLetterReplayBatchSize";
+
+  static final int DEFAULT_REPLAY_RATE = 50;
+  static final int DEFAULT_REPLAY_BATCH_SIZE = 100;
+
+  private final WebhookSenderEventListenerProviderFactory providerFactory;
+  private final int rate;
+  private final int batchSize;
+  private final Set<String> replaying = ConcurrentHashMap.newKeySet();
+  private volatile boolean stopped = false;
+  private KeycloakSessionFactory factory;
+
+  DeadLetterReplayer(
+      WebhookSenderEventListenerProviderFactory providerFactory, int rate, int batchSize) {
+    this.providerFactory = providerFactory;
+    this.rate = rate;
+    this.batchSize = batchSize;
+  }
+
+  public static DeadLetterReplayer create(
+      Config.Scope scope, WebhookSenderEventListenerProviderFactory providerFactory) {
+    int rate = Math.max(1, scope.getInt(REPLAY_RATE, DEFAULT_REPLAY_RATE));
+    int batchSize = Math.max(1, scope.getInt(REPLAY_BATCH_SIZE, DEFAULT_REPLAY_BATCH_SIZE));
+    log.infof("%s %d, %s %d", REPLAY_RATE, rate, REPLAY_BATCH_SIZE, batchSize);
+    return new DeadLetterReplayer(providerFactory, rate, batchSize);
+  }
+
+  public void start(KeycloakSessionFactory factory) {
+    this.factory = factory;
+  }
+
+  /** Whether the dead letters of the webhook are being replayed on this node */
+  public boolean isReplaying(String webhookId) {
+    return replaying.contains(webhookId);
+  }
+
+  /**
+   * Start replaying the dead letters of the webhook. Returns false if they are already being
+   * replayed on this node.
+   */
+  public boolean replay(String realmId, String webhookId) {
+    if (factory == null || stopped || !replaying.add(webhookId)) return false;
+    log.infof("Replaying dead letters of webhook %s at %d/s", webhookId, rate);
+    RateLimiter limiter = new RateLimiter(rate, 1);
+    Date startedAt = new Date();
+    providerFactory
+        .getExecutor()
+        .scheduleBackground(
+            () -> page(realmId, webhookId, startedAt, limiter), 0l, TimeUnit.MILLISECONDS);
+    return true;
+  }
+
+  private void page(String realmId, String webhookId, Date startedAt, RateLimiter limiter) {
+    if (stopped) {
+      log.infof("Stopped replaying dead letters of webhook %s", webhookId);
+      replaying.remove(webhookId);
+      return;
+    }
+    long[] wait = {0l};
+    boolean more = false;
+    try {
+      more =
+          KeycloakModelUtils.runJobInTransactionWithResult(
+              factory,
+              (session) -> {
+                RealmModel realm = session.realms().getRealm(realmId);
+                WebhookSenderEventListenerProvider provider = providerFactory.create(session);
+                RegisteredWebhook webhook =
+                    realm == null
+                        ? null
+                        : providerFactory.getRegistry().getWebhook(session, realm, webhookId);
+                if (webhook == null) {
+                  log.infof("Webhook %s is gone or disabled. Stopping replay.", webhookId);
+                  return false;
+                }
+                WebhookProvider webhooks = session.getProvider(WebhookProvider.class);
+                WebhookModel model = webhooks.getWebhookById(realm, webhookId);
+                // replayed rows are removed, so the page always starts at the oldest
+                List<WebhookDeadLetterModel> deadLetters =
+                    webhooks
+                        .getDeadLetters(realm, model, null, batchSize)
+                        .collect(Collectors.toList());
+                for (WebhookDeadLetterModel d : deadLetters) {
+                  if (!d.getCreatedAt().before(startedAt)) return false;
+                  wait[0] = limiter.reserve();
+                  try {
+                    provider.replay(webhook, d.getPayload(), wait[0], TimeUnit.NANOSECONDS);
+                  } catch (IOException e) {
+                    // rolls back the page, leaving the dead letter to be looked at
+                    throw new IllegalStateException("Unreadable dead letter " + d.getId(), e);
+                  }
+                  webhooks.removeDeadLetter(d.getId());
+                }
+                return deadLetters.size() == batchSize;
+              });
+    } catch (Exception e) {
+      log.warnf(e, "Error replaying dead letters of webhook %s. Stopping replay.", webhookId);
+      more = false;
+    }
+    if (!more) {
+      log.infof("Done replaying dead letters of webhook %s", webhookId);
+      replaying.remove(webhookId);
+      return;
+    }
+    providerFactory
+        .getExecutor()
+        .scheduleBackground(
+            () -> page(realmId, webhookId, startedAt, limiter), wait[0], TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Stop the replays, after the page that is being read, if any. The dead letters that are left
+   * stay to be replayed again.
+   */
+  public void stop() {
+    stopped = true;
+  }
+}
@@ -0,0 +1,294 @@
+package io.phasetwo.keycloak.events;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import lombok.extern.jbosslog.JBossLog;
+import org.infinispan.manager.EmbeddedCacheManager;
+import org.infinispan.notifications.Listener;
+import org.infinispan.notifications.cachemanagerlistener.annotation.ViewChanged;
+import org.infinispan.notifications.cachemanagerlistener.event.ViewChangedEvent;
+import org.infinispan.remoting.transport.Address;
+import org.keycloak.Config;
+import org.keycloak.cluster.ClusterEvent;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.connections.infinispan.InfinispanConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Makes one node of the cluster own the delivery to each webhook, so that the webhook's queue,
+ * limits and ordering are in one place. Webhooks are assigned to the members of the Infinispan
+ * cluster with a {@link ConsistentHash}, which is rebuilt when the members change, and sends for a
+ * webhook owned by another node are forwarded to it through the {@link ClusterProvider}. When the
+ * server is not clustered, everything is delivered locally.
+ *
+ * <p>A forward is a notification of the work cache, which is not kept anywhere. The owner
+ * acknowledges each send it takes, and a send that isn't acknowledged in time, such as one sent to
+ * a node that left, is delivered here if this node has become the owner, or else kept as a dead
+ * letter. Outbox entries are forwarded without an acknowledgement, as they stay leased by the node
+ * that forwarded them, and are drained again if their lease expires before they are done.
+ */
+@JBossLog
+public class DeliveryPartitioner {
+
+  public static final String PARTITIONED_DELIVERY = "partitionedDelivery";
+  public static final String FORWARD_TIMEOUT = "forwardTimeout";
+
+  static final String DELIVERY_TASK = "ext-event-webhook-delivery";
+  static final String DELIVERY_ACK_TASK = "ext-event-webhook-delivery-ack";
+
+  static final long DEFAULT_FORWARD_TIMEOUT = 30000l;
+
+  private final WebhookSenderEventListenerProviderFactory providerFactory;
+  private final long forwardTimeout;
+  private final ConcurrentMap<String, Forward> forwards = new ConcurrentHashMap<>();
+  private KeycloakSessionFactory factory;
+  private EmbeddedCacheManager cacheManager;
+  private TopologyListener topologyListener;
+  private volatile boolean stopped = false;
+  private volatile String self;
+  private volatile ConsistentHash ring;
+
+  DeliveryPartitioner(
+      WebhookSenderEventListenerProviderFactory providerFactory, long forwardTimeout) {
+    this.providerFactory = providerFactory;
+    this.forwardTimeout = forwardTimeout;
+  }
+
+  /** Returns the partitioner if partitioned delivery is enabled, or null */
+  public static DeliveryPartitioner create(
+      Config.Scope scope, WebhookSenderEventListenerProviderFactory providerFactory) {
+    boolean enabled = scope.getBoolean(PARTITIONED_DELIVERY, false);
+    log.infof("%s %b", PARTITIONED_DELIVERY, enabled);
+    if (!enabled) return null;
+    long forwardTimeout = Math.max(1l, scope.getLong(FORWARD_TIMEOUT, DEFAULT_FORWARD_TIMEOUT));
+    log.infof("%s %d", FORWARD_TIMEOUT, forwardTimeout);
+    return new DeliveryPartitioner(providerFactory, forwardTimeout);
+  }
+
+  public void start(KeycloakSessionFactory factory) {
+    this.factory = factory;
+    KeycloakModelUtils.runJobInTransaction(
+        factory,
+        (session) -> {
+          InfinispanConnectionProvider ispn =
+              session.getProvider(InfinispanConnectionProvider.class);
+          ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+          if (ispn == null || cluster == null) {
+            log.info("No Infinispan cluster. Delivering webhooks locally.");
+            return;
+          }
+          cacheManager =
+              ispn.getCache(InfinispanConnectionProvider.WORK_CACHE_NAME).getCacheManager();
+          if (cacheManager.getAddress() == null) {
+            log.info("Infinispan is not clustered. Delivering webhooks locally.");
+            return;
+          }
+          self = cacheManager.getAddress().toString();
+          cluster.registerListener(DELIVERY_TASK, this::received);
+          cluster.registerListener(DELIVERY_ACK_TASK, this::acknowledged);
+          topologyListener = new TopologyListener();
+          cacheManager.addListener(topologyListener);
+          update(cacheManager.getMembers());
+        });
+    if (self != null) scheduleSweep();
+  }
+
+  @Listener
+  public class TopologyListener {
+    @ViewChanged
+    public void viewChanged(ViewChangedEvent event) {
+      update(event.getNewMembers());
+    }
+  }
+
+  private void update(List<Address> members) {
+    ring = new ConsistentHash(members.stream().map(Object::toString).collect(Collectors.toList()));
+    log.infof("Partitioning webhook delivery over %s, as %s", ring.getNodes(), self);
+  }
+
+  /** The node that delivers for the webhook, which is this one when not clustered */
+  public String getOwner(String webhookId) {
+    ConsistentHash r = ring;
+    if (r == null) return self;
+    String owner = r.getOwner(webhookId);
+    return owner != null ? owner : self;
+  }
+
+  /** Whether this node delivers for the webhook */
+  public boolean isLocal(String webhookId) {
+    String owner = getOwner(webhookId);
+    return owner == null || owner.equals(self);
+  }
+
+  /**
+   * Send the payload to the node that owns the webhook, to be delivered there. Unless it is an
+   * outbox entry, the send is kept until the owner acknowledges it.
+   */
+  public void forward(
+      KeycloakSession session, RegisteredWebhook webhook, WebhookPayload payload, boolean outbox) {
+    String owner = getOwner(webhook.getId());
+    String json = new String(payload.getBytes(), UTF_8);
+    log.tracef("Forwarding %s for webhook %s to %s", payload.getUid(), webhook.getId(), owner);
+    if (!outbox) {
+      forwards.put(
+          payload.getUid(),
+          new Forward(
+              webhook.getRealmId(),
+              webhook.getId(),
+              json,
+              owner,
+              System.currentTimeMillis() + forwardTimeout));
+    }
+    session
+        .getProvider(ClusterProvider.class)
+        .notify(
+            DELIVERY_TASK,
+            new WebhookDeliveryEvent(
+                owner, webhook.getRealmId(), webhook.getId(), json, self, payload.getUid(), outbox),
+            true,
+            ClusterProvider.DCNotify.LOCAL_DC_ONLY);
+  }
+
+  /** The number of forwarded sends that haven't been acknowledged yet */
+  public int getPending() {
+    return forwards.size();
+  }
+
+  private void acknowledged(ClusterEvent event) {
+    if (stopped || !(event instanceof WebhookDeliveryAck)) return;
+    final WebhookDeliveryAck ack = (WebhookDeliveryAck) event;
+    if (ack.getOrigin().equals(self)) forwards.remove(ack.getId());
+  }
+
+  private void scheduleSweep() {
+    if (stopped || providerFactory.getExecutor().isShutdown()) return;
+    providerFactory
+        .getExecutor()
+        .scheduleBackground(
+            () -> {
+              try {
+                sweep(System.currentTimeMillis(), false);
+              } finally {
+                scheduleSweep();
+              }
+            },
+            forwardTimeout,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Take back the forwarded sends that weren't acknowledged by the time. They are delivered here if
+   * this node now owns the webhook and isn't stopping, and are otherwise kept as dead letters, as
+   * the owner may or may not have sent them.
+   */
+  void sweep(final long now, final boolean stopping) {
+    forwards.forEach(
+        (id, f) -> {
+          if (f.deadline > now || !forwards.remove(id, f)) return;
+          try {
+            KeycloakModelUtils.runJobInTransaction(
+                factory,
+                (session) -> {
+                  WebhookSenderEventListenerProvider provider = providerFactory.create(session);
+                  if (!stopping && isLocal(f.webhookId)) {
+                    log.debugf(
+                        "Send %s was not acknowledged by %s. Delivering it as the new owner of"
+                            + " webhook %s.",
+                        id, f.owner, f.webhookId);
+                    provider.deliver(f.realmId, f.webhookId, f.json, false);
+                  } else {
+                    log.warnf(
+                        "Send %s for webhook %s was not acknowledged by %s",
+                        id, f.webhookId, f.owner);
+                    provider.deadLetter(
+                        f.realmId,
+                        f.webhookId,
+                        f.json,
+                        String.format("Forward to %s was not acknowledged", f.owner));
+                  }
+                });
+          } catch (Exception e) {
+            log.warnf(e, "Error taking back send %s for webhook %s", id, f.webhookId);
+          }
+        });
+  }
+
+  private void received(ClusterEvent event) {
+    if (stopped || !(event instanceof WebhookDeliveryEvent)) return;
+    final WebhookDeliveryEvent delivery = (WebhookDeliveryEvent) event;
+    ConsistentHash r = ring;
+    // taken by the node it was sent to, or by the new owner if that node has left
+    boolean mine =
+        delivery.getOwner().equals(self)
+            || (r != null
+                && !r.getNodes().contains(delivery.getOwner())
+                && isLocal(delivery.getWebhookId()));
+    if (!mine) return;
+    // off of the Infinispan notification thread
+    providerFactory
+        .getExecutor()
+        .schedule(
+            () ->
+                KeycloakModelUtils.runJobInTransaction(
+                    factory,
+                    (session) -> {
+                      providerFactory
+                          .create(session)
+                          .deliver(
+                              delivery.getRealmId(),
+                              delivery.getWebhookId(),
+                              delivery.getPayload(),
+                              delivery.isOutbox());
+                      if (delivery.isOutbox() || delivery.getOrigin() == null) return;
+                      session
+                          .getProvider(ClusterProvider.class)
+                          .notify(
+                              DELIVERY_ACK_TASK,
+                              new WebhookDeliveryAck(delivery.getOrigin(), delivery.getId()),
+                              true,
+                              ClusterProvider.DCNotify.LOCAL_DC_ONLY);
+                    }),
+            0l,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Stop following the members of the cluster and taking forwarded sends, and keep the forwarded
+   * sends that are still waiting for an acknowledgement as dead letters
+   */
+  public void stop() {
+    stopped = true;
+    if (cacheManager != null && topologyListener != null) {
+      try {
+        cacheManager.removeListener(topologyListener);
+      } catch (Exception e) {
+        log.warn("Error removing topology listener", e);
+      }
+    }
+    if (factory != null) sweep(Long.MAX_VALUE, true);
+  }
+
+  /** A send that was forwarded to the owner of its webhook, and not yet acknowledged */
+  private static class Forward {
+    final String realmId;
+    final String webhookId;
+    final String json;
+    final String owner;
+    final long deadline;
+
+    Forward(String realmId, String webhookId, String json, String owner, long deadline) {
+      this.realmId = realmId;
+      this.webhookId = webhookId;
+      this.json = json;
+      this.owner = owner;
+      this.deadline = deadline;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package io.phasetwo.keycloak.events;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * A bounded queue of jobs waiting to be sent to one endpoint (a webhook, or a target URI). At most
+ * the current {@link ConcurrencyLimit} of its jobs are in flight at once, and when it is full, a
+ * job is dropped according to the overflow policy, or spilled, to be kept somewhere durable and
+ * sent later.
+ *
+ * <p>Jobs wait in the {@link Lane} of their event. When several lanes have jobs waiting, they are
+ * taken in proportion to the lanes' weights by smooth weighted round robin, and when the queue is
+ * full, jobs are dropped from the lowest weighted lane first.
+ */
+@JBossLog
+public class DeliveryQueue {
+
+  public enum Overflow {
+    DROP_OLDEST,
+    DROP_NEWEST,
+    /** The job being added is spilled, as with {@link #DROP_NEWEST}, but is kept to run later */
+    SPILL;
+
+    static Overflow from(String input) {
+      try {
+        return Overflow.valueOf(input.toUpperCase());
+      } catch (Exception e) {
+        log.warnf("Unknown %s %s. Using %s", SenderExecutor.QUEUE_OVERFLOW, input, DROP_OLDEST);
+        return DROP_OLDEST;
+      }
+    }
+  }
+
+  private final String key;
+  private final int capacity;
+  private final ConcurrencyLimit limit;
+  private final Overflow overflow;
+  private final int[] weights;
+  private final Deque<SenderExecutor.Job>[] lanes;
+  private final int[] current;
+  private int depth = 0;
+  private int inFlight = 0;
+  private long dropped = 0;
+
+  DeliveryQueue(String key, int capacity, int concurrency, Overflow overflow) {
+    this(key, capacity, ConcurrencyLimit.fixed(concurrency), overflow);
+  }
+
+  DeliveryQueue(String key, int capacity, ConcurrencyLimit limit, Overflow overflow) {
+    this(key, capacity, limit, overflow, Lane.parseWeights(null));
+  }
+
+  @SuppressWarnings("unchecked")
+  DeliveryQueue(
+      String key, int capacity, ConcurrencyLimit limit, Overflow overflow, int[] weights) {
+    this.key = key;
+    this.capacity = capacity;
+    this.limit = limit;
+    this.overflow = overflow;
+    this.weights = weights;
+    this.lanes = new Deque[weights.length];
+    for (int i = 0; i < lanes.length; i++) lanes[i] = new ArrayDeque<>();
+    this.current = new int[weights.length];
+  }
+
+  /** Add a job to the queue. Returns the job that was dropped to make room for it, if any. */
+  synchronized SenderExecutor.Job offer(SenderExecutor.Job job) {
+    Deque<SenderExecutor.Job> lane = lanes[job.lane().ordinal()];
+    if (depth < capacity) {
+      lane.offerLast(job);
+      depth++;
+      return null;
+    }
+    dropped++;
+    int lowest = lowestWaiting();
+    if (lowest < 0 || weights[job.lane().ordinal()] <= weights[lowest]) {
+      lowest = job.lane().ordinal();
+    }
+    if (overflow == Overflow.DROP_NEWEST || overflow == Overflow.SPILL) {
+      if (lowest == job.lane().ordinal()) return job;
+      lane.offerLast(job);
+      return lanes[lowest].pollLast();
+    }
+    lane.offerLast(job);
+    return lanes[lowest].pollFirst();
+  }
+
+  /** The lane with the lowest weight that has jobs waiting */
+  private int lowestWaiting() {
+    int lowest = -1;
+    for (int i = 0; i < lanes.length; i++) {
+      if (!lanes[i].isEmpty() && (lowest < 0 || weights[i] < weights[lowest])) lowest = i;
+    }
+    return lowest;
+  }
+
+  /** Take the next job, if there is one and a concurrency slot is available */
+  synchronized SenderExecutor.Job poll() {
+    if (inFlight >= limit.getLimit() || depth == 0) return null;
+    // smooth weighted round robin over the lanes with jobs waiting
+    int next = -1;
+    int total = 0;
+    for (int i = 0; i < lanes.length; i++) {
+      if (lanes[i].isEmpty()) continue;
+      current[i] += weights[i];
+      total += weights[i];
+      if (next < 0 || current[i] > current[next]) next = i;
+    }
+    current[next] -= total;
+    inFlight++;
+    depth--;
+    return lanes[next].pollFirst();
+  }
+
+  /** Release the concurrency slot of a job that is done */
+  synchronized void release() {
+    if (inFlight > 0) inFlight--;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public ConcurrencyLimit getLimit() {
+    return limit;
+  }
+
+  public synchronized int getDepth() {
+    return depth;
+  }
+
+  /** The number of jobs waiting in the lane */
+  public synchronized int getDepth(Lane lane) {
+    return lanes[lane.ordinal()].size();
+  }
+
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  public synchronized long getDropped() {
+    return dropped;
+  }
+}
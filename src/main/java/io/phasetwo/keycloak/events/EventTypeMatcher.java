@@ -0,0 +1,116 @@
+package io.phasetwo.keycloak.events;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * The compiled event types of a webhook, which decide whether it is subscribed to an event. A
+ * {@code *} matches everything. Types without regular expression syntax are matched exactly with a
+ * hash set, types of the form {@code access.*} are matched by their prefix with a trie, and the
+ * remaining types are compiled to {@link Pattern}s once. The dots in the exact and prefix types
+ * match the dot in an event type, such as {@code access.LOGIN}.
+ */
+@JBossLog
+public class EventTypeMatcher {
+
+  private static final String METACHARACTERS = "\\^$|?*+()[]{}";
+
+  private final Set<String> eventTypes;
+  private final boolean all;
+  private final Set<String> exact;
+  private final Node prefixes;
+  private final List<Pattern> patterns;
+
+  private EventTypeMatcher(
+      Set<String> eventTypes,
+      boolean all,
+      Set<String> exact,
+      Node prefixes,
+      List<Pattern> patterns) {
+    this.eventTypes = eventTypes;
+    this.all = all;
+    this.exact = exact;
+    this.prefixes = prefixes;
+    this.patterns = patterns;
+  }
+
+  public static EventTypeMatcher compile(Collection<String> eventTypes) {
+    boolean all = false;
+    ImmutableSet.Builder<String> exact = ImmutableSet.builder();
+    Node prefixes = new Node();
+    ImmutableList.Builder<Pattern> patterns = ImmutableList.builder();
+    for (String t : eventTypes) {
+      if ("*".equals(t)) {
+        all = true;
+      } else if (t.endsWith(".*") && isLiteral(t.substring(0, t.length() - 2))) {
+        prefixes.add(t.substring(0, t.length() - 2));
+      } else if (isLiteral(t)) {
+        exact.add(t);
+      } else {
+        // an invalid pattern can still match an identical type
+        exact.add(t);
+        try {
+          patterns.add(Pattern.compile(t));
+        } catch (PatternSyntaxException e) {
+          log.debugf("Invalid event type pattern %s", t);
+        }
+      }
+    }
+    return new EventTypeMatcher(
+        ImmutableSet.copyOf(eventTypes), all, exact.build(), prefixes, patterns.build());
+  }
+
+  /** Whether the text has no regular expression syntax, other than dots */
+  static boolean isLiteral(String t) {
+    for (int i = 0; i < t.length(); i++) {
+      if (METACHARACTERS.indexOf(t.charAt(i)) >= 0) return false;
+    }
+    return true;
+  }
+
+  public boolean matches(String type) {
+    if (type == null) return false;
+    if (all || exact.contains(type) || prefixes.matches(type)) return true;
+    for (Pattern p : patterns) {
+      if (p.matcher(type).matches()) return true;
+    }
+    return false;
+  }
+
+  /** The event types this was compiled from */
+  public Set<String> getEventTypes() {
+    return eventTypes;
+  }
+
+  /** A trie of prefixes, where a node that ends a prefix matches everything below it */
+  static class Node {
+    private final Map<Character, Node> children = new HashMap<>();
+    private boolean end = false;
+
+    void add(String prefix) {
+      Node node = this;
+      for (int i = 0; i < prefix.length(); i++) {
+        node = node.children.computeIfAbsent(prefix.charAt(i), c -> new Node());
+      }
+      node.end = true;
+    }
+
+    boolean matches(String type) {
+      Node node = this;
+      for (int i = 0; ; i++) {
+        if (node.end) return true;
+        if (i == type.length()) return false;
+        node = node.children.get(type.charAt(i));
+        if (node == null) return false;
+      }
+    }
+  }
+}
@@ -0,0 +1,33 @@
+package io.phasetwo.keycloak.events;
+
+import org.infinispan.protostream.GeneratedSchema;
+import org.infinispan.protostream.annotations.ProtoSchema;
+import org.infinispan.protostream.annotations.ProtoSyntax;
+
+/**
+ * The ProtoStream schema of the messages this extension sends between the nodes of a cluster. The
+ * schema and the marshallers are generated from the annotations of the messages, and Keycloak loads
+ * them with the other schemas of its Infinispan marshaller. The type ids are outside of the ranges
+ * used by Infinispan and Keycloak.
+ */
+@ProtoSchema(
+    schemaPackageName = EventsSchema.PACKAGE,
+    schemaFileName = "phasetwo-events.proto",
+    schemaFilePath = "proto/generated",
+    includeClasses = {
+      WebhookInvalidationEvent.class,
+      WebhookDeliveryEvent.class,
+      WebhookDeliveryAck.class
+    },
+    syntax = ProtoSyntax.PROTO3,
+    service = true)
+public interface EventsSchema extends GeneratedSchema {
+
+  String PACKAGE = "phasetwo.events";
+
+  int WEBHOOK_INVALIDATION_EVENT = 8126001;
+  int WEBHOOK_DELIVERY_EVENT = 8126002;
+  int WEBHOOK_DELIVERY_ACK = 8126003;
+
+  EventsSchema INSTANCE = new EventsSchemaImpl();
+}
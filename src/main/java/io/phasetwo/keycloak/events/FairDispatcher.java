@@ -0,0 +1,116 @@
+package io.phasetwo.keycloak.events;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * Shares the sends in flight among realms, so that one busy realm doesn't hold back the others.
+ * Tasks that are ready to run wait in a queue per realm, and are taken from the queues by deficit
+ * round robin: each time a realm's turn comes up, it may run as many tasks as its weight, before
+ * the next realm with tasks waiting gets its turn. A task is handed to the executor only while
+ * there are free slots, and its slot is freed when it returns.
+ */
+@JBossLog
+public class FairDispatcher {
+
+  private final Consumer<Runnable> executor;
+  private final Map<String, Flow> flows = new HashMap<>();
+  private final ArrayDeque<Flow> active = new ArrayDeque<>();
+  private int available;
+
+  /**
+   * @param slots the number of tasks that may run at once
+   * @param executor runs the tasks, without blocking the caller
+   */
+  FairDispatcher(int slots, Consumer<Runnable> executor) {
+    this.available = slots;
+    this.executor = executor;
+  }
+
+  static class Flow {
+    final String key;
+    final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+    int weight;
+    int deficit;
+
+    Flow(String key) {
+      this.key = key;
+    }
+  }
+
+  /** Queue the task for the realm, which may run as many tasks as its weight in each turn */
+  public void submit(String realm, int weight, Runnable task) {
+    final String key = realm != null ? realm : "";
+    synchronized (this) {
+      Flow flow = flows.get(key);
+      if (flow == null) {
+        flow = new Flow(key);
+        flows.put(key, flow);
+        active.addLast(flow);
+      }
+      flow.weight = Math.max(1, weight);
+      flow.tasks.addLast(task);
+    }
+    pump();
+  }
+
+  /** The number of tasks waiting for the realm */
+  public synchronized int getWaiting(String realm) {
+    Flow flow = flows.get(realm != null ? realm : "");
+    return flow != null ? flow.tasks.size() : 0;
+  }
+
+  private void pump() {
+    while (true) {
+      final Runnable task;
+      synchronized (this) {
+        if (available <= 0) return;
+        task = next();
+        if (task == null) return;
+        available--;
+      }
+      try {
+        executor.accept(
+            () -> {
+              try {
+                task.run();
+              } finally {
+                release();
+              }
+            });
+      } catch (Exception e) {
+        log.warn("Error executing task", e);
+        synchronized (this) {
+          available++;
+        }
+      }
+    }
+  }
+
+  private void release() {
+    synchronized (this) {
+      available++;
+    }
+    pump();
+  }
+
+  /** Take the next task in deficit round robin order, or null if none are waiting */
+  private Runnable next() {
+    Flow flow = active.peekFirst();
+    if (flow == null) return null;
+    if (flow.deficit <= 0) flow.deficit = flow.weight;
+    Runnable task = flow.tasks.pollFirst();
+    flow.deficit--;
+    if (flow.tasks.isEmpty()) {
+      // an idle realm keeps no credit
+      active.pollFirst();
+      flows.remove(flow.key);
+    } else if (flow.deficit <= 0) {
+      active.addLast(active.pollFirst());
+    }
+    return task;
+  }
+}
@@ -6,14 +6,20 @@ import static java.net.HttpURLConnection.HTTP_OK;
 import com.github.xgp.util.BackOff;
 import com.github.xgp.util.ExponentialBackOff;
 import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.security.SignatureException;
 import java.util.Optional;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import javax.crypto.Mac;
 import javax.crypto.spec.SecretKeySpec;
 import lombok.extern.jbosslog.JBossLog;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
 import org.keycloak.broker.provider.util.LegacySimpleHttp;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.util.JsonSerialization;
@@ -31,8 +37,17 @@ public class HttpSenderEventListenerProvider extends SenderEventListenerProvider
   protected static final String BACKOFF_MULTIPLIER = "backoffMultiplier";
   protected static final String BACKOFF_RANDOMIZATION_FACTOR = "backoffRandomizationFactor";
 
-  public HttpSenderEventListenerProvider(KeycloakSession session, ScheduledExecutorService exec) {
+  protected final CloseableHttpClient http;
+  protected final HttpClient asyncHttp;
+
+  public HttpSenderEventListenerProvider(
+      KeycloakSession session,
+      SenderExecutor exec,
+      CloseableHttpClient http,
+      HttpClient asyncHttp) {
     super(session, exec);
+    this.http = http;
+    this.asyncHttp = asyncHttp;
   }
 
   @Override
@@ -55,18 +70,22 @@ public class HttpSenderEventListenerProvider extends SenderEventListenerProvider
   }
 
   Optional<String> getSharedSecret() {
-    String secret = Optional.ofNullable(config.get(SHARED_SECRET))
+    String secret =
+        Optional.ofNullable(config.get(SHARED_SECRET))
             .map(Object::toString)
             .orElseGet(() -> System.getenv("SHARED_SECRET"));
     return Optional.ofNullable(secret);
   }
 
-
-
   Optional<String> getHmacAlgorithm() {
     return Optional.ofNullable(config.get(HMAC_ALGORITHM)).map(Object::toString);
   }
 
+  @Override
+  String getKey(SenderTask task) {
+    return getTargetUri();
+  }
+
   @Override
   void send(SenderTask task) throws SenderException, IOException {
     send(task, getTargetUri(), getSharedSecret(), getHmacAlgorithm());
@@ -76,16 +95,16 @@ public class HttpSenderEventListenerProvider extends SenderEventListenerProvider
       SenderTask task, String targetUri, Optional<String> sharedSecret, Optional<String> algorithm)
       throws SenderException, IOException {
     log.debugf("attempting send to %s", targetUri);
-    try (CloseableHttpClient http = HttpClients.createDefault()) {
-
-      LegacySimpleHttp request = LegacySimpleHttp.doPost(targetUri, http).json(task.getEvent());
-      sharedSecret.ifPresent(
-              request::auth);
-        int status;
-        try (LegacySimpleHttp.Response response = request.asResponse()) {
-            status = response.getStatus();
-        }
-        log.debugf("sent to %s (%d)", targetUri, status);
+    try {
+      LegacySimpleHttp request =
+          LegacySimpleHttp.doPost(targetUri, http)
+              .entity(new ByteArrayEntity(getBody(task), ContentType.APPLICATION_JSON));
+      sharedSecret.ifPresent(request::auth);
+      int status;
+      try (LegacySimpleHttp.Response response = request.asResponse()) {
+        status = response.getStatus();
+      }
+      log.debugf("sent to %s (%d)", targetUri, status);
       doAfterSend(task, status);
       if (status < HTTP_OK || status >= HTTP_MULT_CHOICE) { // any 2xx is acceptable
         log.debugf("Sending failure (Server response:%d)", status);
@@ -100,7 +119,63 @@ public class HttpSenderEventListenerProvider extends SenderEventListenerProvider
     }
   }
 
+  @Override
+  boolean isSendAsync() {
+    return asyncHttp != null;
+  }
+
+  @Override
+  CompletableFuture<Void> sendAsync(SenderTask task) {
+    return sendAsync(task, getTargetUri(), getSharedSecret(), getHmacAlgorithm());
+  }
+
+  protected CompletableFuture<Void> sendAsync(
+      SenderTask task,
+      String targetUri,
+      Optional<String> sharedSecret,
+      Optional<String> algorithm) {
+    log.debugf("attempting async send to %s", targetUri);
+    HttpRequest request;
+    try {
+      HttpRequest.Builder builder =
+          HttpRequest.newBuilder(URI.create(targetUri))
+              .header("Content-Type", "application/json")
+              .POST(HttpRequest.BodyPublishers.ofByteArray(getBody(task)));
+      sharedSecret.ifPresent(s -> builder.header("Authorization", "Bearer " + s));
+      request = builder.build();
+    } catch (Exception e) {
+      log.debugf(e, "Sending exception to %s", targetUri);
+      return CompletableFuture.failedFuture(new SenderException(false, e));
+    }
+    return asyncHttp
+        .sendAsync(request, HttpResponse.BodyHandlers.discarding())
+        .handle(
+            (response, t) -> {
+              if (t != null) {
+                log.debugf(t, "Sending exception to %s", targetUri);
+                throw new CompletionException(new SenderException(false, t));
+              }
+              int status = response.statusCode();
+              log.debugf("sent to %s (%d)", targetUri, status);
+              doAfterSend(task, status);
+              if (status < HTTP_OK || status >= HTTP_MULT_CHOICE) { // any 2xx is acceptable
+                log.debugf("Sending failure (Server response:%d)", status);
+                throw new CompletionException(new SenderException(true));
+              }
+              return null;
+            });
+  }
+
+  /** The JSON body of the task's send, which is only serialized here if it isn't already */
+  static byte[] getBody(SenderTask task) throws IOException {
+    if (task.getEvent() instanceof WebhookPayload) {
+      return ((WebhookPayload) task.getEvent()).getBytes();
+    }
+    return JsonSerialization.writeValueAsBytes(task.getEvent());
+  }
+
   protected final void doAfterSend(SenderTask task, int httpStatus) {
+    task.setStatus(httpStatus);
     try {
       afterSend(task, httpStatus);
     } catch (Exception e) {
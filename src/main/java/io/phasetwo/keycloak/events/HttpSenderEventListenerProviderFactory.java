@@ -1,11 +1,11 @@
 package io.phasetwo.keycloak.events;
 
 import com.google.auto.service.AutoService;
-import com.google.common.util.concurrent.MoreExecutors;
+import java.net.http.HttpClient;
 import java.util.Map;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.jbosslog.JBossLog;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.keycloak.Config;
 import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.EventListenerProviderFactory;
@@ -17,7 +17,12 @@ public class HttpSenderEventListenerProviderFactory extends MultiEventListenerPr
 
   public static final String PROVIDER_ID = "ext-event-http";
 
-  private ScheduledExecutorService exec;
+  /** How long close() waits for running and delayed sends to finish */
+  static final long SHUTDOWN_TIMEOUT = 10000l;
+
+  private SenderExecutor exec;
+  private CloseableHttpClient http;
+  private HttpClient asyncHttp;
 
   @Override
   public String getId() {
@@ -26,7 +31,8 @@ public class HttpSenderEventListenerProviderFactory extends MultiEventListenerPr
 
   @Override
   protected EventListenerProvider configure(KeycloakSession session, Map<String, Object> config) {
-    HttpSenderEventListenerProvider provider = new HttpSenderEventListenerProvider(session, exec);
+    HttpSenderEventListenerProvider provider =
+        new HttpSenderEventListenerProvider(session, exec, http, asyncHttp);
     log.debugf("Configuring %s with %s", provider.getClass().getName(), configToString(config));
     provider.setConfig(config);
     return provider;
@@ -34,9 +40,9 @@ public class HttpSenderEventListenerProviderFactory extends MultiEventListenerPr
 
   @Override
   public void init(Config.Scope scope) {
-    exec =
-        MoreExecutors.getExitingScheduledExecutorService(
-            new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors()));
+    exec = SenderExecutor.create(scope);
+    http = PooledHttpClientBuilder.create(scope);
+    asyncHttp = PooledHttpClientBuilder.createAsync(scope);
   }
 
   @Override
@@ -44,9 +50,22 @@ public class HttpSenderEventListenerProviderFactory extends MultiEventListenerPr
     try {
       log.debug("Shutting down scheduler");
       exec.shutdown();
+      // sends in flight finish before the http client they use is closed
+      if (!exec.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        log.warn("Scheduler did not finish in time. Closing http client with sends in flight.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     } catch (Exception e) {
       log.warn("Error in shutdown of scheduler", e);
     }
+    try {
+      log.debug("Closing http client");
+      http.close();
+      if (asyncHttp != null) asyncHttp.shutdown();
+    } catch (Exception e) {
+      log.warn("Error closing http client", e);
+    }
   }
 
   protected boolean isAsync() {
@@ -0,0 +1,60 @@
+package io.phasetwo.keycloak.events;
+
+import com.google.common.base.Splitter;
+import io.phasetwo.keycloak.model.KeycloakEventType;
+import java.util.Map;
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * The dispatch lane of a send, chosen by the type of its event. Each lane has a weight, which is
+ * its share of the sends taken from a delivery queue when several lanes have sends waiting, so that
+ * a flood of user events doesn't hold back admin events to the same endpoint.
+ */
+@JBossLog
+public enum Lane {
+  ADMIN,
+  SYSTEM,
+  USER;
+
+  static final String DEFAULT_WEIGHTS = "admin:8,system:4,user:1";
+
+  public static Lane of(KeycloakEventType type) {
+    if (type == KeycloakEventType.ADMIN) return ADMIN;
+    if (type == KeycloakEventType.SYSTEM) return SYSTEM;
+    return USER;
+  }
+
+  /** Whether the lane may use the reserved dispatch capacity */
+  public boolean isPriority() {
+    return this != USER;
+  }
+
+  /**
+   * Parse weights of the form {@code admin:8,system:4,user:1}, indexed by lane ordinal. Lanes that
+   * are missing or invalid get the default weight.
+   */
+  static int[] parseWeights(String input) {
+    int[] weights = parse(DEFAULT_WEIGHTS);
+    if (input == null) return weights;
+    try {
+      int[] parsed = parse(input);
+      for (int i = 0; i < weights.length; i++) {
+        if (parsed[i] > 0) weights[i] = parsed[i];
+      }
+    } catch (Exception e) {
+      log.warnf("Invalid lane weights %s. Using %s", input, DEFAULT_WEIGHTS);
+    }
+    return weights;
+  }
+
+  private static int[] parse(String input) {
+    int[] weights = new int[values().length];
+    Map<String, String> entries =
+        Splitter.on(',').trimResults().omitEmptyStrings().withKeyValueSeparator(':').split(input);
+    for (Map.Entry<String, String> e : entries.entrySet()) {
+      weights[valueOf(e.getKey().trim().toUpperCase()).ordinal()] =
+          Integer.parseInt(e.getValue().trim());
+    }
+    return weights;
+  }
+}
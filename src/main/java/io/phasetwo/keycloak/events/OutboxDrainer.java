@@ -0,0 +1,138 @@
+package io.phasetwo.keycloak.events;
+
+import io.phasetwo.keycloak.model.WebhookProvider;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Delivers the webhook sends that were written to the outbox in the transaction of their event. Due
+ * entries are leased in batches, skipping the ones locked or leased by other nodes, so that the
+ * nodes of a cluster share the work. An entry is removed when its send is done for good, and if a
+ * node goes away, its leases expire and the entries are picked up by another node.
+ */
+@JBossLog
+public class OutboxDrainer {
+
+  public static final String OUTBOX = "outbox";
+  public static final String OUTBOX_POLL_INTERVAL = "outboxPollInterval";
+  public static final String OUTBOX_BATCH_SIZE = "outboxBatchSize";
+  public static final String OUTBOX_LEASE_TIME = "outboxLeaseTime";
+
+  static final long DEFAULT_POLL_INTERVAL = 1000l;
+  static final int DEFAULT_BATCH_SIZE = 100;
+  static final long DEFAULT_LEASE_TIME = 300000l;
+
+  private final WebhookSenderEventListenerProviderFactory providerFactory;
+  private final long pollInterval;
+  private final int batchSize;
+  private final long leaseTime;
+  private final String owner = KeycloakModelUtils.generateId();
+  private final AtomicBoolean woken = new AtomicBoolean(false);
+  private final AtomicBoolean draining = new AtomicBoolean(false);
+  private KeycloakSessionFactory factory;
+
+  OutboxDrainer(
+      WebhookSenderEventListenerProviderFactory providerFactory,
+      long pollInterval,
+      int batchSize,
+      long leaseTime) {
+    this.providerFactory = providerFactory;
+    this.pollInterval = pollInterval;
+    this.batchSize = batchSize;
+    this.leaseTime = leaseTime;
+  }
+
+  /** Returns the drainer if the outbox is enabled, or null */
+  public static OutboxDrainer create(
+      Config.Scope scope, WebhookSenderEventListenerProviderFactory providerFactory) {
+    boolean enabled = scope.getBoolean(OUTBOX, false);
+    log.infof("%s %b", OUTBOX, enabled);
+    if (!enabled) return null;
+    long pollInterval = scope.getLong(OUTBOX_POLL_INTERVAL, DEFAULT_POLL_INTERVAL);
+    int batchSize = scope.getInt(OUTBOX_BATCH_SIZE, DEFAULT_BATCH_SIZE);
+    long leaseTime = scope.getLong(OUTBOX_LEASE_TIME, DEFAULT_LEASE_TIME);
+    log.infof(
+        "%s %d, %s %d, %s %d",
+        OUTBOX_POLL_INTERVAL,
+        pollInterval,
+        OUTBOX_BATCH_SIZE,
+        batchSize,
+        OUTBOX_LEASE_TIME,
+        leaseTime);
+    return new OutboxDrainer(providerFactory, pollInterval, batchSize, leaseTime);
+  }
+
+  public void start(KeycloakSessionFactory factory) {
+    this.factory = factory;
+    log.infof("Starting outbox drainer %s", owner);
+    schedulePoll();
+  }
+
+  /** Drain soon, because something was written to the outbox */
+  public void wake() {
+    if (factory == null || !woken.compareAndSet(false, true)) return;
+    providerFactory
+        .getExecutor()
+        .scheduleBackground(
+            () -> {
+              woken.set(false);
+              drain();
+            },
+            0l,
+            TimeUnit.MILLISECONDS);
+  }
+
+  public long getPollInterval() {
+    return pollInterval;
+  }
+
+  private void schedulePoll() {
+    if (providerFactory.getExecutor().isShutdown()) return;
+    providerFactory
+        .getExecutor()
+        .scheduleBackground(
+            () -> {
+              try {
+                drain();
+              } finally {
+                schedulePoll();
+              }
+            },
+            pollInterval,
+            TimeUnit.MILLISECONDS);
+  }
+
+  /** Lease a batch of due entries, and schedule them once the lease is committed */
+  void drain() {
+    if (!draining.compareAndSet(false, true)) return;
+    try {
+      KeycloakModelUtils.runJobInTransaction(
+          factory,
+          (session) -> {
+            WebhookProvider webhooks = session.getProvider(WebhookProvider.class);
+            providerFactory
+                .create(session)
+                .deliver(webhooks.leaseOutbox(owner, leaseTime, batchSize));
+          });
+    } catch (Exception e) {
+      log.warn("Error draining outbox", e);
+    } finally {
+      draining.set(false);
+    }
+  }
+
+  /** Give up this node's leases, so that other nodes can pick up its entries right away */
+  public void stop() {
+    if (factory == null) return;
+    try {
+      KeycloakModelUtils.runJobInTransaction(
+          factory, (session) -> session.getProvider(WebhookProvider.class).releaseOutbox(owner));
+    } catch (Exception e) {
+      log.warn("Error releasing outbox leases", e);
+    }
+  }
+}
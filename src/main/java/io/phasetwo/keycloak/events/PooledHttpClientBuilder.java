@@ -0,0 +1,98 @@
+package io.phasetwo.keycloak.events;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.net.http.HttpClient;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.jbosslog.JBossLog;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.keycloak.Config;
+
+/**
+ * Builds the long-lived, connection pooled http client that is owned by a sender factory and shared
+ * by all of the providers it creates. Connections are kept alive between sends, and idle or expired
+ * connections are evicted in the background.
+ */
+@JBossLog
+public class PooledHttpClientBuilder {
+
+  public static final String HTTP_MAX_CONNECTIONS = "httpMaxConnections";
+  public static final String HTTP_MAX_CONNECTIONS_PER_ROUTE = "httpMaxConnectionsPerRoute";
+  public static final String HTTP_KEEP_ALIVE = "httpKeepAlive";
+  public static final String HTTP_IDLE_TIMEOUT = "httpIdleTimeout";
+  public static final String HTTP_CONNECTION_REQUEST_TIMEOUT = "httpConnectionRequestTimeout";
+  public static final String HTTP_ENGINE = "httpEngine";
+  public static final String HTTP_ASYNC_THREADS = "httpAsyncThreads";
+
+  static final int DEFAULT_MAX_CONNECTIONS = 200;
+  static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 20;
+  static final long DEFAULT_KEEP_ALIVE = 60000l;
+  static final long DEFAULT_IDLE_TIMEOUT = 30000l;
+  static final int DEFAULT_CONNECTION_REQUEST_TIMEOUT = 30000;
+
+  public static CloseableHttpClient create(Config.Scope scope) {
+    int maxTotal = scope.getInt(HTTP_MAX_CONNECTIONS, DEFAULT_MAX_CONNECTIONS);
+    int maxPerRoute =
+        scope.getInt(HTTP_MAX_CONNECTIONS_PER_ROUTE, DEFAULT_MAX_CONNECTIONS_PER_ROUTE);
+    long keepAlive = scope.getLong(HTTP_KEEP_ALIVE, DEFAULT_KEEP_ALIVE);
+    long idleTimeout = scope.getLong(HTTP_IDLE_TIMEOUT, DEFAULT_IDLE_TIMEOUT);
+    int requestTimeout =
+        scope.getInt(HTTP_CONNECTION_REQUEST_TIMEOUT, DEFAULT_CONNECTION_REQUEST_TIMEOUT);
+    log.infof(
+        "http client pool maxTotal=%d maxPerRoute=%d keepAlive=%d idleTimeout=%d",
+        maxTotal, maxPerRoute, keepAlive, idleTimeout);
+
+    PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager();
+    cm.setMaxTotal(maxTotal);
+    cm.setDefaultMaxPerRoute(maxPerRoute);
+
+    return HttpClients.custom()
+        .setConnectionManager(cm)
+        .setKeepAliveStrategy(keepAliveStrategy(keepAlive))
+        .setDefaultRequestConfig(
+            RequestConfig.custom().setConnectionRequestTimeout(requestTimeout).build())
+        .evictExpiredConnections()
+        .evictIdleConnections(idleTimeout, TimeUnit.MILLISECONDS)
+        .build();
+  }
+
+  /**
+   * Builds the non-blocking client used when the {@code httpEngine} is {@code async}, or returns
+   * null when it is {@code sync}. Send completions run on a small, fixed set of threads.
+   */
+  public static HttpClient createAsync(Config.Scope scope) {
+    String engine = scope.get(HTTP_ENGINE, "sync");
+    if (!"async".equalsIgnoreCase(engine)) return null;
+    int threads = scope.getInt(HTTP_ASYNC_THREADS, Runtime.getRuntime().availableProcessors());
+    log.infof("%s %s with %s %d", HTTP_ENGINE, engine, HTTP_ASYNC_THREADS, threads);
+    ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60l,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder().setNameFormat("ext-event-http-async-%d").build());
+    pool.allowCoreThreadTimeOut(true);
+    return HttpClient.newBuilder()
+        .executor(MoreExecutors.getExitingExecutorService(pool))
+        .followRedirects(HttpClient.Redirect.NEVER)
+        .build();
+  }
+
+  /** Honor the server's Keep-Alive header, but never keep a connection longer than the max */
+  static ConnectionKeepAliveStrategy keepAliveStrategy(long maxKeepAlive) {
+    return (response, context) -> {
+      long serverKeepAlive =
+          DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+      return serverKeepAlive > 0 ? Math.min(serverKeepAlive, maxKeepAlive) : maxKeepAlive;
+    };
+  }
+}
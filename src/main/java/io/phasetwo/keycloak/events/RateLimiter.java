@@ -0,0 +1,61 @@
+package io.phasetwo.keycloak.events;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket that lets an endpoint receive {@code rate} sends per second, with bursts of up to
+ * {@code burst} sends. It is kept as the theoretical arrival time of the next send (the generic
+ * cell rate algorithm), in a single {@link AtomicLong}, so that reserving a send is one
+ * compare-and-set without locking. A send that is over the limit is not refused, but is told how
+ * long to wait for the slot it reserved.
+ */
+public class RateLimiter {
+
+  private final int rate;
+  private final int burst;
+  private final long interval;
+  private final long tolerance;
+  private final AtomicLong next;
+  private final LongSupplier clock;
+
+  RateLimiter(int rate, int burst) {
+    this(rate, burst, System::nanoTime);
+  }
+
+  RateLimiter(int rate, int burst, LongSupplier clock) {
+    this.rate = rate;
+    this.burst = Math.max(1, burst);
+    this.interval = TimeUnit.SECONDS.toNanos(1) / rate;
+    this.tolerance = (this.burst - 1) * interval;
+    this.clock = clock;
+    // starts with a full bucket
+    this.next = new AtomicLong(clock.getAsLong() - tolerance);
+  }
+
+  /** Reserve the next free slot, and return the nanoseconds to wait for it, which is 0 for now */
+  public long reserve() {
+    while (true) {
+      long now = clock.getAsLong();
+      long at = next.get();
+      long start = Math.max(at, now - tolerance);
+      if (next.compareAndSet(at, start + interval)) {
+        return Math.max(0l, start - now);
+      }
+    }
+  }
+
+  public int getRate() {
+    return rate;
+  }
+
+  public int getBurst() {
+    return burst;
+  }
+
+  /** Whether this limiter was made for the rate and burst */
+  boolean isFor(int rate, int burst) {
+    return this.rate == rate && this.burst == Math.max(1, burst);
+  }
+}
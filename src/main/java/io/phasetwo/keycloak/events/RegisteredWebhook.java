@@ -0,0 +1,109 @@
+package io.phasetwo.keycloak.events;
+
+import io.phasetwo.keycloak.model.WebhookModel;
+import io.phasetwo.keycloak.representation.ExtendedAdminEvent;
+import java.util.List;
+
+/**
+ * An immutable copy of an enabled webhook, with its event types compiled, as held by the {@link
+ * WebhookRegistry}. It can be used after the session it was read in is closed.
+ */
+public class RegisteredWebhook {
+
+  private final String id;
+  private final String realmId;
+  private final String url;
+  private final String secret;
+  private final String algorithm;
+  private final Integer batchSize;
+  private final Integer batchLinger;
+  private final Integer coalesceWindow;
+  private final List<String> coalesceFields;
+  private final Integer rateLimit;
+  private final Integer rateBurst;
+  private final EventTypeMatcher matcher;
+  private final int realmWeight;
+
+  RegisteredWebhook(WebhookModel webhook, int realmWeight) {
+    this.id = webhook.getId();
+    this.realmId = webhook.getRealm().getId();
+    this.url = webhook.getUrl();
+    this.secret = webhook.getSecret();
+    this.algorithm = webhook.getAlgorithm();
+    this.batchSize = webhook.getBatchSize();
+    this.batchLinger = webhook.getBatchLinger();
+    this.coalesceWindow = webhook.getCoalesceWindow();
+    this.coalesceFields = Coalescer.parseFields(webhook.getCoalesceKey());
+    this.rateLimit = webhook.getRateLimit();
+    this.rateBurst = webhook.getRateBurst();
+    this.matcher = EventTypeMatcher.compile(webhook.getEventTypes());
+    this.realmWeight = realmWeight;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public String getRealmId() {
+    return realmId;
+  }
+
+  public String getUrl() {
+    return url;
+  }
+
+  public String getSecret() {
+    return secret;
+  }
+
+  public String getAlgorithm() {
+    return algorithm;
+  }
+
+  public Integer getBatchSize() {
+    return batchSize;
+  }
+
+  public Integer getBatchLinger() {
+    return batchLinger;
+  }
+
+  public Integer getCoalesceWindow() {
+    return coalesceWindow;
+  }
+
+  public boolean isCoalesced() {
+    return coalesceWindow != null && coalesceWindow > 0;
+  }
+
+  /** The key of the event, which events coalesced into the same send share */
+  public String getCoalesceKey(ExtendedAdminEvent event) {
+    return id + Coalescer.key(coalesceFields, event);
+  }
+
+  public Integer getRateLimit() {
+    return rateLimit;
+  }
+
+  public Integer getRateBurst() {
+    return rateBurst;
+  }
+
+  /** The weight of the webhook's realm in the sharing of sends among realms */
+  public int getRealmWeight() {
+    return realmWeight;
+  }
+
+  public EventTypeMatcher getMatcher() {
+    return matcher;
+  }
+
+  /** Whether the webhook is subscribed to events of the type */
+  public boolean isEnabledFor(String type) {
+    return matcher.matches(type);
+  }
+
+  public boolean isBatched() {
+    return batchSize != null && batchSize > 1;
+  }
+}
@@ -0,0 +1,92 @@
+package io.phasetwo.keycloak.events;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Caps the retries of a node at a percentage of its first attempts over a sliding window, plus a
+ * minimum number of retries per second, so that when a shared endpoint has a blip the retries don't
+ * grow to several times the fresh traffic. The window is kept as a ring of buckets, each counting
+ * the first attempts and retries of a slice of the window.
+ */
+public class RetryBudget {
+
+  static final int BUCKETS = 10;
+
+  private final int percent;
+  private final long minRetries;
+  private final long windowMillis;
+  private final long bucketNanos;
+  private final LongSupplier clock;
+  private final long[] attempts = new long[BUCKETS];
+  private final long[] retries = new long[BUCKETS];
+  private final long[] slices = new long[BUCKETS];
+  private long rejected = 0;
+
+  RetryBudget(int percent, int minPerSecond, long windowMillis) {
+    this(percent, minPerSecond, windowMillis, System::nanoTime);
+  }
+
+  RetryBudget(int percent, int minPerSecond, long windowMillis, LongSupplier clock) {
+    this.percent = percent;
+    this.minRetries = (long) minPerSecond * windowMillis / 1000l;
+    this.windowMillis = windowMillis;
+    this.bucketNanos = Math.max(1l, TimeUnit.MILLISECONDS.toNanos(windowMillis) / BUCKETS);
+    this.clock = clock;
+  }
+
+  /** Count a first attempt, which adds to the budget */
+  public synchronized void onAttempt() {
+    attempts[bucket()]++;
+  }
+
+  /** Take a retry from the budget, or return false if the budget is used up */
+  public synchronized boolean tryRetry() {
+    int i = bucket();
+    long a = 0l;
+    long r = 0l;
+    for (int j = 0; j < BUCKETS; j++) {
+      // buckets that weren't touched for a whole window are stale
+      if (slices[i] - slices[j] >= BUCKETS) continue;
+      a += attempts[j];
+      r += retries[j];
+    }
+    if (r >= minRetries + a * percent / 100) {
+      rejected++;
+      return false;
+    }
+    retries[i]++;
+    return true;
+  }
+
+  public long getWindowMillis() {
+    return windowMillis;
+  }
+
+  /** The number of retries that were over the budget */
+  public synchronized long getRejected() {
+    return rejected;
+  }
+
+  /** The index of the current bucket, emptied if it last held an older slice of time */
+  private int bucket() {
+    long slice = clock.getAsLong() / bucketNanos;
+    int i = (int) Math.floorMod(slice, (long) BUCKETS);
+    if (slices[i] != slice) {
+      slices[i] = slice;
+      attempts[i] = 0l;
+      retries[i] = 0l;
+    }
+    return i;
+  }
+
+  /**
+   * The delay plus a random part of the spread, so that tasks that would all go at once, such as
+   * those held back while an endpoint was down, are spread out when it recovers
+   */
+  static long jitter(long delay, long spread) {
+    if (spread <= 0) return delay;
+    return delay + ThreadLocalRandom.current().nextLong(spread + 1);
+  }
+}
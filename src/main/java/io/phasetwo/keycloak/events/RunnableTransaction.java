@@ -1,17 +1,32 @@
 package io.phasetwo.keycloak.events;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.models.AbstractKeycloakTransaction;
 
+/**
+ * Runs the added runnables once the transaction it is enlisted in has been committed, in the order
+ * they were added, and drops them if it is rolled back. With an executor, the runnables are handed
+ * to it on commit, so that the committing thread, which is often answering a user's request,
+ * doesn't wait for them.
+ */
 @JBossLog
 public class RunnableTransaction extends AbstractKeycloakTransaction {
 
   protected final List<Runnable> runnables;
+  private final Executor executor;
 
   public RunnableTransaction() {
+    this(null);
+  }
+
+  public RunnableTransaction(Executor executor) {
     this.runnables = new LinkedList<Runnable>();
+    this.executor = executor;
   }
 
   public void addRunnable(Runnable r) {
@@ -20,6 +35,21 @@ public class RunnableTransaction extends AbstractKeycloakTransaction {
 
   @Override
   protected void commitImpl() {
+    if (executor == null || runnables.isEmpty()) {
+      run(runnables);
+      return;
+    }
+    final List<Runnable> committed = new ArrayList<>(runnables);
+    runnables.clear();
+    try {
+      executor.execute(() -> run(committed));
+    } catch (RejectedExecutionException e) {
+      log.debug("Post-commit executor rejected runnables. Running them now.");
+      run(committed);
+    }
+  }
+
+  private static void run(List<Runnable> runnables) {
     try {
       runnables.forEach(
           task -> {
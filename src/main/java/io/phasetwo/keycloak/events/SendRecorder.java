@@ -0,0 +1,168 @@
+package io.phasetwo.keycloak.events;
+
+import io.phasetwo.keycloak.model.WebhookProvider;
+import io.phasetwo.keycloak.model.WebhookSendAttempt;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Records the outcomes of webhook sends write-behind. A send adds its outcome to a lock-free queue
+ * and moves on, and the queue is flushed a batch at a time, each batch in a single transaction,
+ * when a batch is waiting or on an interval. If a batch fails, its outcomes are recorded one at a
+ * time, so that one bad outcome, such as the send of a webhook that was just removed, doesn't lose
+ * the others. When the queue is full, outcomes are dropped, so that a database outage doesn't fill
+ * the heap.
+ */
+@JBossLog
+public class SendRecorder {
+
+  public static final String SEND_RECORD_BATCH_SIZE = "sendRecordBatchSize";
+  public static final String SEND_RECORD_INTERVAL = "sendRecordInterval";
+  public static final String SEND_RECORD_QUEUE_CAPACITY = "sendRecordQueueCapacity";
+
+  static final int DEFAULT_BATCH_SIZE = 100;
+  static final long DEFAULT_INTERVAL = 1000l;
+  static final int DEFAULT_QUEUE_CAPACITY = 100000;
+
+  private final SenderExecutor exec;
+  private final int batchSize;
+  private final long interval;
+  private final int capacity;
+  private final ConcurrentLinkedQueue<WebhookSendAttempt> queue = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicBoolean woken = new AtomicBoolean(false);
+  private final AtomicBoolean flushing = new AtomicBoolean(false);
+  private volatile Consumer<List<WebhookSendAttempt>> sink;
+
+  SendRecorder(SenderExecutor exec, int batchSize, long interval, int capacity) {
+    this.exec = exec;
+    this.batchSize = batchSize;
+    this.interval = interval;
+    this.capacity = capacity;
+  }
+
+  public static SendRecorder create(Config.Scope scope, SenderExecutor exec) {
+    int batchSize = Math.max(1, scope.getInt(SEND_RECORD_BATCH_SIZE, DEFAULT_BATCH_SIZE));
+    long interval = Math.max(1l, scope.getLong(SEND_RECORD_INTERVAL, DEFAULT_INTERVAL));
+    int capacity =
+        Math.max(batchSize, scope.getInt(SEND_RECORD_QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY));
+    log.infof(
+        "%s %d, %s %d, %s %d",
+        SEND_RECORD_BATCH_SIZE,
+        batchSize,
+        SEND_RECORD_INTERVAL,
+        interval,
+        SEND_RECORD_QUEUE_CAPACITY,
+        capacity);
+    return new SendRecorder(exec, batchSize, interval, capacity);
+  }
+
+  public void start(KeycloakSessionFactory factory) {
+    start(
+        (batch) ->
+            KeycloakModelUtils.runJobInTransaction(
+                factory,
+                (session) -> session.getProvider(WebhookProvider.class).recordSends(batch)));
+  }
+
+  /** Start recording the outcomes with the sink, which records a batch in one transaction */
+  void start(Consumer<List<WebhookSendAttempt>> sink) {
+    this.sink = sink;
+    schedulePoll();
+  }
+
+  /** Queue the outcome to be recorded, without waiting for it */
+  public void record(WebhookSendAttempt attempt) {
+    if (size.incrementAndGet() > capacity) {
+      size.decrementAndGet();
+      log.debugf("Send record queue is full. Dropping outcome of send %s.", attempt.getId());
+      return;
+    }
+    queue.add(attempt);
+    if (size.get() >= batchSize) wake();
+  }
+
+  /** The number of outcomes waiting to be recorded */
+  public int getPending() {
+    return size.get();
+  }
+
+  private void wake() {
+    // once the scheduler is shut down, the waiting outcomes are recorded by stop()
+    if (sink == null || exec.isShutdown() || !woken.compareAndSet(false, true)) return;
+    exec.scheduleBackground(
+        () -> {
+          woken.set(false);
+          flush();
+        },
+        0l,
+        TimeUnit.MILLISECONDS);
+  }
+
+  private void schedulePoll() {
+    if (exec.isShutdown()) return;
+    exec.scheduleBackground(
+        () -> {
+          try {
+            flush();
+          } finally {
+            schedulePoll();
+          }
+        },
+        interval,
+        TimeUnit.MILLISECONDS);
+  }
+
+  /** Record the waiting outcomes, a batch per transaction */
+  void flush() {
+    if (sink == null || !flushing.compareAndSet(false, true)) return;
+    try {
+      List<WebhookSendAttempt> batch;
+      while (!(batch = take()).isEmpty()) {
+        record(batch);
+      }
+    } finally {
+      flushing.set(false);
+    }
+  }
+
+  private List<WebhookSendAttempt> take() {
+    List<WebhookSendAttempt> batch = new ArrayList<>(batchSize);
+    WebhookSendAttempt attempt;
+    while (batch.size() < batchSize && (attempt = queue.poll()) != null) {
+      batch.add(attempt);
+    }
+    size.addAndGet(-batch.size());
+    return batch;
+  }
+
+  private void record(List<WebhookSendAttempt> batch) {
+    try {
+      sink.accept(batch);
+    } catch (Exception e) {
+      if (batch.size() == 1) {
+        log.warnf(e, "Error recording send %s", batch.get(0).getId());
+        return;
+      }
+      log.debugf(e, "Error recording %d sends. Recording them one at a time.", batch.size());
+      batch.forEach(a -> record(List.of(a)));
+    }
+  }
+
+  /**
+   * Record the outcomes that are still waiting. This is called after the scheduler has finished, so
+   * that the outcomes of the last sends are recorded too.
+   */
+  public void stop() {
+    flush();
+  }
+}
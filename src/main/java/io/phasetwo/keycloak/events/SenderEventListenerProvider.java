@@ -5,7 +5,10 @@ import com.google.common.collect.Maps;
 import io.phasetwo.keycloak.config.Configurable;
 import java.io.IOException;
 import java.util.Map;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.TimeUnit;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.events.Event;
@@ -13,14 +16,22 @@ import org.keycloak.events.EventListenerProvider;
 import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.utils.ModelToRepresentation;
+import org.keycloak.representations.idm.AdminEventRepresentation;
+import org.keycloak.representations.idm.EventRepresentation;
 
 @JBossLog
 public abstract class SenderEventListenerProvider implements EventListenerProvider, Configurable {
 
+  /** Marks a task that was delayed to a rate limit slot it already reserved */
+  private static final String RATE_RESERVED = "rateReserved";
+
+  /** Counts the times a task was parked by an open circuit breaker */
+  private static final String BREAKER_PARKS = "breakerParks";
+
   protected final KeycloakSession session;
-  protected final ScheduledExecutorService exec;
+  protected final SenderExecutor exec;
 
-  public SenderEventListenerProvider(KeycloakSession session, ScheduledExecutorService exec) {
+  public SenderEventListenerProvider(KeycloakSession session, SenderExecutor exec) {
     this.session = session;
     this.exec = exec;
   }
@@ -57,6 +68,9 @@ public abstract class SenderEventListenerProvider implements EventListenerProvid
     private final Object event;
     private final BackOff backOff;
     private Map<String, String> properties = Maps.newHashMap();
+    private int attempts = 0;
+    private Integer status;
+    private String error;
 
     public SenderTask(Object event, BackOff backOff) {
       this.event = event;
@@ -74,6 +88,25 @@ public abstract class SenderEventListenerProvider implements EventListenerProvid
     public Map<String, String> getProperties() {
       return this.properties;
     }
+
+    /** The number of times the task has been sent */
+    public int getAttempts() {
+      return this.attempts;
+    }
+
+    /** The HTTP status of the last attempt, or null if there was no response */
+    public Integer getStatus() {
+      return this.status;
+    }
+
+    public void setStatus(Integer status) {
+      this.status = status;
+    }
+
+    /** The error of the last attempt, if it failed without a response */
+    public String getError() {
+      return this.error;
+    }
   }
 
   class SenderException extends Exception {
@@ -105,21 +138,36 @@ public abstract class SenderEventListenerProvider implements EventListenerProvid
     }
     try {
       exec.schedule(
-          () -> {
-            try {
-              send(task);
-            } catch (SenderException | IOException e) {
-              log.trace("sending exception", e);
-              if (e instanceof SenderException && !((SenderException) e).isRetryable()) return;
-              log.tracef(
-                  "BackOff policy is %s",
-                  BackOff.STOP_BACKOFF == task.getBackOff() ? "STOP" : "BACKOFF");
-              long backOffTime = task.getBackOff().nextBackOffMillis();
-              if (backOffTime == BackOff.STOP) return;
-              log.tracef("retrying in %d due to %s", backOffTime, e.getCause());
-              schedule(task, backOffTime, TimeUnit.MILLISECONDS);
-            } catch (Throwable t) {
-              log.warn("Uncaught Sender error", t);
+          getKey(task),
+          new SenderExecutor.Job() {
+            @Override
+            public CompletionStage<?> run() {
+              return dispatch(task);
+            }
+
+            @Override
+            public void dropped() {
+              afterDrop(task);
+            }
+
+            @Override
+            public void spilled() {
+              afterSpill(task);
+            }
+
+            @Override
+            public Lane lane() {
+              return getLane(task);
+            }
+
+            @Override
+            public String realm() {
+              return getRealm(task);
+            }
+
+            @Override
+            public int weight() {
+              return getWeight(task);
             }
           },
           delay,
@@ -129,5 +177,236 @@ public abstract class SenderEventListenerProvider implements EventListenerProvid
     }
   }
 
+  /** The dispatch lane of the task, by the type of its event */
+  Lane getLane(SenderTask task) {
+    if (task.getEvent() instanceof AdminEventRepresentation) return Lane.ADMIN;
+    return Lane.USER;
+  }
+
+  /** The realm of the task's event, whose share of the sends in flight it uses */
+  String getRealm(SenderTask task) {
+    if (task.getEvent() instanceof AdminEventRepresentation) {
+      return ((AdminEventRepresentation) task.getEvent()).getRealmId();
+    }
+    if (task.getEvent() instanceof EventRepresentation) {
+      return ((EventRepresentation) task.getEvent()).getRealmId();
+    }
+    return null;
+  }
+
+  /** The weight of the task's realm, relative to the other realms with sends waiting */
+  int getWeight(SenderTask task) {
+    return 1;
+  }
+
+  /** The key of the delivery queue for the task's endpoint */
+  String getKey(SenderTask task) {
+    return getClass().getName();
+  }
+
+  /**
+   * Send the task, returning a stage that completes when the send and any retry are handled. If the
+   * endpoint is rate limited and over its limit, the task is delayed until its reserved slot. While
+   * the endpoint's circuit breaker is open, the task is parked until the breaker lets a trial send
+   * through. Parks are not charged against the task's BackOff, which is left for failed sends, but
+   * are capped separately by {@link SenderExecutor#getBreakerMaxParks}, past which the task is
+   * given up. Parked tasks are spread over half of the breaker's open time, so that they don't all
+   * go at once when it closes.
+   */
+  private CompletionStage<?> dispatch(SenderTask task) {
+    if (task.getProperties().remove(RATE_RESERVED) == null) {
+      Optional<RateLimiter> rateLimiter = exec.getRateLimiter(getKey(task));
+      long wait = rateLimiter.isPresent() ? rateLimiter.get().reserve() : 0l;
+      if (wait > 0) {
+        log.tracef("Rate limit for %s reached. Delaying task for %d ns", getKey(task), wait);
+        task.getProperties().put(RATE_RESERVED, "true");
+        schedule(task, wait, TimeUnit.NANOSECONDS);
+        return CompletableFuture.completedFuture(null);
+      }
+    }
+    final CircuitBreaker breaker = exec.breaker(getKey(task));
+    if (!breaker.allowRequest()) {
+      String parked = task.getProperties().get(BREAKER_PARKS);
+      int parks = parked == null ? 1 : Integer.parseInt(parked) + 1;
+      if (parks > exec.getBreakerMaxParks()) {
+        task.error = "Circuit breaker open";
+        giveUp(task);
+        return CompletableFuture.completedFuture(null);
+      }
+      task.getProperties().put(BREAKER_PARKS, Integer.toString(parks));
+      long delay = RetryBudget.jitter(breaker.getRetryDelay(), breaker.getOpenMillis() / 2);
+      log.debugf("Circuit breaker for %s is open. Parking task for %d", breaker.getKey(), delay);
+      schedule(task, delay, TimeUnit.MILLISECONDS);
+      return CompletableFuture.completedFuture(null);
+    }
+    final ConcurrencyLimit limit = exec.limit(getKey(task));
+    if (task.attempts == 0) exec.getRetryBudget().ifPresent(RetryBudget::onAttempt);
+    task.attempts++;
+    task.status = null;
+    task.error = null;
+    final long start = System.nanoTime();
+    if (isSendAsync()) return dispatchAsync(task, breaker, limit, start);
+    boolean failed = true;
+    try {
+      send(task);
+      failed = false;
+    } catch (SenderException | IOException e) {
+      retry(task, e);
+    } catch (Throwable t) {
+      uncaught(task, t);
+    }
+    onOutcome(breaker, limit, start, failed);
+    if (!failed) complete(task, true);
+    return CompletableFuture.completedFuture(null);
+  }
+
+  /** Start the send, and let its completion decide on the retry, without blocking this thread */
+  private CompletionStage<?> dispatchAsync(
+      SenderTask task, CircuitBreaker breaker, ConcurrencyLimit limit, long start) {
+    try {
+      return sendAsync(task)
+          .whenComplete(
+              (v, t) -> {
+                onOutcome(breaker, limit, start, t != null);
+                if (t == null) {
+                  complete(task, true);
+                  return;
+                }
+                Throwable cause =
+                    (t instanceof CompletionException && t.getCause() != null) ? t.getCause() : t;
+                if (cause instanceof SenderException || cause instanceof IOException) {
+                  retry(task, (Exception) cause);
+                } else {
+                  uncaught(task, cause);
+                }
+              });
+    } catch (Throwable t) {
+      onOutcome(breaker, limit, start, true);
+      uncaught(task, t);
+      return CompletableFuture.completedFuture(null);
+    }
+  }
+
+  /**
+   * Give up a task whose send failed with an unexpected error, so that it is completed like any
+   * other task that won't be retried
+   */
+  private void uncaught(SenderTask task, Throwable t) {
+    log.warn("Uncaught Sender error", t);
+    task.error = t.toString();
+    giveUp(task);
+  }
+
+  /** Tell the endpoint's circuit breaker and concurrency limit how a send went */
+  private void onOutcome(
+      CircuitBreaker breaker, ConcurrencyLimit limit, long start, boolean failed) {
+    limit.onSample(System.nanoTime() - start, failed);
+    if (failed) breaker.onFailure();
+    else breaker.onSuccess();
+  }
+
+  /** Reschedule a failed task if it is retryable and its BackOff allows */
+  protected void retry(SenderTask task, Exception e) {
+    log.trace("sending exception", e);
+    Throwable cause = e instanceof SenderException ? e.getCause() : e;
+    if (cause != null) task.error = cause.toString();
+    if (e instanceof SenderException && !((SenderException) e).isRetryable()) {
+      giveUp(task);
+      return;
+    }
+    log.tracef(
+        "BackOff policy is %s", BackOff.STOP_BACKOFF == task.getBackOff() ? "STOP" : "BACKOFF");
+    long backOffTime = task.getBackOff().nextBackOffMillis();
+    if (backOffTime == BackOff.STOP) {
+      giveUp(task);
+      return;
+    }
+    Optional<RetryBudget> budget = exec.getRetryBudget();
+    if (budget.isPresent() && !budget.get().tryRetry()) {
+      overBudget(task, budget.get());
+      return;
+    }
+    log.tracef("retrying in %d due to %s", backOffTime, e.getCause());
+    schedule(task, backOffTime, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Park a task whose retry is over the budget, to be retried after a jittered window, or give it
+   * up if it can't be parked
+   */
+  private void overBudget(SenderTask task, RetryBudget budget) {
+    long delay = RetryBudget.jitter(budget.getWindowMillis(), budget.getWindowMillis());
+    boolean parked = false;
+    try {
+      parked = park(task, delay);
+    } catch (Exception e) {
+      log.warn("Error parking task", e);
+    }
+    if (parked) {
+      log.debugf("Retry budget used up. Parked task for %d", delay);
+    } else {
+      log.warnf("Retry budget used up. Giving up task for %s", getKey(task));
+      complete(task, false);
+    }
+  }
+
+  private void giveUp(SenderTask task) {
+    log.debugf(
+        "Giving up task for %s after %d attempts (status %s, error %s)",
+        getKey(task), task.getAttempts(), task.getStatus(), task.getError());
+    complete(task, false);
+  }
+
+  private void complete(SenderTask task, boolean delivered) {
+    try {
+      afterComplete(task, delivered);
+    } catch (Exception e) {
+      log.warn("Error afterComplete", e);
+    }
+  }
+
+  /** Called once a task is done for good, because it was delivered, or won't be retried */
+  protected void afterComplete(SenderTask task, boolean delivered) {}
+
+  /** Called when a task is dropped because the delivery queue of its endpoint is full */
+  protected void afterDrop(SenderTask task) {}
+
+  /**
+   * Called when a task is spilled because the delivery queue of its endpoint is full, to keep the
+   * task somewhere durable to be sent later. By default, the task is dropped.
+   */
+  protected void afterSpill(SenderTask task) {
+    afterDrop(task);
+  }
+
+  /**
+   * Called when a task's retry is over the retry budget, to keep the task somewhere durable to be
+   * retried after the delay. Returns false if the task can't be parked, and is given up.
+   */
+  protected boolean park(SenderTask task, long delayMillis) {
+    return false;
+  }
+
   abstract void send(SenderTask task) throws SenderException, IOException;
+
+  /** Override along with {@link #sendAsync(SenderTask)} to send using a non-blocking client */
+  boolean isSendAsync() {
+    return false;
+  }
+
+  /**
+   * Send without blocking the calling thread. The returned future completes exceptionally with a
+   * {@link SenderException} or {@link IOException} if the send failed. By default, this sends with
+   * {@link #send(SenderTask)} on the calling thread, and returns a future that is already done.
+   */
+  CompletableFuture<Void> sendAsync(SenderTask task) {
+    CompletableFuture<Void> future = new CompletableFuture<>();
+    try {
+      send(task);
+      future.complete(null);
+    } catch (Exception e) {
+      future.completeExceptionally(e);
+    }
+    return future;
+  }
 }
@@ -0,0 +1,650 @@
+package io.phasetwo.keycloak.events;
+
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.Config;
+
+/**
+ * Schedules and runs the sender tasks for a sender factory. In the default {@code pool} dispatch
+ * mode, tasks run on the threads of the scheduler. In {@code virtual} mode, the scheduler only
+ * handles timing, and each send runs on its own virtual thread, with a cap on the number of sends
+ * in flight at once, so that slow endpoints don't starve delivery to the others. A send is admitted
+ * under the cap before its thread is started, so a backlog doesn't start a thread per send.
+ *
+ * <p>Due tasks wait in a bounded {@link DeliveryQueue} per endpoint key, which limits how many of
+ * them are in flight, and sheds load when the endpoint is backing up.
+ *
+ * <p>Tasks are dispatched in the {@link Lane} of their event. Besides the weights of the lanes in
+ * the delivery queues, a number of sends in flight are reserved for the admin and system lanes, so
+ * that they don't wait for threads that are busy with user events.
+ *
+ * <p>The other sends in flight are shared among realms by a {@link FairDispatcher}, in proportion
+ * to the weights of the realms.
+ *
+ * <p>Delayed sends, such as retries, wait on a {@link TimingWheel}, so that a large backlog of
+ * retries doesn't fill the scheduler's queue. The wheel ticks on a background thread of its own,
+ * along with housekeeping jobs such as the polls of the outbox and send recorder, so that they
+ * aren't held up when every thread of the pool is blocked on a slow endpoint. A tick that is held
+ * up by a job catches up on the ticks it missed. Retries are capped by a {@link RetryBudget} shared
+ * by all endpoints.
+ */
+@JBossLog
+public class SenderExecutor {
+
+  public static final String DISPATCH_MODE = "dispatchMode";
+  public static final String MAX_IN_FLIGHT = "maxInFlight";
+  public static final String QUEUE_CAPACITY = "queueCapacity";
+  public static final String QUEUE_CONCURRENCY = "queueConcurrency";
+  public static final String QUEUE_OVERFLOW = "queueOverflow";
+  public static final String QUEUE_LIMITER = "queueLimiter";
+  public static final String QUEUE_MAX_CONCURRENCY = "queueMaxConcurrency";
+  public static final String BREAKER_FAILURE_THRESHOLD = "breakerFailureThreshold";
+  public static final String BREAKER_OPEN_TIMEOUT = "breakerOpenTimeout";
+  public static final String BREAKER_MAX_PARKS = "breakerMaxParks";
+  public static final String LANE_WEIGHTS = "laneWeights";
+  public static final String LANE_RESERVED = "laneReserved";
+  public static final String FAIR_QUEUING = "fairQueuing";
+  public static final String RETRY_TICK = "retryTick";
+  public static final String RETRY_BUDGET = "retryBudget";
+  public static final String RETRY_BUDGET_PERCENT = "retryBudgetPercent";
+  public static final String RETRY_BUDGET_MIN_PER_SECOND = "retryBudgetMinPerSecond";
+  public static final String RETRY_BUDGET_WINDOW = "retryBudgetWindow";
+
+  static final int DEFAULT_MAX_IN_FLIGHT = 1000;
+  static final int DEFAULT_QUEUE_CAPACITY = 10000;
+  static final int DEFAULT_QUEUE_CONCURRENCY = 8;
+  static final int DEFAULT_QUEUE_MAX_CONCURRENCY = 64;
+  static final int DEFAULT_BREAKER_FAILURE_THRESHOLD = 5;
+  static final long DEFAULT_BREAKER_OPEN_TIMEOUT = 30000l;
+  static final int DEFAULT_BREAKER_MAX_PARKS = 20;
+  static final int DEFAULT_LANE_RESERVED = 2;
+  static final long DEFAULT_RETRY_TICK = 10l;
+  static final int DEFAULT_RETRY_BUDGET_PERCENT = 20;
+  static final int DEFAULT_RETRY_BUDGET_MIN_PER_SECOND = 10;
+  static final long DEFAULT_RETRY_BUDGET_WINDOW = 10000l;
+
+  public enum Mode {
+    POOL,
+    VIRTUAL;
+
+    static Mode from(String input) {
+      try {
+        return Mode.valueOf(input.toUpperCase());
+      } catch (Exception e) {
+        log.warnf("Unknown %s %s. Using %s", DISPATCH_MODE, input, POOL);
+        return POOL;
+      }
+    }
+  }
+
+  /** A unit of work whose returned stage completes when it is done, freeing its queue slot */
+  @FunctionalInterface
+  public interface Job {
+    CompletionStage<?> run();
+
+    /** Called if the job is dropped from a full delivery queue without being run */
+    default void dropped() {}
+
+    /**
+     * Called instead of {@link #dropped} if the full delivery queue spills, to keep the job
+     * somewhere durable to be run later. By default, the job is dropped.
+     */
+    default void spilled() {
+      dropped();
+    }
+
+    /** The lane the job waits in, and is dispatched from */
+    default Lane lane() {
+      return Lane.USER;
+    }
+
+    /** The realm whose share of the sends in flight the job uses */
+    default String realm() {
+      return null;
+    }
+
+    /** The weight of the job's realm */
+    default int weight() {
+      return 1;
+    }
+  }
+
+  private final ScheduledExecutorService scheduler;
+  private final ScheduledExecutorService background;
+  private final ExecutorService workers;
+  private final Semaphore inFlight;
+  private final Queue<Runnable> admissions = new ConcurrentLinkedQueue<>();
+  private final int queueCapacity;
+  private final int queueConcurrency;
+  private final ConcurrencyLimit.Algorithm queueLimiter;
+  private final int queueMaxConcurrency;
+  private final DeliveryQueue.Overflow queueOverflow;
+  private final ConcurrentMap<String, DeliveryQueue> queues = new ConcurrentHashMap<>();
+  private final int breakerFailureThreshold;
+  private final long breakerOpenTimeout;
+  private final int breakerMaxParks;
+  private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+  private final ConcurrentMap<String, RateLimiter> rateLimiters = new ConcurrentHashMap<>();
+  private final int[] laneWeights;
+  private final ExecutorService reservedWorkers;
+  private final Semaphore reserved;
+  private final FairDispatcher fair;
+  private final TimingWheel wheel;
+  private final RetryBudget retryBudget;
+
+  SenderExecutor(Builder b) {
+    final int fairSlots;
+    if (b.mode == Mode.VIRTUAL) {
+      this.scheduler =
+          MoreExecutors.getExitingScheduledExecutorService(new ScheduledThreadPoolExecutor(1));
+      this.workers =
+          Executors.newThreadPerTaskExecutor(
+              Thread.ofVirtual().name("ext-event-sender-", 0).factory());
+      this.inFlight = new Semaphore(b.maxInFlight);
+      // the reserved sends run on virtual threads too
+      this.reservedWorkers = null;
+      fairSlots = b.maxInFlight;
+    } else {
+      this.scheduler =
+          MoreExecutors.getExitingScheduledExecutorService(
+              new ScheduledThreadPoolExecutor(b.threads));
+      this.workers = null;
+      this.inFlight = null;
+      this.reservedWorkers =
+          b.laneReserved > 0
+              ? MoreExecutors.getExitingExecutorService(
+                  (ThreadPoolExecutor) Executors.newFixedThreadPool(b.laneReserved))
+              : null;
+      fairSlots = b.threads;
+    }
+    this.background =
+        MoreExecutors.getExitingScheduledExecutorService(
+            new ScheduledThreadPoolExecutor(
+                1, new ThreadFactoryBuilder().setNameFormat("ext-event-background-%d").build()));
+    this.laneWeights = b.laneWeights;
+    this.reserved = b.laneReserved > 0 ? new Semaphore(b.laneReserved) : null;
+    this.queueCapacity = b.queueCapacity;
+    this.queueConcurrency = b.queueConcurrency;
+    this.queueLimiter = b.queueLimiter;
+    this.queueMaxConcurrency = b.queueMaxConcurrency;
+    this.queueOverflow = b.queueOverflow;
+    this.breakerFailureThreshold = b.breakerFailureThreshold;
+    this.breakerOpenTimeout = b.breakerOpenTimeout;
+    this.breakerMaxParks = b.breakerMaxParks;
+    this.fair = b.fairQueuing ? new FairDispatcher(fairSlots, this::execute) : null;
+    this.retryBudget =
+        b.retryBudget
+            ? new RetryBudget(b.retryBudgetPercent, b.retryBudgetMinPerSecond, b.retryBudgetWindow)
+            : null;
+    this.wheel = b.retryTick > 0 ? new TimingWheel(b.retryTick, TimeUnit.MILLISECONDS) : null;
+    if (wheel != null) {
+      background.scheduleAtFixedRate(
+          wheel::advance, b.retryTick, b.retryTick, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  public static SenderExecutor create(Config.Scope scope) {
+    return builder().from(scope).build();
+  }
+
+  public static Builder builder() {
+    return new Builder();
+  }
+
+  /**
+   * The settings of a sender executor, which start at the defaults and are filled from the config
+   * of a sender factory by {@link #from}.
+   */
+  public static class Builder {
+    private Mode mode = Mode.POOL;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+    private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private int queueConcurrency = DEFAULT_QUEUE_CONCURRENCY;
+    private ConcurrencyLimit.Algorithm queueLimiter = ConcurrencyLimit.Algorithm.AIMD;
+    private int queueMaxConcurrency = DEFAULT_QUEUE_MAX_CONCURRENCY;
+    private DeliveryQueue.Overflow queueOverflow = DeliveryQueue.Overflow.DROP_OLDEST;
+    private int breakerFailureThreshold = DEFAULT_BREAKER_FAILURE_THRESHOLD;
+    private long breakerOpenTimeout = DEFAULT_BREAKER_OPEN_TIMEOUT;
+    private int breakerMaxParks = DEFAULT_BREAKER_MAX_PARKS;
+    private int[] laneWeights = Lane.parseWeights(Lane.DEFAULT_WEIGHTS);
+    private int laneReserved = DEFAULT_LANE_RESERVED;
+    private boolean fairQueuing = true;
+    private long retryTick = DEFAULT_RETRY_TICK;
+    private boolean retryBudget = true;
+    private int retryBudgetPercent = DEFAULT_RETRY_BUDGET_PERCENT;
+    private int retryBudgetMinPerSecond = DEFAULT_RETRY_BUDGET_MIN_PER_SECOND;
+    private long retryBudgetWindow = DEFAULT_RETRY_BUDGET_WINDOW;
+
+    Builder() {}
+
+    /** Fill the settings from the config of a sender factory */
+    public Builder from(Config.Scope scope) {
+      mode = Mode.from(scope.get(DISPATCH_MODE, Mode.POOL.name()));
+      queueCapacity = scope.getInt(QUEUE_CAPACITY, DEFAULT_QUEUE_CAPACITY);
+      queueConcurrency = scope.getInt(QUEUE_CONCURRENCY, DEFAULT_QUEUE_CONCURRENCY);
+      queueOverflow =
+          DeliveryQueue.Overflow.from(
+              scope.get(QUEUE_OVERFLOW, DeliveryQueue.Overflow.DROP_OLDEST.name()));
+      log.infof(
+          "%s %d, %s %d, %s %s",
+          QUEUE_CAPACITY,
+          queueCapacity,
+          QUEUE_CONCURRENCY,
+          queueConcurrency,
+          QUEUE_OVERFLOW,
+          queueOverflow);
+      queueLimiter =
+          ConcurrencyLimit.Algorithm.from(
+              scope.get(QUEUE_LIMITER, ConcurrencyLimit.Algorithm.AIMD.name()));
+      queueMaxConcurrency = scope.getInt(QUEUE_MAX_CONCURRENCY, DEFAULT_QUEUE_MAX_CONCURRENCY);
+      log.infof(
+          "%s %s, %s %d", QUEUE_LIMITER, queueLimiter, QUEUE_MAX_CONCURRENCY, queueMaxConcurrency);
+      breakerFailureThreshold =
+          scope.getInt(BREAKER_FAILURE_THRESHOLD, DEFAULT_BREAKER_FAILURE_THRESHOLD);
+      breakerOpenTimeout = scope.getLong(BREAKER_OPEN_TIMEOUT, DEFAULT_BREAKER_OPEN_TIMEOUT);
+      breakerMaxParks = scope.getInt(BREAKER_MAX_PARKS, DEFAULT_BREAKER_MAX_PARKS);
+      log.infof(
+          "%s %d, %s %d, %s %d",
+          BREAKER_FAILURE_THRESHOLD,
+          breakerFailureThreshold,
+          BREAKER_OPEN_TIMEOUT,
+          breakerOpenTimeout,
+          BREAKER_MAX_PARKS,
+          breakerMaxParks);
+      laneWeights = Lane.parseWeights(scope.get(LANE_WEIGHTS, Lane.DEFAULT_WEIGHTS));
+      laneReserved = scope.getInt(LANE_RESERVED, DEFAULT_LANE_RESERVED);
+      log.infof(
+          "%s %s, %s %d",
+          LANE_WEIGHTS, scope.get(LANE_WEIGHTS, Lane.DEFAULT_WEIGHTS), LANE_RESERVED, laneReserved);
+      fairQueuing = scope.getBoolean(FAIR_QUEUING, true);
+      retryTick = scope.getLong(RETRY_TICK, DEFAULT_RETRY_TICK);
+      log.infof("%s %b, %s %d", FAIR_QUEUING, fairQueuing, RETRY_TICK, retryTick);
+      retryBudget = scope.getBoolean(RETRY_BUDGET, true);
+      if (retryBudget) {
+        retryBudgetPercent = scope.getInt(RETRY_BUDGET_PERCENT, DEFAULT_RETRY_BUDGET_PERCENT);
+        retryBudgetMinPerSecond =
+            scope.getInt(RETRY_BUDGET_MIN_PER_SECOND, DEFAULT_RETRY_BUDGET_MIN_PER_SECOND);
+        retryBudgetWindow = scope.getLong(RETRY_BUDGET_WINDOW, DEFAULT_RETRY_BUDGET_WINDOW);
+        log.infof(
+            "%s %d, %s %d, %s %d",
+            RETRY_BUDGET_PERCENT,
+            retryBudgetPercent,
+            RETRY_BUDGET_MIN_PER_SECOND,
+            retryBudgetMinPerSecond,
+            RETRY_BUDGET_WINDOW,
+            retryBudgetWindow);
+      } else {
+        log.infof("%s false", RETRY_BUDGET);
+      }
+      if (mode == Mode.VIRTUAL) {
+        maxInFlight = scope.getInt(MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT);
+        log.infof("%s %s with %s %d", DISPATCH_MODE, mode, MAX_IN_FLIGHT, maxInFlight);
+      } else {
+        log.infof("%s %s", DISPATCH_MODE, mode);
+      }
+      return this;
+    }
+
+    public Builder mode(Mode mode) {
+      this.mode = mode;
+      return this;
+    }
+
+    /** The number of threads of the scheduler in {@code pool} mode */
+    public Builder threads(int threads) {
+      this.threads = threads;
+      return this;
+    }
+
+    /** The number of sends in flight at once in {@code virtual} mode */
+    public Builder maxInFlight(int maxInFlight) {
+      this.maxInFlight = maxInFlight;
+      return this;
+    }
+
+    public Builder queueCapacity(int queueCapacity) {
+      this.queueCapacity = queueCapacity;
+      return this;
+    }
+
+    public Builder queueConcurrency(int queueConcurrency) {
+      this.queueConcurrency = queueConcurrency;
+      return this;
+    }
+
+    public Builder queueLimiter(ConcurrencyLimit.Algorithm queueLimiter) {
+      this.queueLimiter = queueLimiter;
+      return this;
+    }
+
+    public Builder queueMaxConcurrency(int queueMaxConcurrency) {
+      this.queueMaxConcurrency = queueMaxConcurrency;
+      return this;
+    }
+
+    public Builder queueOverflow(DeliveryQueue.Overflow queueOverflow) {
+      this.queueOverflow = queueOverflow;
+      return this;
+    }
+
+    public Builder breakerFailureThreshold(int breakerFailureThreshold) {
+      this.breakerFailureThreshold = breakerFailureThreshold;
+      return this;
+    }
+
+    public Builder breakerOpenTimeout(long breakerOpenTimeout) {
+      this.breakerOpenTimeout = breakerOpenTimeout;
+      return this;
+    }
+
+    public Builder breakerMaxParks(int breakerMaxParks) {
+      this.breakerMaxParks = breakerMaxParks;
+      return this;
+    }
+
+    public Builder laneWeights(int[] laneWeights) {
+      this.laneWeights = laneWeights;
+      return this;
+    }
+
+    public Builder laneReserved(int laneReserved) {
+      this.laneReserved = laneReserved;
+      return this;
+    }
+
+    public Builder fairQueuing(boolean fairQueuing) {
+      this.fairQueuing = fairQueuing;
+      return this;
+    }
+
+    /**
+     * The tick of the timing wheel that delayed sends wait on, or 0 to delay them on the scheduler
+     */
+    public Builder retryTick(long retryTick) {
+      this.retryTick = retryTick;
+      return this;
+    }
+
+    public Builder retryBudget(boolean retryBudget) {
+      this.retryBudget = retryBudget;
+      return this;
+    }
+
+    public Builder retryBudget(int percent, int minPerSecond, long window) {
+      this.retryBudget = true;
+      this.retryBudgetPercent = percent;
+      this.retryBudgetMinPerSecond = minPerSecond;
+      this.retryBudgetWindow = window;
+      return this;
+    }
+
+    public SenderExecutor build() {
+      return new SenderExecutor(this);
+    }
+  }
+
+  public boolean isShutdown() {
+    return scheduler.isShutdown();
+  }
+
+  /** Run the task after the delay */
+  public void schedule(Runnable task, long delay, TimeUnit unit) {
+    if (workers == null) {
+      scheduler.schedule(task, delay, unit);
+    } else {
+      scheduler.schedule(() -> dispatch(task), delay, unit);
+    }
+  }
+
+  /**
+   * Run the job after the delay on the background thread, which ticks the timing wheel and runs
+   * housekeeping such as polls, but never sends, so that it isn't held up by slow endpoints. The
+   * job must not block on a send.
+   */
+  public void scheduleBackground(Runnable job, long delay, TimeUnit unit) {
+    background.schedule(
+        () -> {
+          try {
+            job.run();
+          } catch (Exception e) {
+            log.warn("Error in background job", e);
+          }
+        },
+        delay,
+        unit);
+  }
+
+  /**
+   * Add the job to the delivery queue for the key after the delay. Delays of a tick or more wait on
+   * the timing wheel, and shorter ones on the scheduler.
+   */
+  public void schedule(String key, Job job, long delay, TimeUnit unit) {
+    if (wheel != null && unit.toNanos(delay) >= wheel.getTick(TimeUnit.NANOSECONDS)) {
+      wheel.add(() -> enqueue(key, job), delay, unit);
+    } else {
+      scheduler.schedule(() -> enqueue(key, job), delay, unit);
+    }
+  }
+
+  /** The delivery queue for the key, if anything has been sent to it on this node */
+  public Optional<DeliveryQueue> getQueue(String key) {
+    return Optional.ofNullable(queues.get(key));
+  }
+
+  /** The circuit breaker for the key, if anything has been sent to it on this node */
+  public Optional<CircuitBreaker> getBreaker(String key) {
+    return Optional.ofNullable(breakers.get(key));
+  }
+
+  /** Times a task may be parked by an open circuit breaker before it is given up */
+  int getBreakerMaxParks() {
+    return breakerMaxParks;
+  }
+
+  CircuitBreaker breaker(String key) {
+    return breakers.computeIfAbsent(
+        key, k -> new CircuitBreaker(k, breakerFailureThreshold, breakerOpenTimeout));
+  }
+
+  /** The retry budget of this node, if retries are budgeted */
+  public Optional<RetryBudget> getRetryBudget() {
+    return Optional.ofNullable(retryBudget);
+  }
+
+  /** The rate limiter for the key, if it has a rate limit */
+  public Optional<RateLimiter> getRateLimiter(String key) {
+    return Optional.ofNullable(rateLimiters.get(key));
+  }
+
+  /**
+   * Set the rate limit for the key, keeping the limiter's state if the limit is unchanged. A null
+   * or non-positive rate removes the limit.
+   */
+  void rateLimit(String key, Integer rate, Integer burst) {
+    if (rate == null || rate <= 0) {
+      if (!rateLimiters.isEmpty()) rateLimiters.remove(key);
+      return;
+    }
+    final int b = burst != null ? burst : rate;
+    RateLimiter limiter = rateLimiters.get(key);
+    if (limiter != null && limiter.isFor(rate, b)) return;
+    rateLimiters.compute(
+        key, (k, l) -> l != null && l.isFor(rate, b) ? l : new RateLimiter(rate, b));
+  }
+
+  /** The concurrency limit of the delivery queue for the key, to be told of send outcomes */
+  ConcurrencyLimit limit(String key) {
+    return queue(key).getLimit();
+  }
+
+  private DeliveryQueue queue(String key) {
+    return queues.computeIfAbsent(
+        key,
+        k ->
+            new DeliveryQueue(
+                k,
+                queueCapacity,
+                new ConcurrencyLimit(queueLimiter, queueConcurrency, queueMaxConcurrency),
+                queueOverflow,
+                laneWeights));
+  }
+
+  private void enqueue(String key, Job job) {
+    DeliveryQueue queue = queue(key);
+    Job dropped = queue.offer(job);
+    if (dropped != null && queueOverflow == DeliveryQueue.Overflow.SPILL) {
+      log.debugf("Delivery queue for %s is full. Spilling task.", key);
+      try {
+        dropped.spilled();
+      } catch (Exception e) {
+        log.warn("Error handling spilled task", e);
+      }
+    } else if (dropped != null) {
+      log.warnf("Delivery queue for %s is full. Dropped %s task.", key, queueOverflow);
+      try {
+        dropped.dropped();
+      } catch (Exception e) {
+        log.warn("Error handling dropped task", e);
+      }
+    }
+    drain(queue);
+  }
+
+  private void drain(DeliveryQueue queue) {
+    Job job;
+    while ((job = queue.poll()) != null) {
+      final Job next = job;
+      execute(() -> run(queue, next), next);
+    }
+  }
+
+  private void run(DeliveryQueue queue, Job job) {
+    CompletionStage<?> done;
+    try {
+      done = job.run();
+    } catch (Throwable t) {
+      log.warn("Uncaught job error", t);
+      done = CompletableFuture.completedFuture(null);
+    }
+    done.whenComplete(
+        (v, t) -> {
+          queue.release();
+          drain(queue);
+        });
+  }
+
+  private void execute(Runnable task, Job job) {
+    if (job.lane().isPriority() && reserved != null && reserved.tryAcquire()) {
+      executeReserved(task);
+      return;
+    }
+    if (fair != null) {
+      fair.submit(job.realm(), job.weight(), task);
+    } else {
+      execute(task);
+    }
+  }
+
+  private void execute(Runnable task) {
+    if (workers == null) {
+      try {
+        scheduler.execute(task);
+      } catch (Exception e) {
+        log.warn("Error executing task", e);
+      }
+    } else {
+      dispatch(task);
+    }
+  }
+
+  /** Run the task using one of the sends in flight reserved for the priority lanes */
+  private void executeReserved(Runnable task) {
+    Runnable release =
+        () -> {
+          try {
+            task.run();
+          } finally {
+            reserved.release();
+          }
+        };
+    try {
+      if (reservedWorkers != null) reservedWorkers.execute(release);
+      else workers.execute(release);
+    } catch (Exception e) {
+      reserved.release();
+      log.warn("Error executing reserved task", e);
+    }
+  }
+
+  /** Run the task on a virtual thread once one of the sends in flight is free for it */
+  private void dispatch(Runnable task) {
+    admissions.add(task);
+    admit();
+  }
+
+  /**
+   * Start a virtual thread for each waiting task that a send in flight is free for. The tasks over
+   * the cap wait in line without a thread, and are admitted as the sends in flight finish.
+   */
+  private void admit() {
+    while (!admissions.isEmpty() && inFlight.tryAcquire()) {
+      final Runnable task = admissions.poll();
+      if (task == null) {
+        inFlight.release();
+        continue;
+      }
+      try {
+        workers.execute(
+            () -> {
+              try {
+                task.run();
+              } finally {
+                inFlight.release();
+                admit();
+              }
+            });
+      } catch (Exception e) {
+        inFlight.release();
+        log.warn("Error dispatching task", e);
+      }
+    }
+  }
+
+  public void shutdown() {
+    scheduler.shutdown();
+    background.shutdown();
+    if (workers != null) workers.shutdown();
+    if (reservedWorkers != null) reservedWorkers.shutdown();
+  }
+
+  /**
+   * Wait for the tasks that are running or delayed on the scheduler and workers to finish after a
+   * {@link #shutdown}, for at most the timeout in all. Returns false if they didn't finish.
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (ExecutorService e :
+        new ExecutorService[] {scheduler, workers, reservedWorkers, background}) {
+      if (e != null && !e.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+        return false;
+      }
+    }
+    return true;
+  }
+}
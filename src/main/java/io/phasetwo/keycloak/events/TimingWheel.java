@@ -0,0 +1,153 @@
+package io.phasetwo.keycloak.events;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+import lombok.extern.jbosslog.JBossLog;
+
+/**
+ * A hierarchical timing wheel for large numbers of delayed tasks, such as the retries of sends to
+ * an endpoint that is down. Adding a task is an append to a lock-free queue, and a tick moves the
+ * added tasks into the bucket of their deadline and runs the tasks of the current bucket, so both
+ * cost O(1) per task however many are pending, where a {@link
+ * java.util.concurrent.ScheduledThreadPoolExecutor} keeps them in a locked binary heap.
+ *
+ * <p>Each of the {@link #LEVELS} wheels has {@link #SLOTS} buckets, and a bucket of a level spans a
+ * whole turn of the level below it. When a lower wheel completes a turn, the next bucket of the
+ * level above is cascaded down into it. Deadlines are rounded up to the tick, so a task never runs
+ * early, and runs late by at most a tick, plus the time to run the tasks ahead of it. Tasks run on
+ * the thread that calls {@link #advance()}, so they must be short.
+ */
+@JBossLog
+public class TimingWheel {
+
+  static final int SLOT_BITS = 8;
+  static final int SLOTS = 1 << SLOT_BITS;
+  static final int LEVELS = 4;
+  private static final int MASK = SLOTS - 1;
+
+  private final long tickNanos;
+  private final LongSupplier clock;
+  private final long start;
+  private final List<List<Timer>> buckets;
+  private final ConcurrentLinkedQueue<Timer> added = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger pending = new AtomicInteger();
+  // the last tick that was run, only touched by the advancing thread
+  private long current;
+
+  TimingWheel(long tick, TimeUnit unit) {
+    this(tick, unit, System::nanoTime);
+  }
+
+  TimingWheel(long tick, TimeUnit unit, LongSupplier clock) {
+    this.tickNanos = Math.max(1l, unit.toNanos(tick));
+    this.clock = clock;
+    this.start = clock.getAsLong();
+    this.buckets = new ArrayList<>(LEVELS * SLOTS);
+    for (int i = 0; i < LEVELS * SLOTS; i++) buckets.add(new ArrayList<>());
+  }
+
+  static class Timer {
+    final long deadline;
+    final Runnable task;
+
+    Timer(long deadline, Runnable task) {
+      this.deadline = deadline;
+      this.task = task;
+    }
+  }
+
+  /** The length of a tick in the unit */
+  public long getTick(TimeUnit unit) {
+    return unit.convert(tickNanos, TimeUnit.NANOSECONDS);
+  }
+
+  /** The number of tasks that have not run yet */
+  public int getPending() {
+    return pending.get();
+  }
+
+  /** Run the task on the first tick after the delay has passed */
+  public void add(Runnable task, long delay, TimeUnit unit) {
+    long elapsed = clock.getAsLong() - start + unit.toNanos(Math.max(0l, delay));
+    // rounded up, so that it doesn't run early
+    long deadline = (elapsed + tickNanos - 1) / tickNanos;
+    pending.incrementAndGet();
+    added.add(new Timer(deadline, task));
+  }
+
+  /** Run the ticks up to now, running the tasks whose deadline has passed */
+  public synchronized void advance() {
+    long now = (clock.getAsLong() - start) / tickNanos;
+    place();
+    while (current < now) {
+      current++;
+      cascade();
+      expire(bucket(0, current));
+    }
+    // tasks added with no delay don't wait for the next tick
+    place();
+  }
+
+  private void place() {
+    Timer timer;
+    while ((timer = added.poll()) != null) {
+      place(timer);
+    }
+  }
+
+  private void place(Timer timer) {
+    long ticks = timer.deadline - current;
+    if (ticks <= 0) {
+      run(timer);
+      return;
+    }
+    for (int level = 0; level < LEVELS; level++) {
+      if (ticks < 1l << (SLOT_BITS * (level + 1))) {
+        bucket(level, timer.deadline).add(timer);
+        return;
+      }
+    }
+    // past the span of the wheels, so it waits in the farthest bucket and is placed again
+    int top = LEVELS - 1;
+    bucket(top, current + ((long) MASK << (SLOT_BITS * top))).add(timer);
+  }
+
+  /** Move the timers of the buckets that begin at the current tick down to the lower wheels */
+  private void cascade() {
+    for (int level = 1; level < LEVELS; level++) {
+      if ((current & ((1l << (SLOT_BITS * level)) - 1)) != 0) return;
+      List<Timer> bucket = bucket(level, current);
+      if (bucket.isEmpty()) continue;
+      List<Timer> timers = new ArrayList<>(bucket);
+      bucket.clear();
+      for (Timer t : timers) place(t);
+    }
+  }
+
+  private void expire(List<Timer> bucket) {
+    if (bucket.isEmpty()) return;
+    List<Timer> timers = new ArrayList<>(bucket);
+    bucket.clear();
+    for (Timer t : timers) {
+      if (t.deadline > current) place(t);
+      else run(t);
+    }
+  }
+
+  private void run(Timer timer) {
+    pending.decrementAndGet();
+    try {
+      timer.task.run();
+    } catch (Exception e) {
+      log.warn("Error running timed task", e);
+    }
+  }
+
+  private List<Timer> bucket(int level, long tick) {
+    return buckets.get(level * SLOTS + (int) ((tick >>> (SLOT_BITS * level)) & MASK));
+  }
+}
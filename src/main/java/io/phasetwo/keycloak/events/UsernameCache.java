@@ -0,0 +1,58 @@
+package io.phasetwo.keycloak.events;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.Config;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.UserModel;
+
+/**
+ * Caches the usernames of users for a short time, so that enriching a burst of events about the
+ * same users, such as a bulk import by an admin, doesn't read each user for each event. A renamed
+ * user keeps their old username in events for at most the TTL. Users that aren't found are not
+ * cached.
+ */
+@JBossLog
+public class UsernameCache {
+
+  public static final String USERNAME_CACHE_SIZE = "usernameCacheSize";
+  public static final String USERNAME_CACHE_TTL = "usernameCacheTtl";
+
+  static final long DEFAULT_USERNAME_CACHE_SIZE = 10000l;
+  static final long DEFAULT_USERNAME_CACHE_TTL = 60000l;
+
+  private final Cache<String, String> cache;
+
+  UsernameCache(long size, long ttlMillis) {
+    this.cache =
+        size > 0 && ttlMillis > 0
+            ? CacheBuilder.newBuilder()
+                .maximumSize(size)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .build()
+            : null;
+  }
+
+  public static UsernameCache create(Config.Scope scope) {
+    long size = scope.getLong(USERNAME_CACHE_SIZE, DEFAULT_USERNAME_CACHE_SIZE);
+    long ttl = scope.getLong(USERNAME_CACHE_TTL, DEFAULT_USERNAME_CACHE_TTL);
+    log.infof("%s %d, %s %d", USERNAME_CACHE_SIZE, size, USERNAME_CACHE_TTL, ttl);
+    return new UsernameCache(size, ttl);
+  }
+
+  /** The username of the user, or null if the realm or user is not found */
+  public String getUsername(KeycloakSession session, String realmId, String userId) {
+    if (realmId == null || userId == null) return null;
+    final String key = realmId + "/" + userId;
+    String username = cache != null ? cache.getIfPresent(key) : null;
+    if (username != null) return username;
+    RealmModel realm = session.realms().getRealm(realmId);
+    UserModel user = realm != null ? session.users().getUserById(realm, userId) : null;
+    if (user == null || user.getUsername() == null) return null;
+    if (cache != null) cache.put(key, user.getUsername());
+    return user.getUsername();
+  }
+}
@@ -0,0 +1,37 @@
+package io.phasetwo.keycloak.events;
+
+import org.infinispan.protostream.annotations.ProtoFactory;
+import org.infinispan.protostream.annotations.ProtoField;
+import org.infinispan.protostream.annotations.ProtoTypeId;
+import org.keycloak.cluster.ClusterEvent;
+
+/** Tells the node that forwarded a send that the owner of the webhook has taken it */
+@ProtoTypeId(EventsSchema.WEBHOOK_DELIVERY_ACK)
+public class WebhookDeliveryAck implements ClusterEvent {
+
+  private final String origin;
+  private final String id;
+
+  @ProtoFactory
+  public WebhookDeliveryAck(String origin, String id) {
+    this.origin = origin;
+    this.id = id;
+  }
+
+  /** The node that forwarded the send */
+  @ProtoField(1)
+  public String getOrigin() {
+    return origin;
+  }
+
+  /** The uid of the payload */
+  @ProtoField(2)
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("WebhookDeliveryAck [origin=%s, id=%s]", origin, id);
+  }
+}
@@ -0,0 +1,84 @@
+package io.phasetwo.keycloak.events;
+
+import org.infinispan.protostream.annotations.ProtoFactory;
+import org.infinispan.protostream.annotations.ProtoField;
+import org.infinispan.protostream.annotations.ProtoTypeId;
+import org.keycloak.cluster.ClusterEvent;
+
+/** Forwards the send of a payload to the node of the cluster that owns the webhook */
+@ProtoTypeId(EventsSchema.WEBHOOK_DELIVERY_EVENT)
+public class WebhookDeliveryEvent implements ClusterEvent {
+
+  private final String owner;
+  private final String realmId;
+  private final String webhookId;
+  private final String payload;
+  private final String origin;
+  private final String id;
+  private final boolean outbox;
+
+  @ProtoFactory
+  public WebhookDeliveryEvent(
+      String owner,
+      String realmId,
+      String webhookId,
+      String payload,
+      String origin,
+      String id,
+      boolean outbox) {
+    this.owner = owner;
+    this.realmId = realmId;
+    this.webhookId = webhookId;
+    this.payload = payload;
+    this.origin = origin;
+    this.id = id;
+    this.outbox = outbox;
+  }
+
+  /** The node the send is forwarded to */
+  @ProtoField(1)
+  public String getOwner() {
+    return owner;
+  }
+
+  @ProtoField(2)
+  public String getRealmId() {
+    return realmId;
+  }
+
+  @ProtoField(3)
+  public String getWebhookId() {
+    return webhookId;
+  }
+
+  /** The JSON body of the send */
+  @ProtoField(4)
+  public String getPayload() {
+    return payload;
+  }
+
+  /** The node that forwarded the send, and waits for it to be acknowledged */
+  @ProtoField(5)
+  public String getOrigin() {
+    return origin;
+  }
+
+  /** The uid of the payload */
+  @ProtoField(6)
+  public String getId() {
+    return id;
+  }
+
+  /** Whether the send is an outbox entry leased by the origin, which is not acknowledged */
+  @ProtoField(7)
+  public boolean isOutbox() {
+    return outbox;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "WebhookDeliveryEvent [owner=%s, realmId=%s, webhookId=%s, origin=%s, id=%s, outbox=%b]",
+        owner, realmId, webhookId, origin, id, outbox);
+  }
+}
@@ -0,0 +1,28 @@
+package io.phasetwo.keycloak.events;
+
+import org.infinispan.protostream.annotations.ProtoFactory;
+import org.infinispan.protostream.annotations.ProtoField;
+import org.infinispan.protostream.annotations.ProtoTypeId;
+import org.keycloak.cluster.ClusterEvent;
+
+/** Tells the other nodes of the cluster to drop their cached webhooks of a realm */
+@ProtoTypeId(EventsSchema.WEBHOOK_INVALIDATION_EVENT)
+public class WebhookInvalidationEvent implements ClusterEvent {
+
+  private final String realmId;
+
+  @ProtoFactory
+  public WebhookInvalidationEvent(String realmId) {
+    this.realmId = realmId;
+  }
+
+  @ProtoField(1)
+  public String getRealmId() {
+    return realmId;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("WebhookInvalidationEvent [realmId=%s]", realmId);
+  }
+}
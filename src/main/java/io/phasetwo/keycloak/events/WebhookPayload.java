@@ -0,0 +1,87 @@
+package io.phasetwo.keycloak.events;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonSerializable;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.jsontype.TypeSerializer;
+import io.phasetwo.keycloak.representation.ExtendedAdminEvent;
+import java.io.IOException;
+import org.keycloak.util.JsonSerialization;
+
+/**
+ * The body of one send of an event. An event is serialized once for the fan-out to all of its
+ * webhooks, and the payload of each send is the shared serialized event with the uid of the send
+ * spliced in. The shared event must not be modified once it is serialized.
+ */
+public class WebhookPayload implements JsonSerializable {
+
+  private static final byte[] UID_FIELD = "{\"uid\":".getBytes(UTF_8);
+
+  private final ExtendedAdminEvent event;
+  private final String uid;
+  private final byte[] bytes;
+
+  public WebhookPayload(ExtendedAdminEvent event, String uid, byte[] bytes) {
+    this.event = event;
+    this.uid = uid;
+    this.bytes = bytes;
+  }
+
+  /**
+   * Serialize the event for fan-out. The event's uid is cleared, as each send gets its own, and the
+   * result is a JSON object without a uid field.
+   */
+  public static byte[] serialize(ExtendedAdminEvent event) throws IOException {
+    event.setUid(null);
+    return JsonSerialization.writeValueAsBytes(event);
+  }
+
+  /** The payload of a send of the serialized event, with the given uid */
+  public static WebhookPayload of(ExtendedAdminEvent event, byte[] serialized, String uid)
+      throws IOException {
+    byte[] quoted = JsonSerialization.writeValueAsBytes(uid);
+    // {"uid":"...", followed by the fields of the serialized object, if there are any
+    boolean empty = serialized.length <= 2;
+    byte[] bytes = new byte[UID_FIELD.length + quoted.length + serialized.length - (empty ? 1 : 0)];
+    int pos = 0;
+    System.arraycopy(UID_FIELD, 0, bytes, pos, UID_FIELD.length);
+    pos += UID_FIELD.length;
+    System.arraycopy(quoted, 0, bytes, pos, quoted.length);
+    pos += quoted.length;
+    if (empty) {
+      bytes[pos] = '}';
+    } else {
+      bytes[pos++] = ',';
+      System.arraycopy(serialized, 1, bytes, pos, serialized.length - 1);
+    }
+    return new WebhookPayload(event, uid, bytes);
+  }
+
+  /** The event that was serialized, which has no uid, and is shared by the payloads made from it */
+  public ExtendedAdminEvent getEvent() {
+    return event;
+  }
+
+  public String getUid() {
+    return uid;
+  }
+
+  /** The JSON body of the send */
+  public byte[] getBytes() {
+    return bytes;
+  }
+
+  @Override
+  public void serialize(JsonGenerator gen, SerializerProvider serializers) throws IOException {
+    gen.writeRawValue(new String(bytes, UTF_8));
+  }
+
+  @Override
+  public void serializeWithType(
+      JsonGenerator gen, SerializerProvider serializers, TypeSerializer typeSer)
+      throws IOException {
+    serialize(gen, serializers);
+  }
+}
@@ -0,0 +1,181 @@
+package io.phasetwo.keycloak.events;
+
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import io.phasetwo.keycloak.config.RealmAttributesConfigLoader;
+import io.phasetwo.keycloak.model.WebhookProvider;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import lombok.extern.jbosslog.JBossLog;
+import org.keycloak.cluster.ClusterProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+/**
+ * Caches the enabled webhooks of each realm as an immutable snapshot, so that delivering an event
+ * doesn't read the webhooks from the database. A realm's snapshot is loaded when it is first
+ * needed, and dropped when one of its webhooks is changed. Changes are published to the other nodes
+ * of a cluster through the {@link ClusterProvider}, and they drop their snapshot of the realm too.
+ *
+ * <p>The snapshot also remembers which event types its webhooks are subscribed to, so that an event
+ * nobody is subscribed to can be dropped before it is built.
+ *
+ * <p>The snapshot also holds the realm's weight in the sharing of sends among realms, which is the
+ * {@code weight} of the realm's {@code _providerConfig.ext-event-webhook} attribute. The attribute
+ * is compared with the one the snapshot was loaded with each time the snapshot is used, so that a
+ * change of it by any means, such as an import or an update of the whole realm, loads the snapshot
+ * again.
+ */
+@JBossLog
+public class WebhookRegistry {
+
+  static final String INVALIDATION_TASK = "ext-event-webhook-invalidation";
+  static final String REALM_CONFIG =
+      RealmAttributesConfigLoader.REALM_ATTRIBUTE_CONFIG_PREFIX
+          + "."
+          + WebhookSenderEventListenerProviderFactory.PROVIDER_ID;
+  static final String REALM_WEIGHT = "weight";
+  static final int DEFAULT_REALM_WEIGHT = 1;
+
+  private final ConcurrentMap<String, Snapshot> realms = new ConcurrentHashMap<>();
+  // counts invalidations, so that a snapshot loaded during one is not kept
+  private final AtomicLong generation = new AtomicLong();
+
+  /** The enabled webhooks of the realm */
+  public Collection<RegisteredWebhook> getWebhooks(KeycloakSession session, RealmModel realm) {
+    return getSnapshot(session, realm).webhooks.values();
+  }
+
+  /** The webhook, if it is enabled */
+  public RegisteredWebhook getWebhook(KeycloakSession session, RealmModel realm, String id) {
+    return getSnapshot(session, realm).webhooks.get(id);
+  }
+
+  /** The weight of the realm in the sharing of sends among realms */
+  public int getRealmWeight(KeycloakSession session, RealmModel realm) {
+    return getSnapshot(session, realm).weight;
+  }
+
+  /**
+   * Whether any enabled webhook of the realm is subscribed to events of the type. The type is only
+   * asked for if the realm has webhooks, and the answer is cached with the realm's webhooks.
+   */
+  public boolean isSubscribed(KeycloakSession session, RealmModel realm, Supplier<String> type) {
+    return getSnapshot(session, realm).isSubscribed(type);
+  }
+
+  static class Snapshot {
+    final ImmutableMap<String, RegisteredWebhook> webhooks;
+    final String config;
+    final int weight;
+    private final ConcurrentMap<String, Boolean> subscribed = new ConcurrentHashMap<>();
+
+    Snapshot(ImmutableMap<String, RegisteredWebhook> webhooks, String config, int weight) {
+      this.webhooks = webhooks;
+      this.config = config;
+      this.weight = weight;
+    }
+
+    boolean isSubscribed(Supplier<String> type) {
+      if (webhooks.isEmpty()) return false;
+      return subscribed.computeIfAbsent(
+          type.get(), t -> webhooks.values().stream().anyMatch(w -> w.isEnabledFor(t)));
+    }
+  }
+
+  private Snapshot getSnapshot(KeycloakSession session, RealmModel realm) {
+    final String config = realm.getAttribute(REALM_CONFIG);
+    Snapshot snapshot = realms.get(realm.getId());
+    if (snapshot != null) {
+      if (Objects.equals(snapshot.config, config)) return snapshot;
+      log.debugf("Config of realm %s changed", realm.getName());
+      realms.remove(realm.getId(), snapshot);
+    }
+    long loadedAt = generation.get();
+    snapshot = load(session, realm, config);
+    realms.putIfAbsent(realm.getId(), snapshot);
+    if (generation.get() != loadedAt) realms.remove(realm.getId(), snapshot);
+    return snapshot;
+  }
+
+  private Snapshot load(KeycloakSession session, RealmModel realm, String config) {
+    log.debugf("Loading webhooks for realm %s", realm.getName());
+    final int weight = parseWeight(config);
+    ImmutableMap.Builder<String, RegisteredWebhook> builder = ImmutableMap.builder();
+    session
+        .getProvider(WebhookProvider.class)
+        .getWebhooksStream(realm)
+        .filter(w -> w.isEnabled())
+        .filter(w -> !Strings.isNullOrEmpty(w.getUrl()))
+        .forEach(w -> builder.put(w.getId(), new RegisteredWebhook(w, weight)));
+    return new Snapshot(builder.build(), config, weight);
+  }
+
+  /** The positive integer weight in the realm's JSON config, or the default weight */
+  static int parseWeight(String config) {
+    if (Strings.isNullOrEmpty(config)) return DEFAULT_REALM_WEIGHT;
+    Map<String, Object> map = RealmAttributesConfigLoader.safeConvertToMap(config);
+    Object weight = map != null ? map.get(REALM_WEIGHT) : null;
+    if (weight instanceof Number && ((Number) weight).intValue() > 0) {
+      return ((Number) weight).intValue();
+    }
+    if (weight != null)
+      log.warnf("Invalid realm weight %s. Using %d", weight, DEFAULT_REALM_WEIGHT);
+    return DEFAULT_REALM_WEIGHT;
+  }
+
+  /** Drop the snapshot of the realm, so that it is loaded again */
+  public void invalidate(String realmId) {
+    log.debugf("Invalidating webhooks for realm %s", realmId);
+    generation.incrementAndGet();
+    realms.remove(realmId);
+  }
+
+  /**
+   * Drop the snapshot of the realm on all nodes of the cluster once the session's transaction has
+   * been committed
+   */
+  public void invalidateOnCommit(KeycloakSession session, String realmId) {
+    final ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+    RunnableTransaction invalidation = new RunnableTransaction();
+    invalidation.addRunnable(
+        () -> {
+          invalidate(realmId);
+          if (cluster != null) {
+            cluster.notify(
+                INVALIDATION_TASK,
+                new WebhookInvalidationEvent(realmId),
+                true,
+                ClusterProvider.DCNotify.ALL_DCS);
+          }
+        });
+    session.getTransactionManager().enlistAfterCompletion(invalidation);
+  }
+
+  /** Listen for the invalidations published by the other nodes of the cluster */
+  public void register(KeycloakSessionFactory factory) {
+    KeycloakModelUtils.runJobInTransaction(
+        factory,
+        (session) -> {
+          ClusterProvider cluster = session.getProvider(ClusterProvider.class);
+          if (cluster == null) {
+            log.debug("No cluster provider. Webhook invalidations are local only.");
+            return;
+          }
+          cluster.registerListener(
+              INVALIDATION_TASK,
+              (event) -> {
+                if (event instanceof WebhookInvalidationEvent) {
+                  invalidate(((WebhookInvalidationEvent) event).getRealmId());
+                }
+              });
+        });
+  }
+}
@@ -1,22 +1,29 @@
 package io.phasetwo.keycloak.events;
 
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
 import io.phasetwo.keycloak.model.KeycloakEventType;
 import io.phasetwo.keycloak.model.WebhookEventModel;
 import io.phasetwo.keycloak.model.WebhookModel;
+import io.phasetwo.keycloak.model.WebhookOutboxModel;
 import io.phasetwo.keycloak.model.WebhookProvider;
-import io.phasetwo.keycloak.model.WebhookSendModel;
+import io.phasetwo.keycloak.model.WebhookSendAttempt;
 import io.phasetwo.keycloak.representation.ExtendedAdminEvent;
 import io.phasetwo.keycloak.representation.ExtendedAuthDetails;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.Date;
+import java.util.List;
 import java.util.Optional;
 import java.util.Set;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.events.Event;
 import org.keycloak.events.EventType;
@@ -24,7 +31,6 @@ import org.keycloak.events.admin.AdminEvent;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
 import org.keycloak.models.RealmModel;
-import org.keycloak.models.UserModel;
 import org.keycloak.models.utils.KeycloakModelUtils;
 import org.keycloak.util.JsonSerialization;
 
@@ -35,10 +41,25 @@ public class WebhookSenderEventListenerProvider extends HttpSenderEventListenerP
   private static final String WEBHOOK_SECRET_ENV = "WEBHOOK_SECRET";
   private static final String WEBHOOK_ALGORITHM_ENV = "WEBHOOK_ALGORITHM";
 
+  private static final long DEFAULT_BATCH_LINGER = 1000l;
+  private static final int MAX_ERROR_LENGTH = 1024;
+  private static final Pattern USER_RESOURCE_PATH =
+      Pattern.compile(
+          "^users/([0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12})$");
+
   private final RunnableTransaction runnableTrx;
+  private final RunnableTransaction postCommitTrx;
   private final KeycloakSessionFactory factory;
+  private final Batcher<WebhookPayload> batcher;
+  private final Coalescer<WebhookPayload> coalescer;
+  private final OutboxDrainer outbox;
+  private final DeliveryPartitioner partitioner;
+  private final WebhookRegistry registry;
+  private final UsernameCache usernames;
+  private final SendRecorder recorder;
 
   private final boolean storeWebhookEvents;
+  private final boolean deadLetters;
   private final WebhookProvider webhooks;
 
   private final String systemUri;
@@ -46,27 +67,42 @@ public class WebhookSenderEventListenerProvider extends HttpSenderEventListenerP
   private final String systemAlgorithm;
 
   public WebhookSenderEventListenerProvider(
-      KeycloakSession session, ScheduledExecutorService exec, boolean storeWebhookEvents) {
-    super(session, exec);
+      KeycloakSession session, WebhookSenderEventListenerProviderFactory providerFactory) {
+    super(
+        session,
+        providerFactory.getExecutor(),
+        providerFactory.getHttp(),
+        providerFactory.getAsyncHttp());
     this.factory = session.getKeycloakSessionFactory();
+    this.batcher = providerFactory.getBatcher();
+    this.coalescer = providerFactory.getCoalescer();
+    this.outbox = providerFactory.getOutbox();
+    this.partitioner = providerFactory.getPartitioner();
+    this.registry = providerFactory.getRegistry();
+    this.usernames = providerFactory.getUsernames();
+    this.recorder = providerFactory.getRecorder();
     this.runnableTrx = new RunnableTransaction();
     session.getTransactionManager().enlistAfterCompletion(runnableTrx);
+    // events are processed in sessions of their own, off the committing thread
+    this.postCommitTrx = new RunnableTransaction(providerFactory.getPostCommit());
+    session.getTransactionManager().enlistAfterCompletion(postCommitTrx);
     // for system owner catch-all
     this.systemUri = System.getenv(WEBHOOK_URI_ENV);
     this.systemSecret = System.getenv(WEBHOOK_SECRET_ENV);
     this.systemAlgorithm = System.getenv(WEBHOOK_ALGORITHM_ENV);
     // should we store webhook events and sends?
-    this.storeWebhookEvents = storeWebhookEvents;
+    this.storeWebhookEvents = providerFactory.isStoreWebhookEvents();
+    this.deadLetters = providerFactory.isDeadLetters();
     this.webhooks = session.getProvider(WebhookProvider.class);
   }
 
   @Override
   public void onEvent(Event event) {
     log.debugf("onEvent %s %s", event.getType(), event.getId());
+    if (!isListened(event.getRealmId(), () -> ExtendedAdminEvent.createType(event))) return;
     try {
       ExtendedAdminEvent customEvent = completeAdminEventAttributes("", event);
-      runnableTrx.addRunnable(
-          () -> processEvent(KeycloakEventType.USER, customEvent, event.getRealmId()));
+      afterCommit(KeycloakEventType.USER, customEvent, event.getRealmId(), event.getRealmId());
     } catch (Exception e) {
       log.warn("Error converting and scheduling event: " + event, e);
     }
@@ -79,17 +115,60 @@ public class WebhookSenderEventListenerProvider extends HttpSenderEventListenerP
         adminEvent.getOperationType(),
         adminEvent.getResourceTypeAsString(),
         adminEvent.getResourcePath());
+    if (!isListened(adminEvent.getRealmId(), () -> ExtendedAdminEvent.createType(adminEvent))) {
+      return;
+    }
     try {
       ExtendedAdminEvent customEvent = completeAdminEventAttributes("", adminEvent);
-      runnableTrx.addRunnable(
-          () -> processEvent(KeycloakEventType.ADMIN, customEvent, adminEvent.getRealmId()));
+      afterCommit(
+          KeycloakEventType.ADMIN,
+          customEvent,
+          adminEvent.getRealmId(),
+          adminEvent.getAuthDetails().getRealmId());
     } catch (Exception e) {
       log.warn("Error converting and scheduling event: " + adminEvent, e);
     }
   }
 
-  private synchronized void storeEvent(
-      KeycloakSession session, KeycloakEventType type, ExtendedAdminEvent event) {
+  /**
+   * Process the event once the transaction has been committed. The usernames of its users are only
+   * looked up then, and only if it is sent or stored, unless it goes in the outbox, which holds the
+   * payload of each send.
+   */
+  private void afterCommit(
+      KeycloakEventType type, ExtendedAdminEvent event, String realmId, String authRealmId)
+      throws IOException {
+    Consumer<KeycloakSession> enrichment = (s) -> enrich(s, event, authRealmId);
+    if (outbox != null) {
+      enrichment.accept(session);
+      storeOutbox(event, realmId);
+      postCommitTrx.addRunnable(() -> processEvent(type, event, realmId, null));
+    } else {
+      postCommitTrx.addRunnable(() -> processEvent(type, event, realmId, enrichment));
+    }
+  }
+
+  /**
+   * Whether the event may be stored or sent, checked before it is built and its users are looked
+   * up, as most realms have no webhooks
+   */
+  private boolean isListened(String realmId, Supplier<String> type) {
+    if (storeWebhookEvents || !Strings.isNullOrEmpty(systemUri)) return true;
+    RealmModel realm = realmId == null ? null : session.realms().getRealm(realmId);
+    if (realm != null && registry.isSubscribed(session, realm, type)) return true;
+    log.tracef("No webhooks of realm %s subscribed to the event. Skipping.", realmId);
+    return false;
+  }
+
+  /**
+   * Store the event, if it is kept, in the transaction of the job that processes it. The provider
+   * is the job session's, as events are processed off the request thread and its session.
+   */
+  private void storeEvent(
+      KeycloakSession session,
+      WebhookProvider webhooks,
+      KeycloakEventType type,
+      ExtendedAdminEvent event) {
     if (!storeWebhookEvents) {
       log.tracef("storeWebhookEvents is %s. skipping...", storeWebhookEvents);
       return;
@@ -133,139 +212,472 @@ public class WebhookSenderEventListenerProvider extends HttpSenderEventListenerP
   }
 
   public void processEvent(ExtendedAdminEvent event, String realmId) {
-    processEvent(KeycloakEventType.fromTypeString(event.getType()), event, realmId);
+    processEvent(KeycloakEventType.fromTypeString(event.getType()), event, realmId, null);
   }
 
-  /** Schedule dispatch to all webhooks and system */
-  private void processEvent(KeycloakEventType type, ExtendedAdminEvent event, String realmId) {
+  /**
+   * Write a send to each webhook that is subscribed to the event to the outbox, in the transaction
+   * of the event, so that the sends are only lost if the event is
+   */
+  private void storeOutbox(ExtendedAdminEvent event, String realmId) throws IOException {
+    RealmModel realm = session.realms().getRealm(realmId);
+    final byte[] serialized = WebhookPayload.serialize(event);
+    registry.getWebhooks(session, realm).stream()
+        .filter(w -> enabledFor(w, event))
+        .forEach(
+            w -> {
+              try {
+                WebhookPayload payload =
+                    WebhookPayload.of(event, serialized, KeycloakModelUtils.generateId());
+                webhooks.storeOutbox(
+                    realm,
+                    w.getId(),
+                    payload.getUid(),
+                    new String(payload.getBytes(), StandardCharsets.UTF_8));
+              } catch (IOException e) {
+                log.warn("Error serializing event for outbox", e);
+              }
+            });
+  }
+
+  /**
+   * Schedule outbox entries that were leased in this session's transaction, once it has been
+   * committed. Entries of webhooks that have since been disabled or removed are dropped, and with
+   * partitioned delivery, entries of webhooks owned by another node are forwarded to it, still
+   * leased by this node.
+   */
+  void deliver(Stream<WebhookOutboxModel> leased) {
+    leased.forEach(
+        o -> {
+          RealmModel realm = session.realms().getRealm(o.getRealmId());
+          RegisteredWebhook webhook =
+              realm == null ? null : registry.getWebhook(session, realm, o.getWebhookId());
+          if (webhook == null) {
+            log.debugf("No enabled webhook for outbox entry %s. Removing.", o.getId());
+            webhooks.removeOutbox(o.getId());
+            return;
+          }
+          WebhookPayload payload;
+          try {
+            payload = readPayload(o.getPayload());
+          } catch (IOException e) {
+            log.warnf(e, "Error reading outbox entry %s", o.getId());
+            return;
+          }
+          if (partitioner != null && !partitioner.isLocal(webhook.getId())) {
+            partitioner.forward(session, webhook, payload, true);
+          } else {
+            runnableTrx.addRunnable(scheduler(webhook, payload, true));
+          }
+        });
+  }
+
+  /**
+   * Schedule a send that was forwarded by another node, because this node owns the webhook. An
+   * outbox entry is removed by this node when it is done.
+   */
+  void deliver(String realmId, String webhookId, String json, boolean outbox) {
+    RealmModel realm = session.realms().getRealm(realmId);
+    RegisteredWebhook webhook =
+        realm == null ? null : registry.getWebhook(session, realm, webhookId);
+    if (webhook == null) {
+      log.debugf("No enabled webhook %s for forwarded send. Skipping.", webhookId);
+      return;
+    }
+    try {
+      scheduler(webhook, readPayload(json), outbox).run();
+    } catch (IOException e) {
+      log.warnf(e, "Error reading forwarded send for webhook %s", webhookId);
+    }
+  }
+
+  /** Keep a send that was lost on its way to the node that owns the webhook as a dead letter */
+  void deadLetter(String realmId, String webhookId, String json, String error) {
+    RealmModel realm = session.realms().getRealm(realmId);
+    if (!deadLetters || realm == null) {
+      log.warnf("Dropping send for webhook %s. %s", webhookId, error);
+      return;
+    }
+    try {
+      WebhookPayload payload = readPayload(json);
+      webhooks.storeDeadLetter(
+          realm, webhookId, payload.getUid(), payload.getEvent().getType(), json, null, error, 0);
+    } catch (IOException e) {
+      log.warnf(e, "Error reading forwarded send for webhook %s", webhookId);
+    }
+  }
+
+  private static WebhookPayload readPayload(String json) throws IOException {
+    ExtendedAdminEvent customEvent = JsonSerialization.readValue(json, ExtendedAdminEvent.class);
+    return new WebhookPayload(
+        customEvent, customEvent.getUid(), json.getBytes(StandardCharsets.UTF_8));
+  }
+
+  /**
+   * Schedule dispatch to all webhooks and system. The event is serialized once, and the payload of
+   * each send only differs by its uid. The enrichment, if any, is only run if the event is sent or
+   * stored.
+   */
+  private void processEvent(
+      KeycloakEventType type,
+      ExtendedAdminEvent event,
+      String realmId,
+      Consumer<KeycloakSession> enrichment) {
     KeycloakModelUtils.runJobInTransaction(
         factory,
         (session) -> {
+          final List<RegisteredWebhook> subscribed;
+          if (outbox != null) {
+            subscribed = List.of();
+          } else {
+            RealmModel realm = session.realms().getRealm(realmId);
+            subscribed =
+                realm == null
+                    ? List.of()
+                    : registry.getWebhooks(session, realm).stream()
+                        .filter(w -> enabledFor(w, event))
+                        .collect(Collectors.toList());
+          }
+          final boolean system = !Strings.isNullOrEmpty(systemUri);
+          if (enrichment != null
+              && (!subscribed.isEmpty() || system || storeWebhookEvents && type.keycloakNative())) {
+            enrichment.accept(session);
+          }
           if (type.keycloakNative()) {
-            storeEvent(session, type, event);
+            storeEvent(session, session.getProvider(WebhookProvider.class), type, event);
+          }
+          final byte[] serialized;
+          try {
+            serialized = WebhookPayload.serialize(event);
+          } catch (IOException e) {
+            log.warn("Error serializing event: " + event.getId(), e);
+            return;
+          }
+          if (outbox != null) {
+            // the webhook sends are already in the outbox
+            outbox.wake();
+          } else {
+            subscribed.forEach(w -> dispatch(session, w, payload(event, serialized)));
           }
-          RealmModel realm = session.realms().getRealm(realmId);
-          WebhookProvider webhooks = session.getProvider(WebhookProvider.class);
-          webhooks
-              .getWebhooksStream(realm)
-              .filter(w -> w.isEnabled())
-              .filter(w -> !Strings.isNullOrEmpty(w.getUrl()))
-              .forEach(
-                  w -> {
-                    ExtendedAdminEvent customEvent = clone(event);
-                    customEvent.setUid(KeycloakModelUtils.generateId());
-                    log.tracef("Got custom event with UID %s", customEvent.getUid());
-                    if (!enabledFor(w, customEvent)) return;
-                    schedule(w, customEvent);
-                  });
           // for system owner catch-all
-          if (!Strings.isNullOrEmpty(systemUri)) {
-            ExtendedAdminEvent customEvent = clone(event);
-            customEvent.setUid(KeycloakModelUtils.generateId());
-            schedule(null, customEvent, systemUri, systemSecret, systemAlgorithm);
+          if (system) {
+            scheduleSystem(realmId, payload(event, serialized));
           }
         });
   }
 
+  /** Schedule the send here, or forward it to the node that owns the webhook */
+  private void dispatch(
+      KeycloakSession session, RegisteredWebhook webhook, WebhookPayload payload) {
+    if (partitioner != null && !partitioner.isLocal(webhook.getId())) {
+      partitioner.forward(session, webhook, payload, false);
+    } else {
+      scheduler(webhook, payload, false).run();
+    }
+  }
+
+  private static WebhookPayload payload(ExtendedAdminEvent event, byte[] serialized) {
+    try {
+      WebhookPayload payload =
+          WebhookPayload.of(event, serialized, KeycloakModelUtils.generateId());
+      log.tracef("Got custom event with UID %s", payload.getUid());
+      return payload;
+    } catch (IOException e) {
+      throw new IllegalStateException("Event can't be serialized.", e);
+    }
+  }
+
+  /** Queue the outcome of each event of the send to be recorded by the {@link SendRecorder} */
   @Override
-  protected synchronized void afterSend(final SenderTask task, final int httpStatus) {
-    if (task.getProperties().get("webhookId") == null) return;
-    final ExtendedAdminEvent customEvent = (ExtendedAdminEvent) task.getEvent();
-    if (!KeycloakEventType.fromTypeString(customEvent.getType()).keycloakNative()) {
-      log.tracef("%s event type. Skipping send storage.", customEvent.getType());
+  protected void afterSend(final SenderTask task, final int httpStatus) {
+    final String webhookId = task.getProperties().get("webhookId");
+    if (webhookId == null) return;
+    final Date sentAt = new Date();
+    for (WebhookPayload payload : getPayloads(task)) {
+      ExtendedAdminEvent customEvent = payload.getEvent();
+      KeycloakEventType type = KeycloakEventType.fromTypeString(customEvent.getType());
+      if (!type.keycloakNative()) {
+        log.tracef("%s event type. Skipping send storage.", customEvent.getType());
+        continue;
+      }
+      recorder.record(
+          new WebhookSendAttempt(
+              customEvent.getRealmId(),
+              webhookId,
+              type,
+              customEvent.getId(),
+              payload.getUid(),
+              customEvent.getType(),
+              httpStatus,
+              sentAt));
+    }
+  }
+
+  /** The payloads of the task, which is a list of payloads for a batched send */
+  @SuppressWarnings("unchecked")
+  private static List<WebhookPayload> getPayloads(SenderTask task) {
+    if (task.getEvent() instanceof List) return (List<WebhookPayload>) task.getEvent();
+    return ImmutableList.of((WebhookPayload) task.getEvent());
+  }
+
+  /**
+   * Returns the runnable that schedules the send of the event to the webhook. If the webhook
+   * coalesces events, the event is held for the webhook's window first, and is only sent if no
+   * later event with the same key arrives in it.
+   */
+  private Runnable scheduler(RegisteredWebhook webhook, WebhookPayload payload, boolean outbox) {
+    if (!webhook.isCoalesced()) return sender(webhook, payload, outbox);
+    final String key = webhook.getCoalesceKey(payload.getEvent());
+    final long window = webhook.getCoalesceWindow();
+    return () -> {
+      WebhookPayload replaced =
+          coalescer.add(key, window, payload, p -> sender(webhook, p, outbox).run());
+      if (replaced != null) {
+        log.tracef("Event %s coalesced into %s", replaced.getUid(), payload.getUid());
+        if (outbox) removeOutbox(replaced);
+      }
+    };
+  }
+
+  /**
+   * Returns the runnable that schedules the send of the event to the webhook, or adds the event to
+   * the open batch for the webhook, which is sent as one JSON array
+   */
+  private Runnable sender(RegisteredWebhook webhook, WebhookPayload payload, boolean outbox) {
+    exec.rateLimit(webhook.getId(), webhook.getRateLimit(), webhook.getRateBurst());
+    if (!webhook.isBatched()) {
+      return () -> schedule(webhook, payload, outbox);
+    }
+    final int size = webhook.getBatchSize();
+    final long linger =
+        webhook.getBatchLinger() != null ? webhook.getBatchLinger() : DEFAULT_BATCH_LINGER;
+    return () ->
+        batcher.add(
+            webhook.getId(),
+            size,
+            linger,
+            payload,
+            payloads -> schedule(webhook, payloads, outbox));
+  }
+
+  /** Schedule a send of the event to the webhook, with the event's uid */
+  public void schedule(WebhookModel webhook, ExtendedAdminEvent customEvent) {
+    String uid = customEvent.getUid();
+    WebhookPayload payload;
+    try {
+      payload = WebhookPayload.of(customEvent, WebhookPayload.serialize(customEvent), uid);
+    } catch (IOException e) {
+      log.warn("Error serializing event: " + customEvent.getId(), e);
       return;
     }
+    exec.rateLimit(webhook.getId(), webhook.getRateLimit(), webhook.getRateBurst());
+    int weight = registry.getRealmWeight(session, webhook.getRealm());
+    schedule(new RegisteredWebhook(webhook, weight), payload, false);
+  }
+
+  private void schedule(RegisteredWebhook webhook, Object payload, boolean outbox) {
+    schedule(webhook, payload, outbox, 0l, TimeUnit.MILLISECONDS);
+  }
+
+  private void schedule(
+      RegisteredWebhook webhook, Object payload, boolean outbox, long delay, TimeUnit unit) {
+    SenderTask task = new SenderTask(payload, getBackOff());
+    task.getProperties().put("webhookId", webhook.getId());
+    task.getProperties().put("url", webhook.getUrl());
+    task.getProperties().put("secret", webhook.getSecret());
+    task.getProperties().put("algorithm", webhook.getAlgorithm());
+    task.getProperties().put("realmId", webhook.getRealmId());
+    task.getProperties().put("realmWeight", Integer.toString(webhook.getRealmWeight()));
+    if (outbox) task.getProperties().put("outbox", "true");
+    schedule(task, delay, unit);
+  }
+
+  /** Schedule a send of the event to the system owner catch-all */
+  private void scheduleSystem(String realmId, WebhookPayload payload) {
+    SenderTask task = new SenderTask(payload, getBackOff());
+    task.getProperties().put("url", systemUri);
+    task.getProperties().put("secret", systemSecret);
+    task.getProperties().put("algorithm", systemAlgorithm);
+    task.getProperties().put("realmId", realmId);
+    schedule(task, 0l, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Remove the outbox entries of a task that is done for good, and keep the payloads of a webhook
+   * send that was given up as dead letters, in the same transaction
+   */
+  @Override
+  protected void afterComplete(SenderTask task, boolean delivered) {
+    final boolean outboxed = task.getProperties().get("outbox") != null;
+    final String webhookId = task.getProperties().get("webhookId");
+    final boolean deadLetter = !delivered && deadLetters && webhookId != null;
+    if (!outboxed && !deadLetter) return;
+    final String error =
+        task.getError() == null
+            ? null
+            : task.getError().substring(0, Math.min(task.getError().length(), MAX_ERROR_LENGTH));
     KeycloakModelUtils.runJobInTransaction(
         factory,
         (session) -> {
-          RealmModel realm = session.realms().getRealm(customEvent.getRealmId());
           WebhookProvider webhooks = session.getProvider(WebhookProvider.class);
-          WebhookModel webhook =
-              webhooks.getWebhookById(realm, task.getProperties().get("webhookId"));
-          WebhookEventModel event =
-              webhooks.getEvent(
+          RealmModel realm =
+              deadLetter ? session.realms().getRealm(task.getProperties().get("realmId")) : null;
+          for (WebhookPayload p : getPayloads(task)) {
+            if (outboxed) webhooks.removeOutbox(p.getUid());
+            if (deadLetter && realm != null) {
+              webhooks.storeDeadLetter(
                   realm,
-                  KeycloakEventType.fromTypeString(customEvent.getType()),
-                  customEvent.getId());
-          if (event == null) {
-            log.tracef(
-                "No event for [%s] %s. Skipping send storage.",
-                customEvent.getType(), customEvent.getId());
-          } else {
-            // look it up first, as we might be here for a retry/resend
-            WebhookSendModel webhookSend = webhooks.getSendById(realm, customEvent.getUid());
-            if (webhookSend == null) {
-              webhookSend =
-                  webhooks.storeSend(webhook, event, customEvent.getUid(), customEvent.getType());
+                  webhookId,
+                  p.getUid(),
+                  p.getEvent().getType(),
+                  new String(p.getBytes(), StandardCharsets.UTF_8),
+                  task.getStatus(),
+                  error,
+                  task.getAttempts());
             }
-            webhookSend.setStatus(httpStatus);
-            webhookSend.incrementRetries();
-            webhookSend.setSentAt(new Date());
           }
         });
   }
 
-  public void schedule(WebhookModel webhook, ExtendedAdminEvent customEvent) {
-    schedule(
-        webhook.getId(),
-        customEvent,
-        webhook.getUrl(),
-        webhook.getSecret(),
-        webhook.getAlgorithm());
+  /**
+   * Schedule the replay of a dead letter to the webhook after the delay, once this session's
+   * transaction has been committed
+   */
+  void replay(RegisteredWebhook webhook, String json, long delay, TimeUnit unit)
+      throws IOException {
+    final WebhookPayload payload = readPayload(json);
+    runnableTrx.addRunnable(() -> schedule(webhook, payload, false, delay, unit));
   }
 
-  private void schedule(
-      String webhookId,
-      ExtendedAdminEvent customEvent,
-      String url,
-      String secret,
-      String algorithm) {
-    SenderTask task = new SenderTask(customEvent, getBackOff());
-    task.getProperties().put("webhookId", webhookId);
-    task.getProperties().put("url", url);
-    task.getProperties().put("secret", secret);
-    task.getProperties().put("algorithm", algorithm);
-    schedule(task, 0l, TimeUnit.MILLISECONDS);
+  /** Remove the outbox entry of a payload that was replaced before it was sent */
+  private void removeOutbox(WebhookPayload payload) {
+    KeycloakModelUtils.runJobInTransaction(
+        factory,
+        (session) -> session.getProvider(WebhookProvider.class).removeOutbox(payload.getUid()));
+  }
+
+  /** Leave the outbox entries of a task that didn't fit in the delivery queue for a later drain */
+  @Override
+  protected void afterDrop(SenderTask task) {
+    if (task.getProperties().get("outbox") == null) return;
+    releaseOutbox(task, new Date(System.currentTimeMillis() + outbox.getPollInterval()));
+  }
+
+  /**
+   * Write a task that didn't fit in the delivery queue to the outbox, to be sent by a later drain.
+   * A task from the outbox is left in it, and a task without a webhook, or spilled while the outbox
+   * is not enabled, is dropped.
+   */
+  @Override
+  protected void afterSpill(SenderTask task) {
+    final String webhookId = task.getProperties().get("webhookId");
+    if (outbox == null || webhookId == null || task.getProperties().get("outbox") != null) {
+      afterDrop(task);
+      return;
+    }
+    final Date next = new Date(System.currentTimeMillis() + outbox.getPollInterval());
+    KeycloakModelUtils.runJobInTransaction(
+        factory,
+        (session) -> {
+          WebhookProvider webhooks = session.getProvider(WebhookProvider.class);
+          RealmModel realm = session.realms().getRealm(task.getProperties().get("realmId"));
+          if (realm == null) return;
+          for (WebhookPayload p : getPayloads(task)) {
+            webhooks
+                .storeOutbox(
+                    realm, webhookId, p.getUid(), new String(p.getBytes(), StandardCharsets.UTF_8))
+                .release(next);
+          }
+        });
+  }
+
+  /**
+   * Leave the outbox entries of a task that is over the retry budget for a drain after the delay
+   */
+  @Override
+  protected boolean park(SenderTask task, long delayMillis) {
+    if (task.getProperties().get("outbox") == null) return false;
+    releaseOutbox(task, new Date(System.currentTimeMillis() + delayMillis));
+    return true;
+  }
+
+  private void releaseOutbox(SenderTask task, final Date next) {
+    KeycloakModelUtils.runJobInTransaction(
+        factory,
+        (session) -> {
+          WebhookProvider webhooks = session.getProvider(WebhookProvider.class);
+          getPayloads(task)
+              .forEach(
+                  p -> {
+                    WebhookOutboxModel o = webhooks.getOutboxById(p.getUid());
+                    if (o != null) o.release(next);
+                  });
+        });
   }
 
   /** Check if the event type is enabled for this webhook */
-  private boolean enabledFor(WebhookModel webhook, ExtendedAdminEvent customEvent) {
-    String type = customEvent.getType();
-    log.debugf("Checking webhook enabled for %s [%s]", type, webhook.getEventTypes());
-    for (String t : webhook.getEventTypes()) {
-      if ("*".equals(t)) return true;
-      if ("access.*".equals(t) && type.startsWith("access.")) return true;
-      if ("admin.*".equals(t) && type.startsWith("admin.")) return true;
-      if ("system.*".equals(t) && type.startsWith("system.")) return true;
-      try {
-        if (Pattern.matches(t, type)) return true;
-      } catch (Exception e) {
-      }
-      if (t.equals(type)) return true;
+  private boolean enabledFor(RegisteredWebhook webhook, ExtendedAdminEvent customEvent) {
+    log.debugf(
+        "Checking webhook enabled for %s [%s]",
+        customEvent.getType(), webhook.getMatcher().getEventTypes());
+    return webhook.isEnabledFor(customEvent.getType());
+  }
+
+  /** The highest priority lane of the task's events, or the system lane for the system owner */
+  @Override
+  Lane getLane(SenderTask task) {
+    if (task.getProperties().get("webhookId") == null) return Lane.SYSTEM;
+    Lane lane = Lane.USER;
+    for (WebhookPayload p : getPayloads(task)) {
+      Lane l = Lane.of(KeycloakEventType.fromTypeString(p.getEvent().getType()));
+      if (l.ordinal() < lane.ordinal()) lane = l;
     }
-    return false;
+    return lane;
+  }
+
+  @Override
+  String getRealm(SenderTask task) {
+    return task.getProperties().get("realmId");
+  }
+
+  /** The weight of the realm when the task was scheduled, from its webhook configuration */
+  @Override
+  int getWeight(SenderTask task) {
+    String weight = task.getProperties().get("realmWeight");
+    return weight != null ? Integer.parseInt(weight) : 1;
+  }
+
+  @Override
+  String getKey(SenderTask task) {
+    return Optional.ofNullable(task.getProperties().get("webhookId"))
+        .orElse(task.getProperties().get("url"));
   }
 
   @Override
   void send(SenderTask task) throws SenderException, IOException {
-    String targetUri = task.getProperties().get("url");
-    String secret = Optional.ofNullable(task.getProperties().get("secret"))
+    send(task, task.getProperties().get("url"), getSharedSecret(task), getHmacAlgorithm(task));
+  }
+
+  @Override
+  CompletableFuture<Void> sendAsync(SenderTask task) {
+    return sendAsync(
+        task, task.getProperties().get("url"), getSharedSecret(task), getHmacAlgorithm(task));
+  }
+
+  private Optional<String> getSharedSecret(SenderTask task) {
+    String secret =
+        Optional.ofNullable(task.getProperties().get("secret"))
             .orElse(System.getenv("SHARED_SECRET"));
-    Optional<String> sharedSecret = Optional.ofNullable(secret);
-    Optional<String> hmacAlgorithm = Optional.ofNullable(task.getProperties().get("algorithm"));
-    send(task, targetUri, sharedSecret, hmacAlgorithm);
+    return Optional.ofNullable(secret);
+  }
+
+  private Optional<String> getHmacAlgorithm(SenderTask task) {
+    return Optional.ofNullable(task.getProperties().get("algorithm"));
   }
 
   private ExtendedAdminEvent completeAdminEventAttributes(String uid, Event event) {
     RealmModel realm = session.realms().getRealm(event.getRealmId());
     ExtendedAdminEvent extendedAdminEvent = new ExtendedAdminEvent(uid, event, realm);
-    if (!Strings.isNullOrEmpty(event.getUserId())) {
-      // retrieve username from userId
-      UserModel user = session.users().getUserById(realm, event.getUserId());
-      if (user != null) {
-        extendedAdminEvent.getAuthDetails().setUsername(user.getUsername());
-      }
-    }
     completeExtendedAuthDetails(extendedAdminEvent);
     return extendedAdminEvent;
   }
@@ -275,34 +687,30 @@ public class WebhookSenderEventListenerProvider extends HttpSenderEventListenerP
     RealmModel authRealm = session.realms().getRealm(adminEvent.getAuthDetails().getRealmId());
     ExtendedAdminEvent extendedAdminEvent =
         new ExtendedAdminEvent(uid, adminEvent, eventRealm, authRealm);
-    // add always missing agent username
-    ExtendedAuthDetails extendedAuthDetails = extendedAdminEvent.getAuthDetails();
-    if (!Strings.isNullOrEmpty(extendedAuthDetails.getUserId())) {
-      UserModel user = session.users().getUserById(authRealm, extendedAuthDetails.getUserId());
-      extendedAuthDetails.setUsername(user.getUsername());
-    }
+    completeExtendedAuthDetails(extendedAdminEvent);
+    return extendedAdminEvent;
+  }
 
-    // add username if resource is a user
-    String resourcePath = extendedAdminEvent.getResourcePath();
+  /**
+   * Add the usernames of the user who caused the event, and of the user it is about, if its
+   * resource is a user. The usernames are read through the {@link UsernameCache}.
+   */
+  private void enrich(KeycloakSession session, ExtendedAdminEvent event, String authRealmId) {
+    ExtendedAuthDetails authDetails = event.getAuthDetails();
+    if (authDetails != null && !Strings.isNullOrEmpty(authDetails.getUserId())) {
+      String username = usernames.getUsername(session, authRealmId, authDetails.getUserId());
+      if (username != null) authDetails.setUsername(username);
+    }
+    String resourcePath = event.getResourcePath();
     if (resourcePath != null && resourcePath.startsWith("users")) {
-      // parse userId
-      String pattern =
-          "^users/([0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12})$";
-      Pattern r = Pattern.compile(pattern);
-      Matcher m = r.matcher(resourcePath);
+      Matcher m = USER_RESOURCE_PATH.matcher(resourcePath);
       if (m.matches()) {
         String userId = m.group(1);
-        // retrieve user
-        UserModel user =
-            session.users().getUserById(session.realms().getRealm(adminEvent.getRealmId()), userId);
-        extendedAdminEvent.getDetails().put("userId", userId);
-        if (user != null) {
-          extendedAdminEvent.getDetails().put("username", user.getUsername());
-        }
+        event.getDetails().put("userId", userId);
+        String username = usernames.getUsername(session, event.getRealmId(), userId);
+        if (username != null) event.getDetails().put("username", username);
       }
     }
-    completeExtendedAuthDetails(extendedAdminEvent);
-    return extendedAdminEvent;
   }
 
   private ExtendedAdminEvent completeExtendedAuthDetails(ExtendedAdminEvent event) {
@@ -322,17 +730,4 @@ public class WebhookSenderEventListenerProvider extends HttpSenderEventListenerP
     }
     return event;
   }
-
-  /** deep clone the event */
-  private static ExtendedAdminEvent clone(ExtendedAdminEvent event) {
-    try {
-      ExtendedAdminEvent customEvent =
-          JsonSerialization.readValue(
-              JsonSerialization.writeValueAsString(event), ExtendedAdminEvent.class);
-      customEvent.setUid(null);
-      return customEvent;
-    } catch (IOException e) {
-      throw new IllegalStateException("Event can't be cloned because of serialization issue.", e);
-    }
-  }
 }
@@ -2,12 +2,18 @@ package io.phasetwo.keycloak.events;
 
 import com.google.auto.service.AutoService;
 import com.google.common.util.concurrent.MoreExecutors;
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.net.http.HttpClient;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.jbosslog.JBossLog;
+import org.apache.http.impl.client.CloseableHttpClient;
 import org.keycloak.Config;
 import org.keycloak.events.EventListenerProviderFactory;
 import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
 
 @JBossLog
 @AutoService(EventListenerProviderFactory.class)
@@ -15,9 +21,28 @@ public class WebhookSenderEventListenerProviderFactory
     extends AbstractEventListenerProviderFactory {
 
   public static final String PROVIDER_ID = "ext-event-webhook";
+  public static final String POST_COMMIT_THREADS = "postCommitThreads";
+  public static final String POST_COMMIT_QUEUE = "postCommitQueue";
 
-  private ScheduledExecutorService exec;
+  static final int DEFAULT_POST_COMMIT_QUEUE = 10000;
+
+  /** How long close() waits for running and delayed sends to finish */
+  static final long SHUTDOWN_TIMEOUT = 10000l;
+
+  private SenderExecutor exec;
+  private CloseableHttpClient http;
+  private HttpClient asyncHttp;
+  private Batcher<WebhookPayload> batcher;
+  private Coalescer<WebhookPayload> coalescer;
+  private OutboxDrainer outbox;
+  private DeliveryPartitioner partitioner;
+  private DeadLetterReplayer replayer;
+  private ExecutorService postCommit;
+  private UsernameCache usernames;
+  private SendRecorder recorder;
+  private final WebhookRegistry registry = new WebhookRegistry();
   private boolean storeWebhookEvents = false;
+  private boolean deadLetters = false;
 
   @Override
   public String getId() {
@@ -26,26 +51,153 @@ public class WebhookSenderEventListenerProviderFactory
 
   @Override
   public WebhookSenderEventListenerProvider create(KeycloakSession session) {
-    return new WebhookSenderEventListenerProvider(session, exec, storeWebhookEvents);
+    return new WebhookSenderEventListenerProvider(session, this);
   }
 
   @Override
   public void init(Config.Scope scope) {
     storeWebhookEvents = scope.getBoolean("storeWebhookEvents", false);
     log.infof("storeWebhookEvents %b", storeWebhookEvents);
+    deadLetters = scope.getBoolean("deadLetters", false);
+    log.infof("deadLetters %b", deadLetters);
+
+    exec = SenderExecutor.create(scope);
+    batcher = new Batcher<>(exec);
+    coalescer = new Coalescer<>(exec);
+    http = PooledHttpClientBuilder.create(scope);
+    asyncHttp = PooledHttpClientBuilder.createAsync(scope);
+    outbox = OutboxDrainer.create(scope, this);
+    partitioner = DeliveryPartitioner.create(scope, this);
+    replayer = DeadLetterReplayer.create(scope, this);
+    postCommit = createPostCommit(scope);
+    usernames = UsernameCache.create(scope);
+    recorder = SendRecorder.create(scope, exec);
+  }
+
+  /**
+   * The events of a committed transaction are processed on a bounded pool, rather than on the
+   * thread that committed it. When the queue is full, they are processed on the committing thread.
+   */
+  private static ExecutorService createPostCommit(Config.Scope scope) {
+    int threads = scope.getInt(POST_COMMIT_THREADS, Runtime.getRuntime().availableProcessors());
+    int queue = Math.max(1, scope.getInt(POST_COMMIT_QUEUE, DEFAULT_POST_COMMIT_QUEUE));
+    log.infof("%s %d, %s %d", POST_COMMIT_THREADS, threads, POST_COMMIT_QUEUE, queue);
+    if (threads <= 0) return null;
+    ThreadPoolExecutor pool =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            60l,
+            TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(queue),
+            new ThreadFactoryBuilder().setNameFormat("ext-event-post-commit-%d").build());
+    pool.allowCoreThreadTimeOut(true);
+    return MoreExecutors.getExitingExecutorService(pool);
+  }
+
+  @Override
+  public void postInit(KeycloakSessionFactory factory) {
+    registry.register(factory);
+    if (partitioner != null) partitioner.start(factory);
+    replayer.start(factory);
+    recorder.start(factory);
+    if (outbox != null) outbox.start(factory);
+  }
+
+  public SenderExecutor getExecutor() {
+    return exec;
+  }
+
+  public CloseableHttpClient getHttp() {
+    return http;
+  }
+
+  public HttpClient getAsyncHttp() {
+    return asyncHttp;
+  }
+
+  public Batcher<WebhookPayload> getBatcher() {
+    return batcher;
+  }
+
+  public Coalescer<WebhookPayload> getCoalescer() {
+    return coalescer;
+  }
 
-    exec =
-        MoreExecutors.getExitingScheduledExecutorService(
-            new ScheduledThreadPoolExecutor(Runtime.getRuntime().availableProcessors()));
+  /** The cached webhooks of each realm */
+  public WebhookRegistry getRegistry() {
+    return registry;
+  }
+
+  /** The outbox drainer, or null if the outbox is not enabled */
+  public OutboxDrainer getOutbox() {
+    return outbox;
+  }
+
+  /** The delivery partitioner, or null if partitioned delivery is not enabled */
+  public DeliveryPartitioner getPartitioner() {
+    return partitioner;
+  }
+
+  /** Replays dead letters in the background */
+  public DeadLetterReplayer getReplayer() {
+    return replayer;
+  }
+
+  /** Processes the events of committed transactions, or null if they are processed inline */
+  public ExecutorService getPostCommit() {
+    return postCommit;
+  }
+
+  /** The usernames that events are enriched with */
+  public UsernameCache getUsernames() {
+    return usernames;
+  }
+
+  /** Records the outcomes of sends write-behind */
+  public SendRecorder getRecorder() {
+    return recorder;
+  }
+
+  public boolean isStoreWebhookEvents() {
+    return storeWebhookEvents;
+  }
+
+  /** Whether webhook sends that are given up are kept as dead letters */
+  public boolean isDeadLetters() {
+    return deadLetters;
   }
 
   @Override
   public void close() {
+    if (outbox != null) outbox.stop();
+    if (partitioner != null) partitioner.stop();
+    replayer.stop();
     try {
+      if (postCommit != null) {
+        log.debug("Shutting down post-commit processing");
+        postCommit.shutdown();
+        postCommit.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS);
+      }
       log.debug("Shutting down scheduler");
       exec.shutdown();
+      if (!exec.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.MILLISECONDS)) {
+        log.warn(
+            "Scheduler did not finish in time. Outcomes of unfinished sends are not recorded.");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
     } catch (Exception e) {
       log.warn("Error in shutdown of scheduler", e);
     }
+    // the sends that finished during shutdown have queued their outcomes
+    recorder.stop();
+    try {
+      log.debug("Closing http client");
+      http.close();
+      if (asyncHttp != null) asyncHttp.shutdown();
+    } catch (Exception e) {
+      log.warn("Error closing http client", e);
+    }
   }
 }
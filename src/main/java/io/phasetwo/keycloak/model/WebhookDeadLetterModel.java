@@ -0,0 +1,32 @@
+package io.phasetwo.keycloak.model;
+
+import java.util.Date;
+
+/** a send of a webhook payload that was given up after its last attempt failed */
+public interface WebhookDeadLetterModel {
+
+  String getId();
+
+  String getRealmId();
+
+  WebhookModel getWebhook();
+
+  /** the ID of the webhook, without loading it */
+  String getWebhookId();
+
+  String getEventType();
+
+  /** the serialized event that was sent */
+  String getPayload();
+
+  /** the HTTP status of the last attempt, or null if there was no response */
+  Integer getStatus();
+
+  /** the error of the last attempt, if there was no response */
+  String getError();
+
+  /** the number of times the send was attempted */
+  Integer getAttempts();
+
+  Date getCreatedAt();
+}
@@ -25,6 +25,42 @@ public interface WebhookModel {
 
   void setAlgorithm(String algorithm);
 
+  /** max number of events sent in one request. null or 1 disables batching */
+  Integer getBatchSize();
+
+  void setBatchSize(Integer batchSize);
+
+  /** max time in milliseconds to wait for a batch to fill before sending */
+  Integer getBatchLinger();
+
+  void setBatchLinger(Integer batchLinger);
+
+  /**
+   * time in milliseconds in which events with the same coalesce key are coalesced into the latest
+   * one. null or 0 disables coalescing
+   */
+  Integer getCoalesceWindow();
+
+  void setCoalesceWindow(Integer coalesceWindow);
+
+  /**
+   * comma separated event fields that events must share to be coalesced, of type, userId and
+   * resourcePath. null for all of them
+   */
+  String getCoalesceKey();
+
+  void setCoalesceKey(String coalesceKey);
+
+  /** max number of sends per second. null or 0 disables rate limiting */
+  Integer getRateLimit();
+
+  void setRateLimit(Integer rateLimit);
+
+  /** max number of sends in a burst above the rate limit. null for the rate limit */
+  Integer getRateBurst();
+
+  void setRateBurst(Integer rateBurst);
+
   RealmModel getRealm();
 
   UserModel getCreatedBy();
@@ -0,0 +1,36 @@
+package io.phasetwo.keycloak.model;
+
+import java.util.Date;
+
+/** a send of a webhook payload that is waiting in the outbox to be delivered */
+public interface WebhookOutboxModel {
+
+  String getId();
+
+  String getRealmId();
+
+  WebhookModel getWebhook();
+
+  /** the ID of the webhook, without loading it */
+  String getWebhookId();
+
+  /** the serialized event that will be sent */
+  String getPayload();
+
+  /** the number of times the entry has been leased for delivery */
+  Integer getAttempts();
+
+  Date getCreatedAt();
+
+  Date getNextAttemptAt();
+
+  String getLeaseOwner();
+
+  Date getLeaseUntil();
+
+  /** lease the entry to the owner until the given time, and count it as an attempt */
+  void lease(String owner, Date until);
+
+  /** give up the lease, so that the entry is picked up again at the given time */
+  void release(Date nextAttemptAt);
+}
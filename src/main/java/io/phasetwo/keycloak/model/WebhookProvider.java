@@ -1,5 +1,6 @@
 package io.phasetwo.keycloak.model;
 
+import java.util.List;
 import java.util.stream.Stream;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
@@ -31,6 +32,18 @@ public interface WebhookProvider extends Provider {
 
   WebhookSendModel getSendById(RealmModel realm, String id);
 
+  /**
+   * record the attempts of sends with their status, counting each as a retry of its send, and
+   * creating the sends that are new, in the current transaction. attempts of events that are not
+   * stored are skipped. returns the number of attempts recorded.
+   */
+  int recordSends(List<WebhookSendAttempt> attempts);
+
+  /** record an attempt of a send, as {@link #recordSends} */
+  default boolean recordSend(WebhookSendAttempt attempt) {
+    return recordSends(List.of(attempt)) > 0;
+  }
+
   /** create a new webhook with a url and a user who created it */
   WebhookModel createWebhook(RealmModel realm, String url, UserModel createdBy);
 
@@ -53,4 +66,49 @@ public interface WebhookProvider extends Provider {
 
   /** remove all webhooks for a given realm */
   void removeWebhooks(RealmModel realm);
+
+  /** add a send of the payload to the webhook to the outbox, in the current transaction */
+  WebhookOutboxModel storeOutbox(RealmModel realm, String webhookId, String id, String payload);
+
+  /** get an outbox entry by its ID */
+  WebhookOutboxModel getOutboxById(String id);
+
+  /**
+   * lease up to max outbox entries that are due, across all realms, skipping entries that are
+   * leased or locked by others
+   */
+  Stream<WebhookOutboxModel> leaseOutbox(String owner, long leaseMillis, int max);
+
+  /** give up all of the leases held by the owner */
+  void releaseOutbox(String owner);
+
+  /** remove an outbox entry by its ID */
+  boolean removeOutbox(String id);
+
+  /**
+   * add a send of the payload to the webhook that was given up to the dead letters, or update it if
+   * it is already there
+   */
+  WebhookDeadLetterModel storeDeadLetter(
+      RealmModel realm,
+      String webhookId,
+      String id,
+      String eventType,
+      String payload,
+      Integer status,
+      String error,
+      Integer attempts);
+
+  /** get a dead letter by its ID */
+  WebhookDeadLetterModel getDeadLetterById(RealmModel realm, String id);
+
+  /**
+   * given a webhook, show up to max of its dead letters, oldest first, starting after the dead
+   * letter with the ID, or from the first if it is null
+   */
+  Stream<WebhookDeadLetterModel> getDeadLetters(
+      RealmModel realm, WebhookModel webhook, String afterId, Integer maxResults);
+
+  /** remove a dead letter by its ID */
+  boolean removeDeadLetter(String id);
 }
@@ -0,0 +1,72 @@
+package io.phasetwo.keycloak.model;
+
+import java.util.Date;
+
+/** the outcome of an attempt of a send of an event to a webhook, waiting to be recorded */
+public class WebhookSendAttempt {
+
+  private final String realmId;
+  private final String webhookId;
+  private final KeycloakEventType type;
+  private final String eventId;
+  private final String id;
+  private final String eventType;
+  private final Integer status;
+  private final Date sentAt;
+
+  public WebhookSendAttempt(
+      String realmId,
+      String webhookId,
+      KeycloakEventType type,
+      String eventId,
+      String id,
+      String eventType,
+      Integer status,
+      Date sentAt) {
+    this.realmId = realmId;
+    this.webhookId = webhookId;
+    this.type = type;
+    this.eventId = eventId;
+    this.id = id;
+    this.eventType = eventType;
+    this.status = status;
+    this.sentAt = sentAt;
+  }
+
+  public String getRealmId() {
+    return realmId;
+  }
+
+  public String getWebhookId() {
+    return webhookId;
+  }
+
+  /** whether the event is a user or an admin event */
+  public KeycloakEventType getType() {
+    return type;
+  }
+
+  /** the ID of the Keycloak event that was sent */
+  public String getEventId() {
+    return eventId;
+  }
+
+  /** the ID of the send, which is the uid of its payload */
+  public String getId() {
+    return id;
+  }
+
+  /** the type of the event, such as {@code access.LOGIN} */
+  public String getEventType() {
+    return eventType;
+  }
+
+  /** the HTTP status of the attempt */
+  public Integer getStatus() {
+    return status;
+  }
+
+  public Date getSentAt() {
+    return sentAt;
+  }
+}
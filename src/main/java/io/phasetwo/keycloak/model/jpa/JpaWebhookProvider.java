@@ -1,12 +1,18 @@
 package io.phasetwo.keycloak.model.jpa;
 
+import io.phasetwo.keycloak.events.WebhookSenderEventListenerProviderFactory;
 import io.phasetwo.keycloak.model.KeycloakEventType;
+import io.phasetwo.keycloak.model.WebhookDeadLetterModel;
 import io.phasetwo.keycloak.model.WebhookEventModel;
 import io.phasetwo.keycloak.model.WebhookModel;
+import io.phasetwo.keycloak.model.WebhookOutboxModel;
 import io.phasetwo.keycloak.model.WebhookProvider;
+import io.phasetwo.keycloak.model.WebhookSendAttempt;
 import io.phasetwo.keycloak.model.WebhookSendModel;
+import io.phasetwo.keycloak.model.jpa.entity.WebhookDeadLetterEntity;
 import io.phasetwo.keycloak.model.jpa.entity.WebhookEntity;
 import io.phasetwo.keycloak.model.jpa.entity.WebhookEventEntity;
+import io.phasetwo.keycloak.model.jpa.entity.WebhookOutboxEntity;
 import io.phasetwo.keycloak.model.jpa.entity.WebhookSendEntity;
 import jakarta.persistence.EntityExistsException;
 import jakarta.persistence.EntityManager;
@@ -14,8 +20,17 @@ import jakarta.persistence.NoResultException;
 import jakarta.persistence.Query;
 import jakarta.persistence.TypedQuery;
 import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import lombok.extern.jbosslog.JBossLog;
+import org.hibernate.LockMode;
+import org.hibernate.Session;
+import org.keycloak.connections.jpa.util.JpaUtils;
+import org.keycloak.events.EventListenerProvider;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
@@ -97,6 +112,15 @@ public class JpaWebhookProvider implements WebhookProvider {
     Query query = em.createNamedQuery("removeAllWebhooks");
     query.setParameter("realmId", realm.getId());
     query.executeUpdate();
+    // the bulk delete bypasses the webhook adapters, so drop the cached webhooks here
+    WebhookSenderEventListenerProviderFactory factory =
+        (WebhookSenderEventListenerProviderFactory)
+            session
+                .getKeycloakSessionFactory()
+                .getProviderFactory(
+                    EventListenerProvider.class,
+                    WebhookSenderEventListenerProviderFactory.PROVIDER_ID);
+    if (factory != null) factory.getRegistry().invalidateOnCommit(session, realm.getId());
   }
 
   @Override
@@ -175,6 +199,71 @@ public class JpaWebhookProvider implements WebhookProvider {
     return send;
   }
 
+  @Override
+  public int recordSends(List<WebhookSendAttempt> attempts) {
+    if (attempts.isEmpty()) return 0;
+    final String sends = JpaUtils.getTableNameForNativeQuery("WEBHOOK_SEND", em);
+    final String events = JpaUtils.getTableNameForNativeQuery("WEBHOOK_EVENT", em);
+    Integer upserted =
+        em.unwrap(Session.class)
+            .doReturningWork(
+                connection -> {
+                  SendUpsert upsert =
+                      SendUpsert.of(connection.getMetaData().getDatabaseProductName());
+                  if (upsert == null) return null;
+                  int recorded = 0;
+                  for (KeycloakEventType type : KeycloakEventType.values()) {
+                    List<WebhookSendAttempt> ofType =
+                        attempts.stream()
+                            .filter(a -> a.getType() == type)
+                            .collect(Collectors.toList());
+                    if (ofType.isEmpty()) continue;
+                    try (PreparedStatement ps =
+                        connection.prepareStatement(upsert.sql(sends, events, type))) {
+                      for (WebhookSendAttempt a : ofType) {
+                        SendUpsert.bind(ps, a);
+                        ps.addBatch();
+                      }
+                      for (int count : ps.executeBatch()) {
+                        if (count > 0 || count == Statement.SUCCESS_NO_INFO) recorded++;
+                      }
+                    }
+                  }
+                  return recorded;
+                });
+    return upserted != null ? upserted : storeSends(attempts);
+  }
+
+  /** Record the attempts through the entities, for databases without a supported upsert */
+  private int storeSends(List<WebhookSendAttempt> attempts) {
+    // the inserts and updates are sent in JDBC batches when the transaction is flushed
+    em.unwrap(Session.class).setJdbcBatchSize(Math.max(1, attempts.size()));
+    int recorded = 0;
+    for (WebhookSendAttempt a : attempts) {
+      RealmModel realm = session.realms().getRealm(a.getRealmId());
+      WebhookEventModel event = realm == null ? null : getEvent(realm, a.getType(), a.getEventId());
+      if (event == null) {
+        log.tracef(
+            "No event for [%s] %s. Skipping send storage.", a.getEventType(), a.getEventId());
+        continue;
+      }
+      WebhookSendEntity e = em.find(WebhookSendEntity.class, a.getId());
+      if (e == null) {
+        e = new WebhookSendEntity();
+        e.setId(a.getId());
+        e.setEventType(a.getEventType());
+        e.setWebhook(em.getReference(WebhookEntity.class, a.getWebhookId()));
+        e.setEvent(((WebhookEventAdapter) event).getEntity());
+        em.persist(e);
+      }
+      e.setStatus(a.getStatus());
+      e.setRetries(e.getRetries() != null ? e.getRetries() + 1 : 1);
+      e.setSentAt(a.getSentAt());
+      recorded++;
+    }
+    return recorded;
+  }
+
   @Override
   public Stream<WebhookSendModel> getSends(RealmModel realm, WebhookEventModel event) {
     TypedQuery<WebhookSendEntity> query =
@@ -183,6 +272,128 @@ public class JpaWebhookProvider implements WebhookProvider {
     return query.getResultStream().map(e -> new WebhookSendAdapter(session, realm, em, e));
   }
 
+  @Override
+  public WebhookOutboxModel storeOutbox(
+      RealmModel realm, String webhookId, String id, String payload) {
+    WebhookOutboxEntity e = new WebhookOutboxEntity();
+    e.setId(id);
+    e.setRealmId(realm.getId());
+    e.setWebhook(em.getReference(WebhookEntity.class, webhookId));
+    e.setPayload(payload);
+    em.persist(e);
+    return new WebhookOutboxAdapter(session, realm, em, e);
+  }
+
+  @Override
+  public WebhookOutboxModel getOutboxById(String id) {
+    WebhookOutboxEntity e = em.find(WebhookOutboxEntity.class, id);
+    if (e == null) return null;
+    return new WebhookOutboxAdapter(session, session.realms().getRealm(e.getRealmId()), em, e);
+  }
+
+  @Override
+  public Stream<WebhookOutboxModel> leaseOutbox(String owner, long leaseMillis, int max) {
+    Date now = new Date();
+    TypedQuery<WebhookOutboxEntity> query =
+        em.createNamedQuery("getDueWebhookOutbox", WebhookOutboxEntity.class);
+    query.setParameter("now", now);
+    query.setMaxResults(max);
+    // FOR UPDATE SKIP LOCKED, where the database supports it
+    query.unwrap(org.hibernate.query.Query.class).setHibernateLockMode(LockMode.UPGRADE_SKIPLOCKED);
+    Date until = new Date(now.getTime() + leaseMillis);
+    List<WebhookOutboxModel> leased =
+        query
+            .getResultStream()
+            .<WebhookOutboxModel>map(
+                e ->
+                    new WebhookOutboxAdapter(
+                        session, session.realms().getRealm(e.getRealmId()), em, e))
+            .collect(Collectors.toList());
+    leased.forEach(o -> o.lease(owner, until));
+    em.flush();
+    return leased.stream();
+  }
+
+  @Override
+  public void releaseOutbox(String owner) {
+    Query query = em.createNamedQuery("releaseWebhookOutboxByOwner");
+    query.setParameter("owner", owner);
+    query.executeUpdate();
+  }
+
+  @Override
+  public boolean removeOutbox(String id) {
+    WebhookOutboxEntity e = em.find(WebhookOutboxEntity.class, id);
+    if (e == null) return false;
+    em.remove(e);
+    em.flush();
+    return true;
+  }
+
+  @Override
+  public WebhookDeadLetterModel storeDeadLetter(
+      RealmModel realm,
+      String webhookId,
+      String id,
+      String eventType,
+      String payload,
+      Integer status,
+      String error,
+      Integer attempts) {
+    WebhookDeadLetterEntity e = em.find(WebhookDeadLetterEntity.class, id);
+    if (e == null) {
+      e = new WebhookDeadLetterEntity();
+      e.setId(id);
+      e.setRealmId(realm.getId());
+      e.setWebhook(em.getReference(WebhookEntity.class, webhookId));
+      em.persist(e);
+    }
+    e.setEventType(eventType);
+    e.setPayload(payload);
+    e.setStatus(status);
+    e.setError(error);
+    e.setAttempts(attempts);
+    return new WebhookDeadLetterAdapter(session, realm, em, e);
+  }
+
+  @Override
+  public WebhookDeadLetterModel getDeadLetterById(RealmModel realm, String id) {
+    WebhookDeadLetterEntity e = em.find(WebhookDeadLetterEntity.class, id);
+    if (e != null && e.getRealmId().equals(realm.getId())) {
+      return new WebhookDeadLetterAdapter(session, realm, em, e);
+    } else {
+      return null;
+    }
+  }
+
+  @Override
+  public Stream<WebhookDeadLetterModel> getDeadLetters(
+      RealmModel realm, WebhookModel webhook, String afterId, Integer maxResults) {
+    WebhookDeadLetterEntity after =
+        afterId == null ? null : em.find(WebhookDeadLetterEntity.class, afterId);
+    TypedQuery<WebhookDeadLetterEntity> query;
+    if (after == null) {
+      query = em.createNamedQuery("getWebhookDeadLettersByWebhook", WebhookDeadLetterEntity.class);
+    } else {
+      // keyset paging, which doesn't scan the skipped rows as an offset does
+      query =
+          em.createNamedQuery("getWebhookDeadLettersByWebhookAfter", WebhookDeadLetterEntity.class);
+      query.setParameter("createdAt", after.getCreatedAt());
+      query.setParameter("id", after.getId());
+    }
+    query.setParameter("webhook", ((WebhookAdapter) webhook).getEntity());
+    if (maxResults != null) query.setMaxResults(maxResults);
+    return query.getResultStream().map(e -> new WebhookDeadLetterAdapter(session, realm, em, e));
+  }
+
+  @Override
+  public boolean removeDeadLetter(String id) {
+    WebhookDeadLetterEntity e = em.find(WebhookDeadLetterEntity.class, id);
+    if (e == null) return false;
+    em.remove(e);
+    return true;
+  }
+
   @Override
   public void close() {}
 }
@@ -0,0 +1,106 @@
+package io.phasetwo.keycloak.model.jpa;
+
+import io.phasetwo.keycloak.model.KeycloakEventType;
+import io.phasetwo.keycloak.model.WebhookSendAttempt;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+
+/**
+ * The native statement that records an attempt of a send in one round trip, for the databases that
+ * have an upsert. The send is inserted with the ID of its stored event, which is selected in the
+ * same statement, or if a send with its ID is already there, its status and time are updated and
+ * its retries counted up. Nothing is written if the event is not stored.
+ *
+ * <p>All statements take the same parameters, which are set by {@link #bind}.
+ */
+enum SendUpsert {
+  /** PostgreSQL and CockroachDB, which also reports itself as PostgreSQL through its driver */
+  POSTGRES {
+    @Override
+    String sql(String sends, String events, String eventColumn) {
+      return "INSERT INTO "
+          + sends
+          + " AS S (ID, EVENT_TYPE, WEBHOOK_ID, WEBHOOK_EVENT_ID, STATUS, RETRIES, SENT_AT)"
+          + " SELECT CAST(? AS VARCHAR), CAST(? AS VARCHAR), CAST(? AS VARCHAR), E.ID,"
+          + " CAST(? AS INTEGER), 1, CAST(? AS TIMESTAMP) FROM "
+          + events
+          + " E WHERE E.REALM_ID = ? AND E.EVENT_TYPE = ? AND E."
+          + eventColumn
+          + " = ? LIMIT 1"
+          + " ON CONFLICT (ID) DO UPDATE SET STATUS = EXCLUDED.STATUS,"
+          + " RETRIES = COALESCE(S.RETRIES, 0) + 1, SENT_AT = EXCLUDED.SENT_AT";
+    }
+  },
+  /**
+   * MySQL and MariaDB. The new values are selected from a derived table and referred to by their
+   * column names in the update, rather than with {@code VALUES()}, which MySQL 8.0.20 deprecates,
+   * or with a row alias, which needs MySQL 8.0.19 and isn't supported by MariaDB.
+   */
+  MYSQL {
+    @Override
+    String sql(String sends, String events, String eventColumn) {
+      return "INSERT INTO "
+          + sends
+          + " (ID, EVENT_TYPE, WEBHOOK_ID, WEBHOOK_EVENT_ID, STATUS, RETRIES, SENT_AT)"
+          + " SELECT * FROM (SELECT ? N_ID, ? N_EVENT_TYPE, ? N_WEBHOOK_ID, E.ID N_EVENT_ID,"
+          + " ? N_STATUS, 1 N_RETRIES, ? N_SENT_AT FROM "
+          + events
+          + " E WHERE E.REALM_ID = ? AND E.EVENT_TYPE = ? AND E."
+          + eventColumn
+          + " = ? LIMIT 1) N"
+          + " ON DUPLICATE KEY UPDATE STATUS = N_STATUS,"
+          + " RETRIES = COALESCE(RETRIES, 0) + 1, SENT_AT = N_SENT_AT";
+    }
+  },
+  H2 {
+    @Override
+    String sql(String sends, String events, String eventColumn) {
+      return "MERGE INTO "
+          + sends
+          + " S USING (SELECT CAST(? AS VARCHAR(36)) ID, CAST(? AS VARCHAR(255)) EVENT_TYPE,"
+          + " CAST(? AS VARCHAR(36)) WEBHOOK_ID, E.ID WEBHOOK_EVENT_ID, CAST(? AS INT) STATUS,"
+          + " CAST(? AS TIMESTAMP) SENT_AT FROM "
+          + events
+          + " E WHERE E.REALM_ID = ? AND E.EVENT_TYPE = ? AND E."
+          + eventColumn
+          + " = ? LIMIT 1) N ON (S.ID = N.ID) WHEN MATCHED THEN UPDATE SET STATUS = N.STATUS,"
+          + " RETRIES = COALESCE(S.RETRIES, 0) + 1, SENT_AT = N.SENT_AT WHEN NOT MATCHED THEN"
+          + " INSERT (ID, EVENT_TYPE, WEBHOOK_ID, WEBHOOK_EVENT_ID, STATUS, RETRIES, SENT_AT)"
+          + " VALUES (N.ID, N.EVENT_TYPE, N.WEBHOOK_ID, N.WEBHOOK_EVENT_ID, N.STATUS, 1,"
+          + " N.SENT_AT)";
+    }
+  };
+
+  /** The upsert for the database, or null if it has none that is supported */
+  static SendUpsert of(String databaseProductName) {
+    if (databaseProductName == null) return null;
+    String name = databaseProductName.toLowerCase();
+    if (name.contains("postgres") || name.contains("cockroach")) return POSTGRES;
+    if (name.contains("mysql") || name.contains("mariadb")) return MYSQL;
+    if (name.equals("h2")) return H2;
+    return null;
+  }
+
+  /**
+   * The statement for the type of event, with the table names as they are used in native queries
+   */
+  String sql(String sends, String events, KeycloakEventType type) {
+    return sql(sends, events, type == KeycloakEventType.USER ? "EVENT_ID" : "ADMIN_EVENT_ID");
+  }
+
+  abstract String sql(String sends, String events, String eventColumn);
+
+  /** Set the parameters of the statement for the attempt */
+  static void bind(PreparedStatement ps, WebhookSendAttempt a) throws SQLException {
+    ps.setString(1, a.getId());
+    ps.setString(2, a.getEventType());
+    ps.setString(3, a.getWebhookId());
+    ps.setObject(4, a.getStatus(), Types.INTEGER);
+    ps.setTimestamp(5, new Timestamp(a.getSentAt().getTime()));
+    ps.setString(6, a.getRealmId());
+    ps.setString(7, a.getType().name());
+    ps.setString(8, a.getEventId());
+  }
+}
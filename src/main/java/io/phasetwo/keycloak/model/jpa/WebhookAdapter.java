@@ -75,6 +75,66 @@ public class WebhookAdapter implements WebhookModel, JpaModel<WebhookEntity> {
     webhook.setAlgorithm(algorithm);
   }
 
+  @Override
+  public Integer getBatchSize() {
+    return webhook.getBatchSize();
+  }
+
+  @Override
+  public void setBatchSize(Integer batchSize) {
+    webhook.setBatchSize(batchSize);
+  }
+
+  @Override
+  public Integer getBatchLinger() {
+    return webhook.getBatchLinger();
+  }
+
+  @Override
+  public void setBatchLinger(Integer batchLinger) {
+    webhook.setBatchLinger(batchLinger);
+  }
+
+  @Override
+  public Integer getCoalesceWindow() {
+    return webhook.getCoalesceWindow();
+  }
+
+  @Override
+  public void setCoalesceWindow(Integer coalesceWindow) {
+    webhook.setCoalesceWindow(coalesceWindow);
+  }
+
+  @Override
+  public String getCoalesceKey() {
+    return webhook.getCoalesceKey();
+  }
+
+  @Override
+  public void setCoalesceKey(String coalesceKey) {
+    webhook.setCoalesceKey(coalesceKey);
+  }
+
+  @Override
+  public Integer getRateLimit() {
+    return webhook.getRateLimit();
+  }
+
+  @Override
+  public void setRateLimit(Integer rateLimit) {
+    webhook.setRateLimit(rateLimit);
+  }
+
+  @Override
+  public Integer getRateBurst() {
+    return webhook.getRateBurst();
+  }
+
+  @Override
+  public void setRateBurst(Integer rateBurst) {
+    webhook.setRateBurst(rateBurst);
+  }
+
   @Override
   public RealmModel getRealm() {
     return session.realms().getRealm(webhook.getRealmId());
@@ -0,0 +1,85 @@
+package io.phasetwo.keycloak.model.jpa;
+
+import io.phasetwo.keycloak.model.WebhookDeadLetterModel;
+import io.phasetwo.keycloak.model.WebhookModel;
+import io.phasetwo.keycloak.model.jpa.entity.WebhookDeadLetterEntity;
+import jakarta.persistence.EntityManager;
+import java.util.Date;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.jpa.JpaModel;
+
+public class WebhookDeadLetterAdapter
+    implements WebhookDeadLetterModel, JpaModel<WebhookDeadLetterEntity> {
+
+  protected final KeycloakSession session;
+  protected final WebhookDeadLetterEntity deadLetter;
+  protected final EntityManager em;
+  protected final RealmModel realm;
+
+  public WebhookDeadLetterAdapter(
+      KeycloakSession session,
+      RealmModel realm,
+      EntityManager em,
+      WebhookDeadLetterEntity deadLetter) {
+    this.session = session;
+    this.realm = realm;
+    this.em = em;
+    this.deadLetter = deadLetter;
+  }
+
+  @Override
+  public WebhookDeadLetterEntity getEntity() {
+    return deadLetter;
+  }
+
+  @Override
+  public String getId() {
+    return deadLetter.getId();
+  }
+
+  @Override
+  public String getRealmId() {
+    return deadLetter.getRealmId();
+  }
+
+  @Override
+  public WebhookModel getWebhook() {
+    return new WebhookAdapter(session, realm, em, deadLetter.getWebhook());
+  }
+
+  @Override
+  public String getWebhookId() {
+    return deadLetter.getWebhook() == null ? null : deadLetter.getWebhook().getId();
+  }
+
+  @Override
+  public String getEventType() {
+    return deadLetter.getEventType();
+  }
+
+  @Override
+  public String getPayload() {
+    return deadLetter.getPayload();
+  }
+
+  @Override
+  public Integer getStatus() {
+    return deadLetter.getStatus();
+  }
+
+  @Override
+  public String getError() {
+    return deadLetter.getError();
+  }
+
+  @Override
+  public Integer getAttempts() {
+    return deadLetter.getAttempts();
+  }
+
+  @Override
+  public Date getCreatedAt() {
+    return deadLetter.getCreatedAt();
+  }
+}
@@ -0,0 +1,97 @@
+package io.phasetwo.keycloak.model.jpa;
+
+import io.phasetwo.keycloak.model.WebhookModel;
+import io.phasetwo.keycloak.model.WebhookOutboxModel;
+import io.phasetwo.keycloak.model.jpa.entity.WebhookOutboxEntity;
+import jakarta.persistence.EntityManager;
+import java.util.Date;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.jpa.JpaModel;
+
+public class WebhookOutboxAdapter implements WebhookOutboxModel, JpaModel<WebhookOutboxEntity> {
+
+  protected final KeycloakSession session;
+  protected final WebhookOutboxEntity outbox;
+  protected final EntityManager em;
+  protected final RealmModel realm;
+
+  public WebhookOutboxAdapter(
+      KeycloakSession session, RealmModel realm, EntityManager em, WebhookOutboxEntity outbox) {
+    this.session = session;
+    this.realm = realm;
+    this.em = em;
+    this.outbox = outbox;
+  }
+
+  @Override
+  public WebhookOutboxEntity getEntity() {
+    return outbox;
+  }
+
+  @Override
+  public String getId() {
+    return outbox.getId();
+  }
+
+  @Override
+  public String getRealmId() {
+    return outbox.getRealmId();
+  }
+
+  @Override
+  public WebhookModel getWebhook() {
+    return new WebhookAdapter(session, realm, em, outbox.getWebhook());
+  }
+
+  @Override
+  public String getWebhookId() {
+    return outbox.getWebhook() == null ? null : outbox.getWebhook().getId();
+  }
+
+  @Override
+  public String getPayload() {
+    return outbox.getPayload();
+  }
+
+  @Override
+  public Integer getAttempts() {
+    return outbox.getAttempts();
+  }
+
+  @Override
+  public Date getCreatedAt() {
+    return outbox.getCreatedAt();
+  }
+
+  @Override
+  public Date getNextAttemptAt() {
+    return outbox.getNextAttemptAt();
+  }
+
+  @Override
+  public String getLeaseOwner() {
+    return outbox.getLeaseOwner();
+  }
+
+  @Override
+  public Date getLeaseUntil() {
+    return outbox.getLeaseUntil();
+  }
+
+  @Override
+  public void lease(String owner, Date until) {
+    int a = 0;
+    if (outbox.getAttempts() != null) a = outbox.getAttempts();
+    outbox.setAttempts(a + 1);
+    outbox.setLeaseOwner(owner);
+    outbox.setLeaseUntil(until);
+  }
+
+  @Override
+  public void release(Date nextAttemptAt) {
+    outbox.setLeaseOwner(null);
+    outbox.setLeaseUntil(null);
+    outbox.setNextAttemptAt(nextAttemptAt);
+  }
+}
@@ -0,0 +1,150 @@
+package io.phasetwo.keycloak.model.jpa.entity;
+
+import jakarta.persistence.*;
+import java.util.Date;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+@NamedQueries({
+  @NamedQuery(
+      name = "getWebhookDeadLettersByWebhook",
+      query =
+          "SELECT d FROM WebhookDeadLetterEntity d WHERE d.webhook = :webhook ORDER BY d.createdAt,"
+              + " d.id"),
+  @NamedQuery(
+      name = "getWebhookDeadLettersByWebhookAfter",
+      query =
+          "SELECT d FROM WebhookDeadLetterEntity d WHERE d.webhook = :webhook AND (d.createdAt >"
+              + " :createdAt OR (d.createdAt = :createdAt AND d.id > :id)) ORDER BY d.createdAt,"
+              + " d.id")
+})
+@Entity
+@Table(name = "WEBHOOK_DEAD_LETTER")
+public class WebhookDeadLetterEntity {
+  @Id
+  @Column(name = "ID", nullable = false, length = 36)
+  @Access(AccessType.PROPERTY)
+  protected String id;
+
+  @Column(name = "REALM_ID", nullable = false)
+  protected String realmId;
+
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn(name = "WEBHOOK_ID")
+  protected WebhookEntity webhook;
+
+  @Column(name = "EVENT_TYPE")
+  protected String eventType;
+
+  @Column(name = "PAYLOAD", nullable = false)
+  @JdbcTypeCode(SqlTypes.JSON)
+  protected String payload;
+
+  @Column(name = "STATUS")
+  protected Integer status;
+
+  @Column(name = "ERROR")
+  protected String error;
+
+  @Column(name = "ATTEMPTS")
+  protected Integer attempts;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "CREATED_AT")
+  protected Date createdAt;
+
+  @PrePersist
+  protected void onCreate() {
+    if (createdAt == null) createdAt = new Date();
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public String getRealmId() {
+    return realmId;
+  }
+
+  public void setRealmId(String realmId) {
+    this.realmId = realmId;
+  }
+
+  public WebhookEntity getWebhook() {
+    return webhook;
+  }
+
+  public void setWebhook(WebhookEntity webhook) {
+    this.webhook = webhook;
+  }
+
+  public String getEventType() {
+    return eventType;
+  }
+
+  public void setEventType(String eventType) {
+    this.eventType = eventType;
+  }
+
+  public String getPayload() {
+    return payload;
+  }
+
+  public void setPayload(String payload) {
+    this.payload = payload;
+  }
+
+  public Integer getStatus() {
+    return status;
+  }
+
+  public void setStatus(Integer status) {
+    this.status = status;
+  }
+
+  public String getError() {
+    return error;
+  }
+
+  public void setError(String error) {
+    this.error = error;
+  }
+
+  public Integer getAttempts() {
+    return attempts;
+  }
+
+  public void setAttempts(Integer attempts) {
+    this.attempts = attempts;
+  }
+
+  public Date getCreatedAt() {
+    return createdAt;
+  }
+
+  public void setCreatedAt(Date at) {
+    createdAt = at;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null) return false;
+    if (!(o instanceof WebhookDeadLetterEntity)) return false;
+
+    WebhookDeadLetterEntity that = (WebhookDeadLetterEntity) o;
+
+    if (!id.equals(that.id)) return false;
+
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    return id.hashCode();
+  }
+}
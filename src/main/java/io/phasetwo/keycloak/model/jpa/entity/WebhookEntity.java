@@ -39,6 +39,24 @@ public class WebhookEntity {
   @Column(name = "ALGORITHM")
   protected String algorithm;
 
+  @Column(name = "BATCH_SIZE")
+  protected Integer batchSize;
+
+  @Column(name = "BATCH_LINGER")
+  protected Integer batchLinger;
+
+  @Column(name = "COALESCE_WINDOW")
+  protected Integer coalesceWindow;
+
+  @Column(name = "COALESCE_KEY")
+  protected String coalesceKey;
+
+  @Column(name = "RATE_LIMIT")
+  protected Integer rateLimit;
+
+  @Column(name = "RATE_BURST")
+  protected Integer rateBurst;
+
   @ElementCollection(fetch = FetchType.EAGER)
   @Column(name = "VALUE")
   @CollectionTable(
@@ -106,6 +124,54 @@ public class WebhookEntity {
     this.algorithm = algorithm;
   }
 
+  public Integer getBatchSize() {
+    return batchSize;
+  }
+
+  public void setBatchSize(Integer batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  public Integer getBatchLinger() {
+    return batchLinger;
+  }
+
+  public void setBatchLinger(Integer batchLinger) {
+    this.batchLinger = batchLinger;
+  }
+
+  public Integer getCoalesceWindow() {
+    return coalesceWindow;
+  }
+
+  public void setCoalesceWindow(Integer coalesceWindow) {
+    this.coalesceWindow = coalesceWindow;
+  }
+
+  public String getCoalesceKey() {
+    return coalesceKey;
+  }
+
+  public void setCoalesceKey(String coalesceKey) {
+    this.coalesceKey = coalesceKey;
+  }
+
+  public Integer getRateLimit() {
+    return rateLimit;
+  }
+
+  public void setRateLimit(Integer rateLimit) {
+    this.rateLimit = rateLimit;
+  }
+
+  public Integer getRateBurst() {
+    return rateBurst;
+  }
+
+  public void setRateBurst(Integer rateBurst) {
+    this.rateBurst = rateBurst;
+  }
+
   public Set<String> getEventTypes() {
     return eventTypes;
   }
@@ -0,0 +1,151 @@
+package io.phasetwo.keycloak.model.jpa.entity;
+
+import jakarta.persistence.*;
+import java.util.Date;
+import org.hibernate.annotations.JdbcTypeCode;
+import org.hibernate.type.SqlTypes;
+
+@NamedQueries({
+  @NamedQuery(
+      name = "getDueWebhookOutbox",
+      query =
+          "SELECT w FROM WebhookOutboxEntity w WHERE w.nextAttemptAt <= :now AND (w.leaseUntil IS NULL OR w.leaseUntil < :now) ORDER BY w.nextAttemptAt"),
+  @NamedQuery(
+      name = "releaseWebhookOutboxByOwner",
+      query =
+          "UPDATE WebhookOutboxEntity w SET w.leaseOwner = NULL, w.leaseUntil = NULL WHERE w.leaseOwner = :owner")
+})
+@Entity
+@Table(name = "WEBHOOK_OUTBOX")
+public class WebhookOutboxEntity {
+  @Id
+  @Column(name = "ID", nullable = false, length = 36)
+  @Access(AccessType.PROPERTY)
+  protected String id;
+
+  @Column(name = "REALM_ID", nullable = false)
+  protected String realmId;
+
+  @ManyToOne(fetch = FetchType.LAZY)
+  @JoinColumn(name = "WEBHOOK_ID")
+  protected WebhookEntity webhook;
+
+  @Column(name = "PAYLOAD", nullable = false)
+  @JdbcTypeCode(SqlTypes.JSON)
+  protected String payload;
+
+  @Column(name = "ATTEMPTS")
+  protected Integer attempts;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "CREATED_AT")
+  protected Date createdAt;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "NEXT_ATTEMPT_AT")
+  protected Date nextAttemptAt;
+
+  @Column(name = "LEASE_OWNER")
+  protected String leaseOwner;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "LEASE_UNTIL")
+  protected Date leaseUntil;
+
+  @PrePersist
+  protected void onCreate() {
+    if (createdAt == null) createdAt = new Date();
+    if (nextAttemptAt == null) nextAttemptAt = createdAt;
+    if (attempts == null) attempts = 0;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public void setId(String id) {
+    this.id = id;
+  }
+
+  public String getRealmId() {
+    return realmId;
+  }
+
+  public void setRealmId(String realmId) {
+    this.realmId = realmId;
+  }
+
+  public WebhookEntity getWebhook() {
+    return webhook;
+  }
+
+  public void setWebhook(WebhookEntity webhook) {
+    this.webhook = webhook;
+  }
+
+  public String getPayload() {
+    return payload;
+  }
+
+  public void setPayload(String payload) {
+    this.payload = payload;
+  }
+
+  public Integer getAttempts() {
+    return attempts;
+  }
+
+  public void setAttempts(Integer attempts) {
+    this.attempts = attempts;
+  }
+
+  public Date getCreatedAt() {
+    return createdAt;
+  }
+
+  public void setCreatedAt(Date at) {
+    createdAt = at;
+  }
+
+  public Date getNextAttemptAt() {
+    return nextAttemptAt;
+  }
+
+  public void setNextAttemptAt(Date at) {
+    nextAttemptAt = at;
+  }
+
+  public String getLeaseOwner() {
+    return leaseOwner;
+  }
+
+  public void setLeaseOwner(String leaseOwner) {
+    this.leaseOwner = leaseOwner;
+  }
+
+  public Date getLeaseUntil() {
+    return leaseUntil;
+  }
+
+  public void setLeaseUntil(Date at) {
+    leaseUntil = at;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (o == null) return false;
+    if (!(o instanceof WebhookOutboxEntity)) return false;
+
+    WebhookOutboxEntity that = (WebhookOutboxEntity) o;
+
+    if (!id.equals(that.id)) return false;
+
+    return true;
+  }
+
+  @Override
+  public int hashCode() {
+    return id.hashCode();
+  }
+}
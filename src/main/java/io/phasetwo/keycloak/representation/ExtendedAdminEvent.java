@@ -20,7 +20,8 @@ public class ExtendedAdminEvent extends AdminEvent {
   private String type;
   private final Map<String, String> details;
 
-  private static String createType(AdminEvent event) {
+  /** The type of the admin event, such as {@code admin.USER-CREATE} */
+  public static String createType(AdminEvent event) {
     StringBuilder o = new StringBuilder("admin.");
     if (event.getResourceTypeAsString() != null) {
       o.append(event.getResourceTypeAsString());
@@ -30,7 +31,8 @@ public class ExtendedAdminEvent extends AdminEvent {
     return o.toString();
   }
 
-  private static String createType(Event event) {
+  /** The type of the user event, such as {@code access.LOGIN} */
+  public static String createType(Event event) {
     StringBuilder o = new StringBuilder("access.");
     if (event.getType() != null) o.append(event.getType());
     return o.toString();
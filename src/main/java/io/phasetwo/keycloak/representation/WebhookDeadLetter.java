@@ -0,0 +1,30 @@
+package io.phasetwo.keycloak.representation;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.Date;
+import lombok.Data;
+
+@Data
+public class WebhookDeadLetter {
+  private String id;
+
+  @JsonProperty("type")
+  private String eventType;
+
+  @JsonProperty("webhook_id")
+  private String webhookId;
+
+  private Integer status;
+
+  @JsonProperty("status_message")
+  private String statusMessage;
+
+  private String error;
+
+  private Integer attempts;
+
+  @JsonProperty("created_at")
+  private Date createdAt;
+
+  private String payload;
+}
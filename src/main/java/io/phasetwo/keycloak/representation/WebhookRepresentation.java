@@ -11,6 +11,12 @@ public class WebhookRepresentation {
   private String url;
   private String secret;
   private String algorithm;
+  private Integer batchSize;
+  private Integer batchLinger;
+  private Integer coalesceWindow;
+  private String coalesceKey;
+  private Integer rateLimit;
+  private Integer rateBurst;
   private String createdBy;
   private Date createdAt;
   private String realm;
@@ -0,0 +1,18 @@
+package io.phasetwo.keycloak.representation;
+
+import lombok.Data;
+
+/** Live delivery state of a webhook on the node that served the request */
+@Data
+public class WebhookStatus {
+  private String id;
+  private int queueDepth;
+  private int queueCapacity;
+  private int inFlight;
+  private long dropped;
+  private int concurrencyLimit;
+  private long minRttMillis;
+  private String breakerState = "CLOSED";
+  private int breakerFailures;
+  private long breakerRejected;
+}
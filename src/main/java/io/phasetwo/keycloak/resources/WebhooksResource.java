@@ -1,15 +1,22 @@
 package io.phasetwo.keycloak.resources;
 
+import io.phasetwo.keycloak.events.CircuitBreaker;
+import io.phasetwo.keycloak.events.Coalescer;
+import io.phasetwo.keycloak.events.DeliveryQueue;
 import io.phasetwo.keycloak.events.WebhookSenderEventListenerProvider;
+import io.phasetwo.keycloak.events.WebhookSenderEventListenerProviderFactory;
 import io.phasetwo.keycloak.model.KeycloakEventType;
+import io.phasetwo.keycloak.model.WebhookDeadLetterModel;
 import io.phasetwo.keycloak.model.WebhookEventModel;
 import io.phasetwo.keycloak.model.WebhookModel;
 import io.phasetwo.keycloak.model.WebhookProvider;
 import io.phasetwo.keycloak.model.WebhookSendModel;
 import io.phasetwo.keycloak.representation.Credential;
 import io.phasetwo.keycloak.representation.ExtendedAdminEvent;
+import io.phasetwo.keycloak.representation.WebhookDeadLetter;
 import io.phasetwo.keycloak.representation.WebhookRepresentation;
 import io.phasetwo.keycloak.representation.WebhookSend;
+import io.phasetwo.keycloak.representation.WebhookStatus;
 import jakarta.validation.constraints.*;
 import jakarta.ws.rs.*;
 import jakarta.ws.rs.BadRequestException;
@@ -23,6 +30,7 @@ import jakarta.ws.rs.core.MediaType;
 import jakarta.ws.rs.core.Response;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.Optional;
 import java.util.stream.Stream;
 import lombok.extern.jbosslog.JBossLog;
 import org.keycloak.events.EventListenerProvider;
@@ -76,6 +84,12 @@ public class WebhooksResource extends AbstractAdminResource {
     webhook.setCreatedAt(w.getCreatedAt());
     webhook.setRealm(w.getRealm().getName());
     webhook.setEventTypes(w.getEventTypes());
+    webhook.setBatchSize(w.getBatchSize());
+    webhook.setBatchLinger(w.getBatchLinger());
+    webhook.setCoalesceWindow(w.getCoalesceWindow());
+    webhook.setCoalesceKey(w.getCoalesceKey());
+    webhook.setRateLimit(w.getRateLimit());
+    webhook.setRateBurst(w.getRateBurst());
     // no secret
     return webhook;
   }
@@ -115,6 +129,7 @@ public class WebhooksResource extends AbstractAdminResource {
     validateWebhook(rep);
     WebhookModel w = webhooks.createWebhook(realm, rep.getUrl(), auth.getUser());
     mergeWebhook(rep, w);
+    invalidateWebhooks();
     // /auth/realms/:realm/webhooks/:id
     URI location =
         AdminRoot.realmsUrl(session.getContext().getUri())
@@ -149,6 +164,39 @@ public class WebhooksResource extends AbstractAdminResource {
     } else throw new NotFoundException(String.format("no webhook with id %s", id));
   }
 
+  @GET
+  @Path("{id}/status")
+  @Produces(MediaType.APPLICATION_JSON)
+  public WebhookStatus getWebhookStatus(final @PathParam("id") String id) {
+    permissions.realm().requireViewEvents();
+    WebhookModel w = webhooks.getWebhookById(realm, id);
+    if (w == null) {
+      throw new NotFoundException(String.format("no webhook with id %s", id));
+    }
+    WebhookStatus status = new WebhookStatus();
+    status.setId(w.getId());
+    WebhookSenderEventListenerProviderFactory factory = getSenderFactory();
+    if (factory == null) return status;
+    Optional<DeliveryQueue> queue = factory.getExecutor().getQueue(w.getId());
+    queue.ifPresent(
+        q -> {
+          status.setQueueDepth(q.getDepth());
+          status.setQueueCapacity(q.getCapacity());
+          status.setInFlight(q.getInFlight());
+          status.setDropped(q.getDropped());
+          status.setConcurrencyLimit(q.getLimit().getLimit());
+          status.setMinRttMillis(q.getLimit().getMinRttMillis());
+        });
+    Optional<CircuitBreaker> breaker = factory.getExecutor().getBreaker(w.getId());
+    breaker.ifPresent(
+        b -> {
+          status.setBreakerState(b.getState().name());
+          status.setBreakerFailures(b.getFailures());
+          status.setBreakerRejected(b.getRejected());
+        });
+    return status;
+  }
+
   @GET
   @Path("{id}/sends")
   @Produces(MediaType.APPLICATION_JSON)
@@ -228,6 +276,82 @@ public class WebhooksResource extends AbstractAdminResource {
     return toRepresentation(s, false);
   }
 
+  @GET
+  @Path("{id}/dead-letters")
+  @Produces(MediaType.APPLICATION_JSON)
+  public Stream<WebhookDeadLetter> getWebhookDeadLetters(
+      final @PathParam("id") String id,
+      @QueryParam("after") String afterId,
+      @QueryParam("max") Integer maxResults) {
+    permissions.realm().requireViewEvents();
+    maxResults =
+        (maxResults != null && maxResults <= DEFAULT_MAX_RESULTS)
+            ? maxResults
+            : DEFAULT_MAX_RESULTS;
+    WebhookModel w = webhooks.getWebhookById(realm, id);
+    if (w == null) {
+      throw new NotFoundException(String.format("no webhook with id %s", id));
+    }
+    if (afterId != null && webhooks.getDeadLetterById(realm, afterId) == null) {
+      throw new BadRequestException(String.format("no dead letter with id %s", afterId));
+    }
+    return webhooks
+        .getDeadLetters(realm, w, afterId, maxResults)
+        .map(d -> toRepresentation(d, true));
+  }
+
+  @GET
+  @Path("{id}/dead-letters/{did}")
+  @Produces(MediaType.APPLICATION_JSON)
+  public WebhookDeadLetter getWebhookDeadLetter(
+      final @PathParam("id") String id, final @PathParam("did") String did) {
+    permissions.realm().requireViewEvents();
+    WebhookDeadLetterModel d = webhooks.getDeadLetterById(realm, did);
+    if (d == null || !id.equals(d.getWebhookId())) {
+      throw new NotFoundException(String.format("no webhook %s and dead letter %s", id, did));
+    }
+    return toRepresentation(d, false);
+  }
+
+  @POST
+  @Path("{id}/dead-letters/replay")
+  public Response replayDeadLetters(final @PathParam("id") String id) {
+    permissions.realm().requireManageEvents();
+    WebhookModel w = webhooks.getWebhookById(realm, id);
+    if (w == null) {
+      throw new NotFoundException(String.format("no webhook with id %s", id));
+    }
+    if (!w.isEnabled()) {
+      throw new BadRequestException(String.format("webhook %s is disabled", id));
+    }
+    WebhookSenderEventListenerProviderFactory factory = getSenderFactory();
+    if (factory == null) {
+      log.warn("couldn't find ext-event-webhook provider");
+      return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+    }
+    if (!factory.getReplayer().replay(realm.getId(), w.getId())) {
+      return Response.status(Response.Status.CONFLICT)
+          .type(MediaType.TEXT_PLAIN)
+          .entity(String.format("dead letters of webhook %s are already being replayed", id))
+          .build();
+    }
+    return Response.accepted().type(MediaType.TEXT_PLAIN).build();
+  }
+
+  private WebhookDeadLetter toRepresentation(WebhookDeadLetterModel d, boolean brief) {
+    WebhookDeadLetter deadLetter = new WebhookDeadLetter();
+    deadLetter.setId(d.getId());
+    deadLetter.setEventType(d.getEventType());
+    deadLetter.setWebhookId(d.getWebhookId());
+    deadLetter.setStatus(d.getStatus());
+    if (d.getStatus() != null) deadLetter.setStatusMessage(getStatusMessage(d.getStatus()));
+    deadLetter.setError(d.getError());
+    deadLetter.setAttempts(d.getAttempts());
+    deadLetter.setCreatedAt(d.getCreatedAt());
+    if (!brief) deadLetter.setPayload(d.getPayload());
+    return deadLetter;
+  }
+
   private static final String UNKNOWN = "Unknown Status Code";
   private static final String STATUS_MESSAGE_FORMAT = "HTTP %d %s";
 
@@ -279,12 +403,28 @@ public class WebhooksResource extends AbstractAdminResource {
     WebhookModel w = webhooks.getWebhookById(realm, id);
     if (w == null) throw new NotFoundException(String.format("no webhook with id %s", id));
     mergeWebhook(rep, w);
+    invalidateWebhooks();
     return Response.noContent().build();
   }
 
   private void validateWebhook(WebhookRepresentation rep) {
     if (rep == null) throw new BadRequestException("webhook cannot be empty");
     if (rep.getUrl() == null) throw new BadRequestException("url cannot be empty");
+    if (rep.getBatchSize() != null && rep.getBatchSize() < 1)
+      throw new BadRequestException("batchSize must be positive");
+    if (rep.getBatchLinger() != null && rep.getBatchLinger() < 0)
+      throw new BadRequestException("batchLinger cannot be negative");
+    if (rep.getCoalesceWindow() != null && rep.getCoalesceWindow() < 0)
+      throw new BadRequestException("coalesceWindow cannot be negative");
+    if (rep.getRateLimit() != null && rep.getRateLimit() < 0)
+      throw new BadRequestException("rateLimit cannot be negative");
+    if (rep.getRateBurst() != null && rep.getRateBurst() < 1)
+      throw new BadRequestException("rateBurst must be positive");
+    try {
+      Coalescer.parseFields(rep.getCoalesceKey());
+    } catch (IllegalArgumentException e) {
+      throw new BadRequestException(e.getMessage());
+    }
     try {
       new URI(rep.getUrl()).parseServerAuthority();
     } catch (URISyntaxException e) {
@@ -295,6 +435,12 @@ public class WebhooksResource extends AbstractAdminResource {
   private void mergeWebhook(WebhookRepresentation rep, WebhookModel w) {
     w.setUrl(rep.getUrl());
     w.setEnabled(rep.isEnabled());
+    w.setBatchSize(rep.getBatchSize());
+    w.setBatchLinger(rep.getBatchLinger());
+    w.setCoalesceWindow(rep.getCoalesceWindow());
+    w.setCoalesceKey(rep.getCoalesceKey());
+    w.setRateLimit(rep.getRateLimit());
+    w.setRateBurst(rep.getRateBurst());
     if (rep.getEventTypes() != null) {
       w.removeEventTypes();
       rep.getEventTypes().forEach(t -> w.addEventType(t));
@@ -315,6 +461,25 @@ public class WebhooksResource extends AbstractAdminResource {
     permissions.realm().requireManageEvents();
     getWebhook(id); // forces a not found if it doesn't exist
     webhooks.removeWebhook(realm, id);
+    invalidateWebhooks();
     return Response.noContent().build();
   }
+
+  private WebhookSenderEventListenerProviderFactory getSenderFactory() {
+    WebhookSenderEventListenerProviderFactory factory =
+        (WebhookSenderEventListenerProviderFactory)
+            session
+                .getKeycloakSessionFactory()
+                .getProviderFactory(
+                    EventListenerProvider.class,
+                    WebhookSenderEventListenerProviderFactory.PROVIDER_ID);
+    if (factory == null) log.warn("couldn't find ext-event-webhook provider factory");
+    return factory;
+  }
+
+  /** drop the cached webhooks of the realm once the change has been committed */
+  private void invalidateWebhooks() {
+    WebhookSenderEventListenerProviderFactory factory = getSenderFactory();
+    if (factory != null) factory.getRegistry().invalidateOnCommit(session, realm.getId());
+  }
 }
@@ -4,10 +4,12 @@ import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.*;
 import static org.junit.Assert.assertNotNull;
 
+import com.fasterxml.jackson.core.type.TypeReference;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
 import io.phasetwo.keycloak.representation.WebhookRepresentation;
+import io.phasetwo.keycloak.representation.WebhookSend;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.URLEncoder;
@@ -98,6 +100,17 @@ public class Helpers {
     assertThat(response.getStatus(), is(204));
   }
 
+  public static List<WebhookSend> getSends(
+      Keycloak keycloak, CloseableHttpClient httpClient, String baseUrl, String webhookId)
+      throws IOException {
+    LegacySimpleHttp.Response response =
+        LegacySimpleHttp.doGet(baseUrl + "/" + webhookId + "/sends", httpClient)
+            .auth(keycloak.tokenManager().getAccessTokenString())
+            .asResponse();
+    assertThat(response.getStatus(), is(200));
+    return response.asJson(new TypeReference<List<WebhookSend>>() {});
+  }
+
   public static String urlencode(String u) {
     try {
       return URLEncoder.encode(u, "UTF-8");
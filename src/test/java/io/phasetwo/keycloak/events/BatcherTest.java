@@ -0,0 +1,104 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class BatcherTest {
+
+  @Test
+  public void testFlushesWhenFull() throws Exception {
+    SenderExecutor exec = SenderExecutors.pool(2);
+    try {
+      Batcher<String> batcher = new Batcher<>(exec);
+      List<List<String>> flushed = new CopyOnWriteArrayList<>();
+      // the linger is long enough that only a full batch is flushed
+      for (int i = 0; i < 5; i++) {
+        batcher.add("a", 3, 5000l, "a" + i, flushed::add);
+      }
+      assertThat(flushed, is(List.of(List.of("a0", "a1", "a2"))));
+      batcher.add("b", 1, 5000l, "b0", flushed::add);
+      assertThat(flushed.size(), is(2));
+      assertThat(flushed.get(1), is(List.of("b0")));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testFlushesAfterLinger() throws Exception {
+    SenderExecutor exec = SenderExecutors.pool(2);
+    try {
+      Batcher<String> batcher = new Batcher<>(exec);
+      List<List<String>> flushed = new CopyOnWriteArrayList<>();
+      CountDownLatch latch = new CountDownLatch(2);
+      batcher.add("a", 10, 50l, "a0", b -> record(flushed, latch, b));
+      batcher.add("a", 10, 50l, "a1", b -> record(flushed, latch, b));
+      batcher.add("b", 10, 50l, "b0", b -> record(flushed, latch, b));
+      assertThat(flushed.isEmpty(), is(true));
+      assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(flushed.contains(List.of("a0", "a1")), is(true));
+      assertThat(flushed.contains(List.of("b0")), is(true));
+      // a new batch opens after a flush
+      CountDownLatch next = new CountDownLatch(1);
+      batcher.add("a", 10, 10l, "a2", b -> record(flushed, next, b));
+      assertThat(next.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(flushed.get(2), is(List.of("a2")));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  /**
+   * With a linger of 0, each batch expires while it is being filled, so the expiry races with the
+   * flush of the full batch. Each item is flushed exactly once, and no batch is over its size.
+   */
+  @Test
+  public void testExpiryRacesFullFlush() throws Exception {
+    SenderExecutor exec = SenderExecutors.pool(2);
+    try {
+      Batcher<Integer> batcher = new Batcher<>(exec);
+      final int items = 10000;
+      final int size = 3;
+      List<List<Integer>> flushed = new CopyOnWriteArrayList<>();
+      CountDownLatch latch = new CountDownLatch(items);
+      for (int i = 0; i < items; i++) {
+        batcher.add(
+            "k" + (i % 4),
+            size,
+            0l,
+            i,
+            b -> {
+              flushed.add(new ArrayList<>(b));
+              b.forEach(x -> latch.countDown());
+            });
+      }
+      assertThat(latch.await(10, TimeUnit.SECONDS), is(true));
+      Set<Integer> seen = new HashSet<>();
+      int total = 0;
+      for (List<Integer> b : flushed) {
+        assertThat(b.isEmpty(), is(false));
+        assertThat(b.size() <= size, is(true));
+        seen.addAll(b);
+        total += b.size();
+      }
+      assertThat(total, is(items));
+      assertThat(seen.size(), is(items));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  private static void record(List<List<String>> flushed, CountDownLatch latch, List<String> batch) {
+    flushed.add(batch);
+    latch.countDown();
+  }
+}
@@ -0,0 +1,53 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class CircuitBreakerTest {
+
+  @Test
+  public void testOpensAfterThreshold() {
+    AtomicLong now = new AtomicLong(0l);
+    CircuitBreaker breaker = new CircuitBreaker("a", 2, 1000l, now::get);
+    assertThat(breaker.allowRequest(), is(true));
+    breaker.onFailure();
+    assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    assertThat(breaker.allowRequest(), is(true));
+    breaker.onFailure();
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    assertThat(breaker.allowRequest(), is(false));
+    assertThat(breaker.getRejected(), is(1l));
+    now.set(400l);
+    assertThat(breaker.getRetryDelay(), is(600l));
+  }
+
+  @Test
+  public void testHalfOpenTrial() {
+    AtomicLong now = new AtomicLong(0l);
+    CircuitBreaker breaker = new CircuitBreaker("a", 1, 1000l, now::get);
+    breaker.onFailure();
+    now.set(1000l);
+    assertThat(breaker.getState(), is(CircuitBreaker.State.HALF_OPEN));
+    assertThat(breaker.allowRequest(), is(true));
+    assertThat(breaker.allowRequest(), is(false));
+    breaker.onFailure();
+    assertThat(breaker.getState(), is(CircuitBreaker.State.OPEN));
+    now.set(2000l);
+    assertThat(breaker.allowRequest(), is(true));
+    breaker.onSuccess();
+    assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+    assertThat(breaker.getFailures(), is(0));
+    assertThat(breaker.allowRequest(), is(true));
+  }
+
+  @Test
+  public void testDisabled() {
+    CircuitBreaker breaker = new CircuitBreaker("a", 0, 1000l, () -> 0l);
+    for (int i = 0; i < 10; i++) breaker.onFailure();
+    assertThat(breaker.allowRequest(), is(true));
+    assertThat(breaker.getState(), is(CircuitBreaker.State.CLOSED));
+  }
+}
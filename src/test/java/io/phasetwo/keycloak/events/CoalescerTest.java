@@ -0,0 +1,66 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import com.google.common.collect.ImmutableList;
+import io.phasetwo.keycloak.representation.ExtendedAdminEvent;
+import io.phasetwo.keycloak.representation.ExtendedAuthDetails;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+public class CoalescerTest {
+
+  @Test
+  public void testKeepsLatestPerKey() throws Exception {
+    SenderExecutor exec = SenderExecutors.pool(1);
+    try {
+      Coalescer<String> coalescer = new Coalescer<>(exec);
+      List<String> flushed = new CopyOnWriteArrayList<>();
+      CountDownLatch latch = new CountDownLatch(2);
+      assertThat(coalescer.add("a", 100l, "a1", i -> record(flushed, latch, i)), nullValue());
+      assertThat(coalescer.add("a", 100l, "a2", i -> record(flushed, latch, i)), is("a1"));
+      assertThat(coalescer.add("b", 100l, "b1", i -> record(flushed, latch, i)), nullValue());
+      assertThat(coalescer.add("a", 100l, "a3", i -> record(flushed, latch, i)), is("a2"));
+      assertThat(latch.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(flushed.size(), is(2));
+      assertThat(flushed.contains("a3"), is(true));
+      assertThat(flushed.contains("b1"), is(true));
+      // a new window opens after a flush
+      assertThat(coalescer.add("a", 100l, "a4", i -> {}), nullValue());
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  private static void record(List<String> flushed, CountDownLatch latch, String item) {
+    flushed.add(item);
+    latch.countDown();
+  }
+
+  @Test
+  public void testKeyFields() {
+    assertThat(Coalescer.parseFields(null), is(Coalescer.ALL_FIELDS));
+    assertThat(Coalescer.parseFields(" type, userId "), is(ImmutableList.of("type", "userId")));
+    try {
+      Coalescer.parseFields("type,sessionId");
+      throw new AssertionError("expected an unknown field");
+    } catch (IllegalArgumentException e) {
+      assertThat(e.getMessage(), containsString("sessionId"));
+    }
+
+    ExtendedAdminEvent event = new ExtendedAdminEvent();
+    event.setType("access.REFRESH_TOKEN");
+    ExtendedAuthDetails details = new ExtendedAuthDetails();
+    details.setUserId("user-1");
+    event.setAuthDetails(details);
+    String key = Coalescer.key(Coalescer.parseFields("type,userId"), event);
+    assertThat(key, is("|access.REFRESH_TOKEN|user-1"));
+    event.setResourcePath("users/user-1");
+    // resourcePath is not part of the key
+    assertThat(Coalescer.key(Coalescer.parseFields("type,userId"), event), is(key));
+  }
+}
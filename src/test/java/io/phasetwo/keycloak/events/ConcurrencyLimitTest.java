@@ -0,0 +1,36 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import org.junit.jupiter.api.Test;
+
+public class ConcurrencyLimitTest {
+
+  static final long MS = 1000000l;
+
+  @Test
+  public void testIncreasesWhenFast() {
+    ConcurrencyLimit limit = new ConcurrencyLimit(ConcurrencyLimit.Algorithm.AIMD, 2, 4);
+    for (int i = 0; i < 100; i++) limit.onSample(10 * MS, false);
+    assertThat(limit.getLimit(), is(4));
+    assertThat(limit.getMinRttMillis(), is(10l));
+  }
+
+  @Test
+  public void testDecreasesWhenSlowOrFailing() {
+    ConcurrencyLimit limit = new ConcurrencyLimit(ConcurrencyLimit.Algorithm.AIMD, 10, 10);
+    limit.onSample(10 * MS, false);
+    limit.onSample(50 * MS, false);
+    assertThat(limit.getLimit(), is(9));
+    for (int i = 0; i < 100; i++) limit.onSample(10 * MS, true);
+    assertThat(limit.getLimit(), is(1));
+  }
+
+  @Test
+  public void testFixed() {
+    ConcurrencyLimit limit = ConcurrencyLimit.fixed(3);
+    for (int i = 0; i < 10; i++) limit.onSample(10 * MS, true);
+    assertThat(limit.getLimit(), is(3));
+  }
+}
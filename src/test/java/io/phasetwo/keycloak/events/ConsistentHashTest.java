@@ -0,0 +1,55 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.MatcherAssert.*;
+import static org.hamcrest.Matchers.*;
+
+import com.google.common.collect.ImmutableList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.jupiter.api.Test;
+
+public class ConsistentHashTest {
+
+  @Test
+  public void testNoNodes() {
+    assertThat(new ConsistentHash(ImmutableList.of()).getOwner("a"), nullValue());
+  }
+
+  @Test
+  public void testSameRingInAnyOrder() {
+    ConsistentHash a = new ConsistentHash(ImmutableList.of("node-1", "node-2", "node-3"));
+    ConsistentHash b = new ConsistentHash(ImmutableList.of("node-3", "node-1", "node-2"));
+    for (int i = 0; i < 1000; i++) {
+      String key = UUID.randomUUID().toString();
+      assertThat(a.getOwner(key), is(b.getOwner(key)));
+    }
+  }
+
+  @Test
+  public void testBalancedAndStableOnJoin() {
+    ConsistentHash three = new ConsistentHash(ImmutableList.of("node-1", "node-2", "node-3"));
+    ConsistentHash four =
+        new ConsistentHash(ImmutableList.of("node-1", "node-2", "node-3", "node-4"));
+    int keys = 30000;
+    Map<String, Integer> counts = new HashMap<>();
+    int moved = 0;
+    for (int i = 0; i < keys; i++) {
+      String key = UUID.randomUUID().toString();
+      String before = three.getOwner(key);
+      String after = four.getOwner(key);
+      counts.merge(before, 1, Integer::sum);
+      if (!before.equals(after)) {
+        moved++;
+        // keys only move to the node that joined
+        assertThat(after, is("node-4"));
+      }
+    }
+    for (int count : counts.values()) {
+      assertThat(count, greaterThan(keys / 3 * 7 / 10));
+      assertThat(count, lessThan(keys / 3 * 13 / 10));
+    }
+    assertThat(moved, greaterThan(keys / 4 * 7 / 10));
+    assertThat(moved, lessThan(keys / 4 * 13 / 10));
+  }
+}
@@ -0,0 +1,137 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import org.junit.jupiter.api.Test;
+
+public class DeliveryQueueTest {
+
+  static SenderExecutor.Job job() {
+    return () -> CompletableFuture.completedFuture(null);
+  }
+
+  static SenderExecutor.Job job(Lane lane) {
+    return new SenderExecutor.Job() {
+      @Override
+      public CompletionStage<?> run() {
+        return CompletableFuture.completedFuture(null);
+      }
+
+      @Override
+      public Lane lane() {
+        return lane;
+      }
+    };
+  }
+
+  @Test
+  public void testDropOldest() {
+    DeliveryQueue queue = new DeliveryQueue("a", 2, 1, DeliveryQueue.Overflow.DROP_OLDEST);
+    SenderExecutor.Job first = job();
+    SenderExecutor.Job second = job();
+    SenderExecutor.Job third = job();
+    assertThat(queue.offer(first), nullValue());
+    assertThat(queue.offer(second), nullValue());
+    assertThat(queue.offer(third), is(first));
+    assertThat(queue.getDepth(), is(2));
+    assertThat(queue.getDropped(), is(1l));
+    assertThat(queue.poll(), is(second));
+  }
+
+  @Test
+  public void testDropNewest() {
+    DeliveryQueue queue = new DeliveryQueue("a", 1, 1, DeliveryQueue.Overflow.DROP_NEWEST);
+    SenderExecutor.Job first = job();
+    SenderExecutor.Job second = job();
+    assertThat(queue.offer(first), nullValue());
+    assertThat(queue.offer(second), is(second));
+    assertThat(queue.getDropped(), is(1l));
+    assertThat(queue.poll(), is(first));
+  }
+
+  @Test
+  public void testSpill() {
+    DeliveryQueue queue = new DeliveryQueue("a", 1, 1, DeliveryQueue.Overflow.SPILL);
+    SenderExecutor.Job first = job();
+    SenderExecutor.Job second = job();
+    assertThat(queue.offer(first), nullValue());
+    assertThat(queue.offer(second), is(second));
+    assertThat(queue.getDropped(), is(1l));
+    assertThat(queue.poll(), is(first));
+  }
+
+  @Test
+  public void testOverflowFrom() {
+    assertThat(DeliveryQueue.Overflow.from("spill"), is(DeliveryQueue.Overflow.SPILL));
+    assertThat(DeliveryQueue.Overflow.from("drop_newest"), is(DeliveryQueue.Overflow.DROP_NEWEST));
+    assertThat(DeliveryQueue.Overflow.from("unknown"), is(DeliveryQueue.Overflow.DROP_OLDEST));
+  }
+
+  @Test
+  public void testConcurrencyLimit() {
+    DeliveryQueue queue = new DeliveryQueue("a", 10, 2, DeliveryQueue.Overflow.DROP_OLDEST);
+    for (int i = 0; i < 3; i++) queue.offer(job());
+    assertThat(queue.poll(), notNullValue());
+    assertThat(queue.poll(), notNullValue());
+    assertThat(queue.poll(), nullValue());
+    assertThat(queue.getInFlight(), is(2));
+    queue.release();
+    assertThat(queue.poll(), notNullValue());
+    assertThat(queue.getDepth(), is(0));
+  }
+
+  @Test
+  public void testLaneWeights() {
+    DeliveryQueue queue =
+        new DeliveryQueue(
+            "a",
+            100,
+            ConcurrencyLimit.fixed(100),
+            DeliveryQueue.Overflow.DROP_OLDEST,
+            Lane.parseWeights("admin:3,system:1,user:1"));
+    for (int i = 0; i < 20; i++) queue.offer(job(Lane.USER));
+    for (int i = 0; i < 6; i++) queue.offer(job(Lane.ADMIN));
+    assertThat(queue.getDepth(Lane.USER), is(20));
+    assertThat(queue.getDepth(Lane.ADMIN), is(6));
+    // admin jobs that arrived last get 3 of every 4 sends while both lanes are waiting
+    int admin = 0;
+    for (int i = 0; i < 8; i++) {
+      if (queue.poll().lane() == Lane.ADMIN) admin++;
+    }
+    assertThat(admin, is(6));
+    assertThat(queue.getDepth(), is(18));
+  }
+
+  @Test
+  public void testDropsLowestLaneFirst() {
+    DeliveryQueue queue =
+        new DeliveryQueue(
+            "a",
+            2,
+            ConcurrencyLimit.fixed(1),
+            DeliveryQueue.Overflow.DROP_NEWEST,
+            Lane.parseWeights(null));
+    SenderExecutor.Job user = job(Lane.USER);
+    SenderExecutor.Job admin = job(Lane.ADMIN);
+    assertThat(queue.offer(user), nullValue());
+    assertThat(queue.offer(admin), nullValue());
+    // a full queue makes room for admin jobs by dropping user jobs
+    SenderExecutor.Job admin2 = job(Lane.ADMIN);
+    assertThat(queue.offer(admin2), is(user));
+    SenderExecutor.Job user2 = job(Lane.USER);
+    assertThat(queue.offer(user2), is(user2));
+    assertThat(queue.getDepth(Lane.ADMIN), is(2));
+  }
+
+  @Test
+  public void testParseWeights() {
+    int[] weights = Lane.parseWeights("admin:10, user:2");
+    assertThat(weights[Lane.ADMIN.ordinal()], is(10));
+    assertThat(weights[Lane.SYSTEM.ordinal()], is(4));
+    assertThat(weights[Lane.USER.ordinal()], is(2));
+    assertThat(Lane.parseWeights("nonsense")[Lane.ADMIN.ordinal()], is(8));
+  }
+}
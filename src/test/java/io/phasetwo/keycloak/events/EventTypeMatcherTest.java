@@ -0,0 +1,112 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import lombok.extern.jbosslog.JBossLog;
+import org.junit.jupiter.api.Test;
+
+@JBossLog
+public class EventTypeMatcherTest {
+
+  static final List<String> TYPES =
+      ImmutableList.of(
+          "access.LOGIN",
+          "access.LOGOUT",
+          "access.REGISTER",
+          "admin.USER-CREATE",
+          "admin.USER-UPDATE",
+          "admin.GROUP_MEMBERSHIP-CREATE",
+          "system.SOMETHING",
+          "custom.THING");
+
+  /** The matching that was done for each event before the event types were compiled */
+  static boolean legacyMatches(List<String> eventTypes, String type) {
+    for (String t : eventTypes) {
+      if ("*".equals(t)) return true;
+      if ("access.*".equals(t) && type.startsWith("access.")) return true;
+      if ("admin.*".equals(t) && type.startsWith("admin.")) return true;
+      if ("system.*".equals(t) && type.startsWith("system.")) return true;
+      try {
+        if (Pattern.matches(t, type)) return true;
+      } catch (Exception e) {
+      }
+      if (t.equals(type)) return true;
+    }
+    return false;
+  }
+
+  static void assertSameAsLegacy(List<String> eventTypes) {
+    EventTypeMatcher matcher = EventTypeMatcher.compile(eventTypes);
+    for (String type : TYPES) {
+      assertThat(
+          eventTypes + " " + type, matcher.matches(type), is(legacyMatches(eventTypes, type)));
+    }
+  }
+
+  @Test
+  public void testSameAsLegacy() {
+    assertSameAsLegacy(ImmutableList.of("*"));
+    assertSameAsLegacy(ImmutableList.of("access.*"));
+    assertSameAsLegacy(ImmutableList.of("admin.*", "system.*"));
+    assertSameAsLegacy(ImmutableList.of("access.LOGIN", "admin.USER-CREATE"));
+    assertSameAsLegacy(ImmutableList.of("admin.USER-.*"));
+    assertSameAsLegacy(ImmutableList.of("^access\\.(LOGIN|LOGOUT)$"));
+    assertSameAsLegacy(ImmutableList.of("admin.GROUP_MEMBERSHIP-.*", "custom.*"));
+    assertSameAsLegacy(ImmutableList.of("[invalid", "access.LOGOUT"));
+    assertSameAsLegacy(ImmutableList.of());
+  }
+
+  @Test
+  public void testPrefixes() {
+    EventTypeMatcher matcher = EventTypeMatcher.compile(ImmutableList.of("access.*", "adm.*"));
+    assertThat(matcher.matches("access.LOGIN"), is(true));
+    assertThat(matcher.matches("admin.USER-CREATE"), is(true));
+    assertThat(matcher.matches("ad"), is(false));
+    assertThat(matcher.matches("system.X"), is(false));
+  }
+
+  @Test
+  public void testInvalidPatternMatchesItself() {
+    EventTypeMatcher matcher = EventTypeMatcher.compile(ImmutableList.of("[invalid"));
+    assertThat(matcher.matches("[invalid"), is(true));
+    assertThat(matcher.matches("invalid"), is(false));
+  }
+
+  /** Logs the time per match of the compiled and the legacy matching for 1, 10 and 100 types */
+  @Test
+  public void testMatchTimes() {
+    for (int n : new int[] {1, 10, 100}) {
+      List<String> eventTypes = new ArrayList<>();
+      for (int i = 0; i < n; i++) {
+        if (i % 3 == 0) eventTypes.add("admin.RESOURCE" + i + "-CREATE");
+        else if (i % 3 == 1) eventTypes.add("custom" + i + ".*");
+        else eventTypes.add("^custom\\.THING" + i + "$");
+      }
+      EventTypeMatcher matcher = EventTypeMatcher.compile(eventTypes);
+      int rounds = 200000 / (n + 9);
+      boolean sink = false;
+      for (int i = 0; i < rounds; i++) {
+        // warm up
+        for (String type : TYPES) sink ^= matcher.matches(type) ^ legacyMatches(eventTypes, type);
+      }
+      long start = System.nanoTime();
+      for (int i = 0; i < rounds; i++) {
+        for (String type : TYPES) sink ^= matcher.matches(type);
+      }
+      long compiled = (System.nanoTime() - start) / (rounds * TYPES.size());
+      start = System.nanoTime();
+      for (int i = 0; i < rounds / 10; i++) {
+        for (String type : TYPES) sink ^= legacyMatches(eventTypes, type);
+      }
+      long legacy = (System.nanoTime() - start) / (rounds / 10 * TYPES.size());
+      log.infof(
+          "%d event types: compiled %d ns/match, legacy %d ns/match (%b)",
+          n, compiled, legacy, sink);
+    }
+  }
+}
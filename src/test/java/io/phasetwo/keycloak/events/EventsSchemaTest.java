@@ -0,0 +1,61 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import org.infinispan.protostream.ProtobufUtil;
+import org.infinispan.protostream.SerializationContext;
+import org.junit.jupiter.api.Test;
+
+public class EventsSchemaTest {
+
+  private static SerializationContext context() {
+    SerializationContext ctx = ProtobufUtil.newSerializationContext();
+    EventsSchema schema = EventsSchema.INSTANCE;
+    schema.registerSchema(ctx);
+    schema.registerMarshallers(ctx);
+    return ctx;
+  }
+
+  @Test
+  public void testInvalidationEventRoundTrip() throws Exception {
+    SerializationContext ctx = context();
+
+    // wrapped, as the work cache does, so the type id is used to find the marshaller
+    byte[] bytes = ProtobufUtil.toWrappedByteArray(ctx, new WebhookInvalidationEvent("realm-1"));
+    Object read = ProtobufUtil.fromWrappedByteArray(ctx, bytes);
+    assertThat(read, instanceOf(WebhookInvalidationEvent.class));
+    assertThat(((WebhookInvalidationEvent) read).getRealmId(), is("realm-1"));
+  }
+
+  @Test
+  public void testDeliveryEventRoundTrip() throws Exception {
+    SerializationContext ctx = context();
+    WebhookDeliveryEvent event =
+        new WebhookDeliveryEvent(
+            "node-2", "realm-1", "webhook-1", "{\"uid\":\"a\"}", "node-1", "a", true);
+    Object read =
+        ProtobufUtil.fromWrappedByteArray(ctx, ProtobufUtil.toWrappedByteArray(ctx, event));
+    assertThat(read, instanceOf(WebhookDeliveryEvent.class));
+    WebhookDeliveryEvent delivery = (WebhookDeliveryEvent) read;
+    assertThat(delivery.getOwner(), is("node-2"));
+    assertThat(delivery.getRealmId(), is("realm-1"));
+    assertThat(delivery.getWebhookId(), is("webhook-1"));
+    assertThat(delivery.getPayload(), is("{\"uid\":\"a\"}"));
+    assertThat(delivery.getOrigin(), is("node-1"));
+    assertThat(delivery.getId(), is("a"));
+    assertThat(delivery.isOutbox(), is(true));
+  }
+
+  @Test
+  public void testDeliveryAckRoundTrip() throws Exception {
+    SerializationContext ctx = context();
+    Object read =
+        ProtobufUtil.fromWrappedByteArray(
+            ctx, ProtobufUtil.toWrappedByteArray(ctx, new WebhookDeliveryAck("node-1", "a")));
+    assertThat(read, instanceOf(WebhookDeliveryAck.class));
+    WebhookDeliveryAck ack = (WebhookDeliveryAck) read;
+    assertThat(ack.getOrigin(), is("node-1"));
+    assertThat(ack.getId(), is("a"));
+  }
+}
@@ -0,0 +1,85 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+public class FairDispatcherTest {
+
+  private static Runnable task(List<String> ran, String name) {
+    return () -> ran.add(name);
+  }
+
+  private static void runAll(ArrayDeque<Runnable> executing) {
+    Runnable r;
+    while ((r = executing.poll()) != null) r.run();
+  }
+
+  @Test
+  public void testSharesByWeight() {
+    ArrayDeque<Runnable> executing = new ArrayDeque<>();
+    List<String> ran = new ArrayList<>();
+    FairDispatcher fair = new FairDispatcher(1, executing::add);
+    for (int i = 0; i < 6; i++) fair.submit("a", 3, task(ran, "a" + i));
+    for (int i = 0; i < 3; i++) fair.submit("b", 1, task(ran, "b" + i));
+    assertThat(fair.getWaiting("a"), is(5));
+    assertThat(fair.getWaiting("b"), is(3));
+    runAll(executing);
+    // a0 ran alone, then a takes 3 for each 1 of b
+    assertThat(ran, is(ImmutableList.of("a0", "a1", "a2", "a3", "b0", "a4", "a5", "b1", "b2")));
+    assertThat(fair.getWaiting("a"), is(0));
+    assertThat(fair.getWaiting("b"), is(0));
+  }
+
+  @Test
+  public void testBusyRealmDoesNotStarveOthers() {
+    ArrayDeque<Runnable> executing = new ArrayDeque<>();
+    List<String> ran = new ArrayList<>();
+    FairDispatcher fair = new FairDispatcher(1, executing::add);
+    for (int i = 0; i < 1000; i++) fair.submit("busy", 1, task(ran, "busy"));
+    fair.submit("quiet", 1, task(ran, "quiet"));
+    fair.submit(null, 1, task(ran, "none"));
+    runAll(executing);
+    assertThat(ran.size(), is(1002));
+    // the quiet realms are served right after the first turn of the busy one
+    assertThat(ran.indexOf("quiet") < 4, is(true));
+    assertThat(ran.indexOf("none") < 4, is(true));
+  }
+
+  @Test
+  public void testLimitsSlots() {
+    ArrayDeque<Runnable> executing = new ArrayDeque<>();
+    List<String> ran = new ArrayList<>();
+    FairDispatcher fair = new FairDispatcher(2, executing::add);
+    for (int i = 0; i < 5; i++) fair.submit("a", 1, task(ran, "a" + i));
+    assertThat(executing.size(), is(2));
+    assertThat(fair.getWaiting("a"), is(3));
+    // a slot is freed when its task returns, and the next waiting task takes it
+    executing.poll().run();
+    assertThat(executing.size(), is(2));
+    assertThat(fair.getWaiting("a"), is(2));
+    runAll(executing);
+    assertThat(ran.size(), is(5));
+  }
+
+  @Test
+  public void testFreesSlotOnRejectedTask() {
+    List<String> ran = new ArrayList<>();
+    FairDispatcher fair =
+        new FairDispatcher(
+            1,
+            r -> {
+              throw new IllegalStateException("rejected");
+            });
+    fair.submit("a", 1, task(ran, "a0"));
+    fair.submit("a", 1, task(ran, "a1"));
+    // both tasks were taken and rejected, without holding the slot
+    assertThat(fair.getWaiting("a"), is(0));
+    assertThat(ran.isEmpty(), is(true));
+  }
+}
@@ -0,0 +1,61 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class RateLimiterTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testBurstThenRate() {
+    AtomicLong now = new AtomicLong(0l);
+    RateLimiter limiter = new RateLimiter(10, 3, now::get);
+    assertThat(limiter.reserve(), is(0l));
+    assertThat(limiter.reserve(), is(0l));
+    assertThat(limiter.reserve(), is(0l));
+    // over the burst, each send waits for the next 100ms slot
+    assertThat(limiter.reserve(), is(100 * MS));
+    assertThat(limiter.reserve(), is(200 * MS));
+    now.set(250 * MS);
+    assertThat(limiter.reserve(), is(50 * MS));
+    // the bucket refills while idle, up to the burst
+    now.set(10000 * MS);
+    assertThat(limiter.reserve(), is(0l));
+    assertThat(limiter.reserve(), is(0l));
+    assertThat(limiter.reserve(), is(0l));
+    assertThat(limiter.reserve(), is(100 * MS));
+  }
+
+  @Test
+  public void testConcurrentReservationsAreDistinct() throws Exception {
+    AtomicLong now = new AtomicLong(0l);
+    RateLimiter limiter = new RateLimiter(1000, 1, now::get);
+    int threads = 8;
+    int each = 10000;
+    List<Long> waits = Collections.synchronizedList(new ArrayList<>());
+    List<Thread> running = new ArrayList<>();
+    for (int t = 0; t < threads; t++) {
+      Thread thread =
+          new Thread(
+              () -> {
+                for (int i = 0; i < each; i++) waits.add(limiter.reserve());
+              });
+      running.add(thread);
+      thread.start();
+    }
+    for (Thread thread : running) thread.join();
+    // with the clock stopped, every reservation got its own 1ms slot
+    Collections.sort(waits);
+    for (int i = 0; i < waits.size(); i++) {
+      assertThat(waits.get(i), is(i * MS));
+    }
+  }
+}
@@ -0,0 +1,68 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+
+public class RetryBudgetTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static int retries(RetryBudget budget, int tries) {
+    int allowed = 0;
+    for (int i = 0; i < tries; i++) {
+      if (budget.tryRetry()) allowed++;
+    }
+    return allowed;
+  }
+
+  @Test
+  public void testCapsRetriesAtPercentOfAttempts() {
+    AtomicLong now = new AtomicLong(0l);
+    RetryBudget budget = new RetryBudget(20, 0, 10000, now::get);
+    for (int i = 0; i < 100; i++) budget.onAttempt();
+    // every send failed, and wants a retry
+    assertThat(retries(budget, 100), is(20));
+    assertThat(budget.getRejected(), is(80l));
+  }
+
+  @Test
+  public void testMinimumRetriesWithoutTraffic() {
+    AtomicLong now = new AtomicLong(0l);
+    RetryBudget budget = new RetryBudget(20, 10, 10000, now::get);
+    assertThat(retries(budget, 500), is(100));
+  }
+
+  @Test
+  public void testWindowSlides() {
+    AtomicLong now = new AtomicLong(0l);
+    RetryBudget budget = new RetryBudget(50, 0, 10000, now::get);
+    for (int i = 0; i < 10; i++) budget.onAttempt();
+    assertThat(retries(budget, 10), is(5));
+    // half a window later, the old attempts and retries still count
+    now.set(5000 * MS);
+    assertThat(retries(budget, 10), is(0));
+    for (int i = 0; i < 10; i++) budget.onAttempt();
+    assertThat(retries(budget, 10), is(5));
+    // a window after the first slice, only the second half counts
+    now.set(10000 * MS);
+    assertThat(retries(budget, 10), is(0));
+    // and after two windows, nothing does
+    now.set(20000 * MS);
+    assertThat(retries(budget, 10), is(0));
+    for (int i = 0; i < 4; i++) budget.onAttempt();
+    assertThat(retries(budget, 10), is(2));
+  }
+
+  @Test
+  public void testJitter() {
+    assertThat(RetryBudget.jitter(100, 0), is(100l));
+    for (int i = 0; i < 1000; i++) {
+      long delay = RetryBudget.jitter(100, 50);
+      assertThat(delay >= 100 && delay <= 150, is(true));
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.jbosslog.JBossLog;
+import org.junit.jupiter.api.Test;
+
+@JBossLog
+public class RunnableTransactionTest {
+
+  @Test
+  public void testRunsInOrderAfterCommit() throws Exception {
+    ThreadPoolExecutor pool = pool(2, 10);
+    try {
+      List<Integer> ran = new CopyOnWriteArrayList<>();
+      CountDownLatch done = new CountDownLatch(1);
+      RunnableTransaction trx = new RunnableTransaction(pool);
+      trx.begin();
+      for (int i = 0; i < 5; i++) {
+        final int n = i;
+        trx.addRunnable(() -> ran.add(n));
+      }
+      trx.addRunnable(
+          () -> {
+            throw new IllegalStateException("doesn't stop the rest");
+          });
+      trx.addRunnable(done::countDown);
+      assertThat(ran.isEmpty(), is(true));
+      trx.commit();
+      assertThat(done.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(ran, is(List.of(0, 1, 2, 3, 4)));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testDropsOnRollback() throws Exception {
+    ThreadPoolExecutor pool = pool(1, 10);
+    try {
+      AtomicInteger ran = new AtomicInteger();
+      RunnableTransaction trx = new RunnableTransaction(pool);
+      trx.begin();
+      trx.addRunnable(ran::incrementAndGet);
+      trx.rollback();
+      pool.shutdown();
+      assertThat(pool.awaitTermination(5, TimeUnit.SECONDS), is(true));
+      assertThat(ran.get(), is(0));
+      assertThat(pool.getCompletedTaskCount(), is(0l));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testRunsInlineWhenRejected() throws Exception {
+    ThreadPoolExecutor pool = pool(1, 1);
+    pool.shutdown();
+    AtomicInteger ran = new AtomicInteger();
+    RunnableTransaction trx = new RunnableTransaction(pool);
+    trx.begin();
+    trx.addRunnable(ran::incrementAndGet);
+    trx.commit();
+    assertThat(ran.get(), is(1));
+  }
+
+  /**
+   * The latency a login adds to commit its event, with 0, 1 and 50 webhooks subscribed, when the
+   * event is processed inline and on the post-commit pool. Processing the event is simulated as a
+   * fixed cost for its transaction plus a cost per webhook, for serializing and scheduling a send.
+   * The timings depend on the machine, so they are only logged.
+   */
+  @Test
+  public void testLoginCommitLatency() throws Exception {
+    final int logins = 200;
+    final long eventNanos = TimeUnit.MICROSECONDS.toNanos(100);
+    final long webhookNanos = TimeUnit.MICROSECONDS.toNanos(40);
+    for (int webhooks : new int[] {0, 1, 50}) {
+      final long work = eventNanos + webhooks * webhookNanos;
+      long inline = commits(null, logins, work);
+      ThreadPoolExecutor pool = pool(4, 10000);
+      long async;
+      try {
+        async = commits(pool, logins, work);
+        pool.shutdown();
+        assertThat(pool.awaitTermination(30, TimeUnit.SECONDS), is(true));
+        assertThat(pool.getCompletedTaskCount(), is((long) logins));
+      } finally {
+        pool.shutdown();
+      }
+      log.infof(
+          "%d webhooks: inline %d us/login, post-commit pool %d us/login",
+          webhooks, inline / 1000l, async / 1000l);
+    }
+  }
+
+  /** The mean nanos to commit a transaction with an event that takes the work to process */
+  private static long commits(ThreadPoolExecutor pool, int logins, long work) {
+    long total = 0l;
+    for (int i = 0; i < logins; i++) {
+      RunnableTransaction trx = new RunnableTransaction(pool);
+      trx.begin();
+      trx.addRunnable(() -> spin(work));
+      long start = System.nanoTime();
+      trx.commit();
+      total += System.nanoTime() - start;
+    }
+    return total / logins;
+  }
+
+  private static void spin(long nanos) {
+    long end = System.nanoTime() + nanos;
+    while (System.nanoTime() < end) {
+      Thread.onSpinWait();
+    }
+  }
+
+  private static ThreadPoolExecutor pool(int threads, int queue) {
+    return new ThreadPoolExecutor(
+        threads, threads, 60l, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queue));
+  }
+}
@@ -0,0 +1,127 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import io.phasetwo.keycloak.model.KeycloakEventType;
+import io.phasetwo.keycloak.model.WebhookSendAttempt;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.jupiter.api.Test;
+
+public class SendRecorderTest {
+
+  private static WebhookSendAttempt attempt(String id) {
+    return new WebhookSendAttempt(
+        "realm",
+        "webhook",
+        KeycloakEventType.USER,
+        "event-" + id,
+        id,
+        "access.LOGIN",
+        200,
+        new Date());
+  }
+
+  private static List<String> ids(List<List<WebhookSendAttempt>> batches) {
+    return batches.stream()
+        .flatMap(List::stream)
+        .map(WebhookSendAttempt::getId)
+        .collect(Collectors.toList());
+  }
+
+  @Test
+  public void testFlushesFullBatch() throws Exception {
+    SenderExecutor exec = SenderExecutors.pool(1);
+    try {
+      List<List<WebhookSendAttempt>> batches = new CopyOnWriteArrayList<>();
+      CountDownLatch flushed = new CountDownLatch(1);
+      SendRecorder recorder = new SendRecorder(exec, 3, 5000l, 10);
+      recorder.start(
+          (batch) -> {
+            batches.add(batch);
+            flushed.countDown();
+          });
+      recorder.record(attempt("a"));
+      recorder.record(attempt("b"));
+      assertThat(recorder.getPending(), is(2));
+      recorder.record(attempt("c"));
+      assertThat(flushed.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(batches.size(), is(1));
+      assertThat(ids(batches), is(List.of("a", "b", "c")));
+      assertThat(recorder.getPending(), is(0));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testFlushesOnInterval() throws Exception {
+    SenderExecutor exec = SenderExecutors.pool(1);
+    try {
+      List<List<WebhookSendAttempt>> batches = new CopyOnWriteArrayList<>();
+      CountDownLatch flushed = new CountDownLatch(1);
+      SendRecorder recorder = new SendRecorder(exec, 100, 50l, 1000);
+      recorder.start(
+          (batch) -> {
+            batches.add(batch);
+            flushed.countDown();
+          });
+      recorder.record(attempt("a"));
+      assertThat(flushed.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(ids(batches), is(List.of("a")));
+      assertThat(recorder.getPending(), is(0));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testRecordsOneAtATimeWhenBatchFails() throws Exception {
+    SenderExecutor exec = SenderExecutors.pool(1);
+    try {
+      List<List<WebhookSendAttempt>> batches = new CopyOnWriteArrayList<>();
+      SendRecorder recorder = new SendRecorder(exec, 10, 5000l, 100);
+      recorder.start(
+          (batch) -> {
+            if (batch.stream().anyMatch(a -> a.getId().equals("bad"))) {
+              throw new IllegalStateException("webhook was removed");
+            }
+            batches.add(batch);
+          });
+      recorder.record(attempt("a"));
+      recorder.record(attempt("bad"));
+      recorder.record(attempt("c"));
+      recorder.flush();
+      assertThat(batches.size(), is(2));
+      assertThat(ids(batches), is(List.of("a", "c")));
+      assertThat(recorder.getPending(), is(0));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testDropsWhenFull() throws Exception {
+    SenderExecutor exec = SenderExecutors.pool(1);
+    try {
+      SendRecorder recorder = new SendRecorder(exec, 2, 5000l, 3);
+      // not started, so nothing is flushed while the queue fills
+      for (String id : new String[] {"a", "b", "c", "d", "e"}) {
+        recorder.record(attempt(id));
+      }
+      assertThat(recorder.getPending(), is(3));
+      List<List<WebhookSendAttempt>> batches = new CopyOnWriteArrayList<>();
+      recorder.start(batches::add);
+      recorder.stop();
+      assertThat(ids(batches), is(List.of("a", "b", "c")));
+      assertThat(recorder.getPending(), is(0));
+    } finally {
+      exec.shutdown();
+    }
+  }
+}
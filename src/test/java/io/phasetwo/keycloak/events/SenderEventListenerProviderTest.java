@@ -0,0 +1,143 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import com.github.xgp.util.BackOff;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.jupiter.api.Test;
+
+public class SenderEventListenerProviderTest {
+
+  /** A sender whose sends fail with an unexpected error, and that records how its task completed */
+  static class FailingSender extends SenderEventListenerProvider {
+    final boolean async;
+    final CountDownLatch completed = new CountDownLatch(1);
+    final AtomicBoolean delivered = new AtomicBoolean(true);
+    final AtomicReference<String> error = new AtomicReference<>();
+
+    FailingSender(SenderExecutor exec, boolean async) {
+      super(null, exec);
+      this.async = async;
+    }
+
+    @Override
+    void send(SenderTask task) {
+      throw new IllegalStateException("unexpected");
+    }
+
+    @Override
+    boolean isSendAsync() {
+      return async;
+    }
+
+    @Override
+    CompletableFuture<Void> sendAsync(SenderTask task) {
+      return CompletableFuture.failedFuture(
+          new CompletionException(new IllegalStateException("unexpected")));
+    }
+
+    @Override
+    protected void afterComplete(SenderTask task, boolean delivered) {
+      this.delivered.set(delivered);
+      this.error.set(task.getError());
+      completed.countDown();
+    }
+
+    void send() {
+      schedule(new SenderTask("event", BackOff.STOP_BACKOFF), 0l, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /** A sender whose sends succeed, and that records how its task completed */
+  static class RecordingSender extends SenderEventListenerProvider {
+    final CountDownLatch completed = new CountDownLatch(1);
+    final AtomicBoolean delivered = new AtomicBoolean();
+    final AtomicReference<String> error = new AtomicReference<>();
+
+    RecordingSender(SenderExecutor exec) {
+      super(null, exec);
+    }
+
+    @Override
+    void send(SenderTask task) {}
+
+    @Override
+    protected void afterComplete(SenderTask task, boolean delivered) {
+      this.delivered.set(delivered);
+      this.error.set(task.getError());
+      completed.countDown();
+    }
+
+    void send() {
+      schedule(new SenderTask("event", BackOff.STOP_BACKOFF), 0l, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  private static SenderExecutor breakerPool(int maxParks) {
+    return SenderExecutor.builder()
+        .threads(1)
+        .queueConcurrency(1)
+        .queueLimiter(ConcurrencyLimit.Algorithm.FIXED)
+        .queueMaxConcurrency(1)
+        .breakerFailureThreshold(1)
+        .breakerOpenTimeout(200l)
+        .breakerMaxParks(maxParks)
+        .laneReserved(0)
+        .fairQueuing(false)
+        .retryTick(0l)
+        .retryBudget(false)
+        .build();
+  }
+
+  @Test
+  public void testBreakerParksDontUseUpBackOff() throws Exception {
+    SenderExecutor exec = breakerPool(5);
+    try {
+      RecordingSender sender = new RecordingSender(exec);
+      exec.breaker(sender.getKey(null)).onFailure();
+      // the task has no retries left, but is parked until the breaker lets it through
+      sender.send();
+      assertThat(sender.completed.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(sender.delivered.get(), is(true));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testGivesUpPastBreakerMaxParks() throws Exception {
+    SenderExecutor exec = breakerPool(0);
+    try {
+      RecordingSender sender = new RecordingSender(exec);
+      exec.breaker(sender.getKey(null)).onFailure();
+      sender.send();
+      assertThat(sender.completed.await(5, TimeUnit.SECONDS), is(true));
+      assertThat(sender.delivered.get(), is(false));
+      assertThat(sender.error.get(), is("Circuit breaker open"));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testGivesUpOnUncaughtError() throws Exception {
+    for (boolean async : new boolean[] {false, true}) {
+      SenderExecutor exec = SenderExecutors.pool(1);
+      try {
+        FailingSender sender = new FailingSender(exec, async);
+        sender.send();
+        assertThat(sender.completed.await(5, TimeUnit.SECONDS), is(true));
+        assertThat(sender.delivered.get(), is(false));
+        assertThat(sender.error.get(), containsString("unexpected"));
+      } finally {
+        exec.shutdown();
+      }
+    }
+  }
+}
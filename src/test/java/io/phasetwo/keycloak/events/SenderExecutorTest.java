@@ -0,0 +1,121 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+public class SenderExecutorTest {
+
+  @Test
+  public void testVirtualAdmitsUpToMaxInFlight() throws Exception {
+    SenderExecutor exec =
+        SenderExecutor.builder()
+            .mode(SenderExecutor.Mode.VIRTUAL)
+            .maxInFlight(2)
+            .retryTick(0l)
+            .retryBudget(false)
+            .build();
+    try {
+      final int tasks = 20;
+      AtomicInteger running = new AtomicInteger();
+      AtomicInteger peak = new AtomicInteger();
+      CountDownLatch done = new CountDownLatch(tasks);
+      for (int i = 0; i < tasks; i++) {
+        exec.schedule(
+            () -> {
+              peak.accumulateAndGet(running.incrementAndGet(), Math::max);
+              try {
+                Thread.sleep(10l);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+              }
+              running.decrementAndGet();
+              done.countDown();
+            },
+            0l,
+            TimeUnit.MILLISECONDS);
+      }
+      assertThat(done.await(10, TimeUnit.SECONDS), is(true));
+      assertThat(peak.get(), is(2));
+    } finally {
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testBackgroundRunsWhilePoolIsBlocked() throws Exception {
+    SenderExecutor exec = SenderExecutors.pool(1);
+    CountDownLatch unblock = new CountDownLatch(1);
+    try {
+      // a send to a slow endpoint holds the only thread of the pool
+      exec.schedule(
+          () -> {
+            try {
+              unblock.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          },
+          0l,
+          TimeUnit.MILLISECONDS);
+      CountDownLatch ran = new CountDownLatch(1);
+      exec.scheduleBackground(ran::countDown, 10l, TimeUnit.MILLISECONDS);
+      assertThat(ran.await(5, TimeUnit.SECONDS), is(true));
+    } finally {
+      unblock.countDown();
+      exec.shutdown();
+    }
+  }
+
+  @Test
+  public void testSpillsOverflowingJob() throws Exception {
+    SenderExecutor exec =
+        SenderExecutor.builder()
+            .threads(1)
+            .queueCapacity(1)
+            .queueConcurrency(1)
+            .queueLimiter(ConcurrencyLimit.Algorithm.FIXED)
+            .queueMaxConcurrency(1)
+            .queueOverflow(DeliveryQueue.Overflow.SPILL)
+            .laneReserved(0)
+            .fairQueuing(false)
+            .retryTick(0l)
+            .retryBudget(false)
+            .build();
+    CompletableFuture<Void> blocked = new CompletableFuture<>();
+    try {
+      AtomicInteger dropped = new AtomicInteger();
+      AtomicInteger spilled = new AtomicInteger();
+      SenderExecutor.Job job =
+          new SenderExecutor.Job() {
+            @Override
+            public CompletableFuture<?> run() {
+              return blocked;
+            }
+
+            @Override
+            public void dropped() {
+              dropped.incrementAndGet();
+            }
+
+            @Override
+            public void spilled() {
+              spilled.incrementAndGet();
+            }
+          };
+      // the first job holds the only slot of the endpoint, and the second fills its queue
+      for (int i = 0; i < 3; i++) exec.schedule("endpoint", job, 0l, TimeUnit.MILLISECONDS);
+      for (int i = 0; i < 50 && spilled.get() == 0; i++) Thread.sleep(100l);
+      assertThat(spilled.get(), is(1));
+      assertThat(dropped.get(), is(0));
+    } finally {
+      blocked.complete(null);
+      exec.shutdown();
+    }
+  }
+}
@@ -0,0 +1,26 @@
+package io.phasetwo.keycloak.events;
+
+/** The sender executors that the tests of the parts that schedule on them share */
+public class SenderExecutors {
+
+  /**
+   * An executor that runs tasks on a pool of the threads, one at a time for each key, and delays
+   * them on the scheduler. It has no reserved lanes, fair queuing, breaker, or retry budget, so
+   * that tasks run as soon as they are due.
+   */
+  public static SenderExecutor pool(int threads) {
+    return SenderExecutor.builder()
+        .threads(threads)
+        .queueCapacity(100)
+        .queueConcurrency(1)
+        .queueLimiter(ConcurrencyLimit.Algorithm.FIXED)
+        .queueMaxConcurrency(1)
+        .breakerFailureThreshold(0)
+        .breakerOpenTimeout(0l)
+        .laneReserved(0)
+        .fairQueuing(false)
+        .retryTick(0l)
+        .retryBudget(false)
+        .build();
+  }
+}
@@ -0,0 +1,128 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.jbosslog.JBossLog;
+import org.junit.jupiter.api.Test;
+
+@JBossLog
+public class TimingWheelTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  @Test
+  public void testRunsAtDeadline() {
+    AtomicLong now = new AtomicLong(0l);
+    TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, now::get);
+    List<String> ran = new ArrayList<>();
+    wheel.add(() -> ran.add("now"), 0, TimeUnit.MILLISECONDS);
+    wheel.add(() -> ran.add("25ms"), 25, TimeUnit.MILLISECONDS);
+    wheel.add(() -> ran.add("10ms"), 10, TimeUnit.MILLISECONDS);
+    assertThat(wheel.getPending(), is(3));
+    wheel.advance();
+    assertThat(ran, is(List.of("now")));
+    now.set(10 * MS);
+    wheel.advance();
+    assertThat(ran, is(List.of("now", "10ms")));
+    // rounded up to the tick, never early
+    now.set(25 * MS);
+    wheel.advance();
+    assertThat(ran.size(), is(2));
+    now.set(30 * MS);
+    wheel.advance();
+    assertThat(ran, is(List.of("now", "10ms", "25ms")));
+    assertThat(wheel.getPending(), is(0));
+  }
+
+  @Test
+  public void testCascadesThroughLevels() {
+    AtomicLong now = new AtomicLong(0l);
+    TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, now::get);
+    long[] delays = {1, 255, 256, 257, 65535, 65536, 70000, 16777216, 20000000};
+    long[] ranAt = new long[delays.length];
+    for (int i = 0; i < delays.length; i++) {
+      final int n = i;
+      wheel.add(() -> ranAt[n] = now.get() / MS, delays[i], TimeUnit.MILLISECONDS);
+    }
+    // advance in uneven steps, as a late ticker would
+    long step = 1;
+    while (wheel.getPending() > 0) {
+      long next = now.get() / MS + step;
+      step = step * 3 % 1000003 + 1;
+      now.set(next * MS);
+      wheel.advance();
+      for (int i = 0; i < delays.length; i++) {
+        if (ranAt[i] != 0) assertThat(ranAt[i] >= delays[i], is(true));
+      }
+    }
+    for (int i = 0; i < delays.length; i++) {
+      assertThat("delay " + delays[i], ranAt[i] >= delays[i], is(true));
+      assertThat("delay " + delays[i], ranAt[i] - delays[i] < 1000003, is(true));
+    }
+  }
+
+  @Test
+  public void testTickByTickIsExact() {
+    AtomicLong now = new AtomicLong(0l);
+    TimingWheel wheel = new TimingWheel(1, TimeUnit.MILLISECONDS, now::get);
+    int count = 10000;
+    long[] delays = new long[count];
+    long[] ranAt = new long[count];
+    for (int i = 0; i < count; i++) {
+      final int n = i;
+      delays[i] = ThreadLocalRandom.current().nextLong(1, 200000);
+      wheel.add(() -> ranAt[n] = now.get() / MS, delays[i], TimeUnit.MILLISECONDS);
+    }
+    for (long t = 1; wheel.getPending() > 0; t++) {
+      now.set(t * MS);
+      wheel.advance();
+    }
+    for (int i = 0; i < count; i++) {
+      assertThat(ranAt[i], is(delays[i]));
+    }
+  }
+
+  @Test
+  public void testMillionPendingRetries() throws Exception {
+    int count = 1000000;
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long[] delays = new long[count];
+    for (int i = 0; i < count; i++) delays[i] = random.nextLong(500, 3600000);
+
+    AtomicLong now = new AtomicLong(0l);
+    TimingWheel wheel = new TimingWheel(10, TimeUnit.MILLISECONDS, now::get);
+    AtomicInteger ran = new AtomicInteger();
+    Runnable task = ran::incrementAndGet;
+    long start = System.nanoTime();
+    for (int i = 0; i < count; i++) wheel.add(task, delays[i], TimeUnit.MILLISECONDS);
+    wheel.advance();
+    long wheelAdd = System.nanoTime() - start;
+    start = System.nanoTime();
+    for (long t = 0; wheel.getPending() > 0; t += 1000) {
+      now.set(t * MS);
+      wheel.advance();
+    }
+    long wheelExpire = System.nanoTime() - start;
+    assertThat(ran.get(), is(count));
+
+    ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1);
+    try {
+      start = System.nanoTime();
+      for (int i = 0; i < count; i++) scheduler.schedule(task, delays[i], TimeUnit.MILLISECONDS);
+      long heapAdd = System.nanoTime() - start;
+      log.infof(
+          "%d pending retries: timing wheel %d ns/add and %d ns/expiry, scheduler heap %d ns/add",
+          count, wheelAdd / count, wheelExpire / count, heapAdd / count);
+    } finally {
+      scheduler.shutdownNow();
+    }
+  }
+}
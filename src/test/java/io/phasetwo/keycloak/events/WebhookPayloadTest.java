@@ -0,0 +1,120 @@
+package io.phasetwo.keycloak.events;
+
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import io.phasetwo.keycloak.representation.ExtendedAdminEvent;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import lombok.extern.jbosslog.JBossLog;
+import org.junit.jupiter.api.Test;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.util.JsonSerialization;
+
+@JBossLog
+public class WebhookPayloadTest {
+
+  static final int WEBHOOKS = 20;
+
+  static ExtendedAdminEvent event() {
+    ExtendedAdminEvent event = new ExtendedAdminEvent();
+    event.setUid("");
+    event.setId("2b4d0aa4-6b5b-4d4c-9f7e-2d1b7b0b6c3e");
+    event.setType("admin.USER-CREATE");
+    event.setTime(1760000000000l);
+    event.setRealmId("test");
+    event.setOperationType(OperationType.CREATE);
+    event.setResourcePath("users/7f6a5b4c-3d2e-1f0a-9b8c-7d6e5f4a3b2c");
+    event.setRepresentation("{\"username\":\"someone\",\"enabled\":true}");
+    event.addDetails(ImmutableMap.of("a", "b", "c", "d"));
+    return event;
+  }
+
+  @Test
+  public void testUidSplicedIntoSerializedEvent() throws Exception {
+    ExtendedAdminEvent event = event();
+    byte[] serialized = WebhookPayload.serialize(event);
+    WebhookPayload payload = WebhookPayload.of(event, serialized, "abc");
+    ExtendedAdminEvent read =
+        JsonSerialization.readValue(payload.getBytes(), ExtendedAdminEvent.class);
+    assertThat(read.getUid(), is("abc"));
+    assertThat(read.getId(), is(event.getId()));
+    assertThat(read.getType(), is(event.getType()));
+    assertThat(read.getRepresentation(), is(event.getRepresentation()));
+    assertThat(read.getDetails().get("c"), is("d"));
+    assertThat(event.getUid(), nullValue());
+  }
+
+  @Test
+  public void testEmptyObject() throws Exception {
+    WebhookPayload payload = WebhookPayload.of(null, "{}".getBytes(), "abc");
+    assertThat(new String(payload.getBytes()), is("{\"uid\":\"abc\"}"));
+  }
+
+  @Test
+  public void testBatchIsArrayOfPayloads() throws Exception {
+    ExtendedAdminEvent event = event();
+    byte[] serialized = WebhookPayload.serialize(event);
+    List<WebhookPayload> batch =
+        ImmutableList.of(
+            WebhookPayload.of(event, serialized, "1"), WebhookPayload.of(event, serialized, "2"));
+    List<ExtendedAdminEvent> read =
+        JsonSerialization.readValue(
+            JsonSerialization.writeValueAsString(batch),
+            new TypeReference<List<ExtendedAdminEvent>>() {});
+    assertThat(read.size(), is(2));
+    assertThat(read.get(0).getUid(), is("1"));
+    assertThat(read.get(1).getUid(), is("2"));
+    assertThat(read.get(1).getId(), is(event.getId()));
+  }
+
+  /**
+   * Compares the bytes allocated by the fan-out of one event to {@link #WEBHOOKS} webhooks, when a
+   * deep clone is made and serialized for each send, and when the event is serialized once. The
+   * numbers depend on the JVM and its JIT, so they are only logged.
+   */
+  @Test
+  public void testFanOutAllocations() throws Exception {
+    ExtendedAdminEvent event = event();
+    // warm up
+    for (int i = 0; i < 2000; i++) {
+      cloneEach(event);
+      serializeOnce(event);
+    }
+    int rounds = 1000;
+    long before = allocated();
+    for (int i = 0; i < rounds; i++) cloneEach(event);
+    long cloned = (allocated() - before) / rounds;
+    before = allocated();
+    for (int i = 0; i < rounds; i++) serializeOnce(event);
+    long once = (allocated() - before) / rounds;
+    log.infof(
+        "fan-out of one event to %d webhooks: clone each %d bytes, serialize once %d bytes",
+        WEBHOOKS, cloned, once);
+  }
+
+  static void cloneEach(ExtendedAdminEvent event) throws Exception {
+    for (int i = 0; i < WEBHOOKS; i++) {
+      ExtendedAdminEvent clone =
+          JsonSerialization.readValue(
+              JsonSerialization.writeValueAsString(event), ExtendedAdminEvent.class);
+      clone.setUid(String.valueOf(i));
+      JsonSerialization.writeValueAsBytes(clone);
+    }
+  }
+
+  static void serializeOnce(ExtendedAdminEvent event) throws Exception {
+    byte[] serialized = WebhookPayload.serialize(event);
+    for (int i = 0; i < WEBHOOKS; i++) {
+      WebhookPayload.of(event, serialized, String.valueOf(i)).getBytes();
+    }
+  }
+
+  static long allocated() {
+    return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+        .getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+}
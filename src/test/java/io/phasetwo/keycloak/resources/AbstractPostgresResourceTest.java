@@ -0,0 +1,69 @@
+package io.phasetwo.keycloak.resources;
+
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import org.keycloak.admin.client.Keycloak;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+
+/**
+ * Runs Keycloak nodes on a PostgreSQL database, for the tests that depend on the database's own
+ * SQL, such as row locks and upserts, which the dev H2 database of {@link AbstractResourceTest}
+ * doesn't cover. Nodes started with {@link #node(String...)} share the database.
+ */
+public abstract class AbstractPostgresResourceTest {
+
+  public static final String POSTGRES_IMAGE = "postgres:16";
+  public static final String REALM = AbstractResourceTest.REALM;
+  public static final String ADMIN_CLI = AbstractResourceTest.ADMIN_CLI;
+
+  static final Network network = Network.newNetwork();
+
+  @SuppressWarnings("resource")
+  static final GenericContainer<?> postgres =
+      new GenericContainer<>(POSTGRES_IMAGE)
+          .withNetwork(network)
+          .withNetworkAliases("postgres")
+          .withEnv("POSTGRES_DB", "keycloak")
+          .withEnv("POSTGRES_USER", "keycloak")
+          .withEnv("POSTGRES_PASSWORD", "keycloak")
+          .waitingFor(
+              Wait.forLogMessage(".*database system is ready to accept connections.*\\s", 2));
+
+  static {
+    postgres.start();
+  }
+
+  /** A Keycloak node on the shared database, with the given options of the webhook listener */
+  static KeycloakContainer node(String... options) {
+    StringBuilder command =
+        new StringBuilder("--spi-connections-http-client-default-disable-trust-manager=true");
+    for (String option : options) {
+      command.append(" --spi-events-listener-ext-event-webhook-").append(option);
+    }
+    return new KeycloakContainer(AbstractResourceTest.KEYCLOAK_IMAGE)
+        .withContextPath("/auth")
+        .withNetwork(network)
+        .withProviderClassesFrom("target/classes")
+        .withProviderLibsFrom(AbstractResourceTest.getDeps())
+        .withEnv("KC_DB", "postgres")
+        .withEnv("KC_DB_URL", "jdbc:postgresql://postgres:5432/keycloak")
+        .withEnv("KC_DB_USERNAME", "keycloak")
+        .withEnv("KC_DB_PASSWORD", "keycloak")
+        .withCustomCommand(command.toString())
+        .withAccessToHost(true);
+  }
+
+  static Keycloak admin(KeycloakContainer node) {
+    return Keycloak.getInstance(
+        node.getAuthServerUrl(),
+        REALM,
+        node.getAdminUsername(),
+        node.getAdminPassword(),
+        ADMIN_CLI);
+  }
+
+  static String webhooksUrl(KeycloakContainer node) {
+    return node.getAuthServerUrl() + "/realms/" + REALM + "/webhooks";
+  }
+}
@@ -48,7 +48,7 @@ public abstract class AbstractResourceTest {
           .withReuse(true)
           .withProviderClassesFrom("target/classes")
           .withProviderLibsFrom(getDeps())
-          .withCustomCommand("--spi-events-listener-ext-event-webhook-store-webhook-events=true --spi-connections-http-client-default-disable-trust-manager=true")
+          .withCustomCommand("--spi-events-listener-ext-event-webhook-store-webhook-events=true --spi-events-listener-ext-event-webhook-dead-letters=true --spi-connections-http-client-default-disable-trust-manager=true")
           .withAccessToHost(true);
 
   protected static final int WEBHOOK_SERVER_PORT = 8083;
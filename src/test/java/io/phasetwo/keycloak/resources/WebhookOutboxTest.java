@@ -0,0 +1,164 @@
+package io.phasetwo.keycloak.resources;
+
+import static io.phasetwo.keycloak.Helpers.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+
+import com.github.xgp.http.server.Server;
+import com.google.common.collect.ImmutableSet;
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.jbosslog.JBossLog;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.util.JsonSerialization;
+import org.testcontainers.Testcontainers;
+
+/**
+ * Two nodes drain the outbox of a shared PostgreSQL database, which leases entries with {@code
+ * SELECT ... FOR UPDATE SKIP LOCKED}. Each entry must be sent by one node only, removed once it is
+ * delivered, and a retry parked over the retry budget must be released and drained again. The lease
+ * time is short, so an entry that wasn't removed would be sent again during the test.
+ */
+@JBossLog
+public class WebhookOutboxTest extends AbstractPostgresResourceTest {
+
+  static final int PORT = 8084;
+  static final long LEASE_TIME = 5000l;
+
+  static final String[] OPTIONS = {
+    "outbox=true",
+    "outbox-lease-time=" + LEASE_TIME,
+    "outbox-poll-interval=200",
+    // every retry is over the budget, and is parked in the outbox
+    "retry-budget-percent=0",
+    "retry-budget-min-per-second=0",
+    "retry-budget-window=1000"
+  };
+
+  static KeycloakContainer node1;
+  static KeycloakContainer node2;
+  static Keycloak keycloak;
+
+  CloseableHttpClient httpClient = HttpClients.createDefault();
+
+  @BeforeAll
+  public static void beforeAll() {
+    node1 = node(OPTIONS);
+    node1.start();
+    node2 = node(OPTIONS);
+    node2.start();
+    Testcontainers.exposeHostPorts(PORT);
+    keycloak = admin(node1);
+    addEventListener(keycloak, REALM, "ext-event-webhook");
+  }
+
+  @AfterAll
+  public static void afterAll() {
+    if (keycloak != null) removeEventListener(keycloak, REALM, "ext-event-webhook");
+    if (node2 != null) node2.stop();
+    if (node1 != null) node1.stop();
+  }
+
+  @Test
+  public void testDrainsEachEntryOnce() throws Exception {
+    ConcurrentMap<String, AtomicInteger> sends = new ConcurrentHashMap<>();
+    Server server = server("outbox-once-", sends, false);
+    String id = webhook();
+    try {
+      final int users = 50;
+      for (int i = 0; i < users; i++) {
+        createUser(keycloak, REALM, "outbox-once-" + i);
+      }
+      await(sends, users, 30000l);
+      // past the lease time, an entry that wasn't removed would be leased and sent again
+      Thread.sleep(LEASE_TIME * 2);
+      assertThat(sends.size(), is(users));
+      sends.forEach((uid, count) -> assertThat(uid, count.get(), is(1)));
+    } finally {
+      removeWebhook(keycloak, httpClient, webhooksUrl(node1), id);
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testReleasesParkedRetry() throws Exception {
+    ConcurrentMap<String, AtomicInteger> sends = new ConcurrentHashMap<>();
+    // the first attempt of each send fails, and its retry is parked in the outbox
+    Server server = server("outbox-parked-", sends, true);
+    String id = webhook();
+    try {
+      final int users = 10;
+      for (int i = 0; i < users; i++) {
+        createUser(keycloak, REALM, "outbox-parked-" + i);
+      }
+      long end = System.currentTimeMillis() + 30000l;
+      while (System.currentTimeMillis() < end
+          && (sends.size() < users || sends.values().stream().anyMatch(c -> c.get() < 2))) {
+        Thread.sleep(200l);
+      }
+      Thread.sleep(LEASE_TIME * 2);
+      assertThat(sends.size(), is(users));
+      // one failed attempt, and the retry that was released and drained again
+      sends.forEach((uid, count) -> assertThat(uid, count.get(), is(2)));
+    } finally {
+      removeWebhook(keycloak, httpClient, webhooksUrl(node1), id);
+      server.stop();
+    }
+  }
+
+  private String webhook() throws Exception {
+    return createWebhook(
+        keycloak,
+        httpClient,
+        webhooksUrl(node1),
+        "http://host.testcontainers.internal:" + PORT + "/webhook",
+        "qlfwemke",
+        ImmutableSet.of("admin.*"));
+  }
+
+  /** Count the attempts of each send of a user created with the prefix, by the uid of the send */
+  private static Server server(
+      String prefix, ConcurrentMap<String, AtomicInteger> sends, boolean failFirst)
+      throws Exception {
+    Server server = new Server(PORT);
+    server
+        .router()
+        .POST(
+            "/webhook",
+            (request, response) -> {
+              String b = request.body();
+              if (b == null || !b.contains(prefix)) {
+                response.status(202);
+                return;
+              }
+              try {
+                Map<?, ?> ev = JsonSerialization.readValue(b, Map.class);
+                String uid = (String) ev.get("uid");
+                int attempt =
+                    sends.computeIfAbsent(uid, k -> new AtomicInteger()).incrementAndGet();
+                log.infof("send %s attempt %d", uid, attempt);
+                response.status(failFirst && attempt == 1 ? 500 : 202);
+              } catch (Exception e) {
+                response.status(400);
+              }
+            });
+    server.start();
+    return server;
+  }
+
+  private static void await(Map<String, AtomicInteger> sends, int count, long millis)
+      throws InterruptedException {
+    long end = System.currentTimeMillis() + millis;
+    while (sends.size() < count && System.currentTimeMillis() < end) {
+      Thread.sleep(200l);
+    }
+  }
+}
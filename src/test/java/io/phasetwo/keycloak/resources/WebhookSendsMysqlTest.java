@@ -0,0 +1,135 @@
+package io.phasetwo.keycloak.resources;
+
+import static io.phasetwo.keycloak.Helpers.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.assertNotNull;
+
+import com.github.xgp.http.server.Server;
+import com.google.common.collect.ImmutableSet;
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import io.phasetwo.keycloak.representation.WebhookSend;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.admin.client.Keycloak;
+import org.testcontainers.Testcontainers;
+import org.testcontainers.containers.GenericContainer;
+import org.testcontainers.containers.Network;
+import org.testcontainers.containers.wait.strategy.Wait;
+
+/**
+ * Records the sends of a webhook with the upsert of MySQL, {@code INSERT ... ON DUPLICATE KEY
+ * UPDATE}, which {@link WebhookSendsTest} covers for PostgreSQL. The first attempt of the send
+ * fails, so that the send is inserted and then updated by its retry.
+ */
+public class WebhookSendsMysqlTest {
+
+  public static final String MYSQL_IMAGE = "mysql:8.4";
+  public static final String REALM = AbstractResourceTest.REALM;
+  static final int PORT = 8086;
+  static final String USER = "sends-mysql";
+
+  static final Network network = Network.newNetwork();
+
+  @SuppressWarnings("resource")
+  static final GenericContainer<?> mysql =
+      new GenericContainer<>(MYSQL_IMAGE)
+          .withNetwork(network)
+          .withNetworkAliases("mysql")
+          .withEnv("MYSQL_DATABASE", "keycloak")
+          .withEnv("MYSQL_USER", "keycloak")
+          .withEnv("MYSQL_PASSWORD", "keycloak")
+          .withEnv("MYSQL_ROOT_PASSWORD", "keycloak")
+          .waitingFor(Wait.forLogMessage(".*ready for connections.*port: 3306.*\\s", 1));
+
+  static KeycloakContainer node;
+  static Keycloak keycloak;
+
+  CloseableHttpClient httpClient = HttpClients.createDefault();
+
+  @BeforeAll
+  public static void beforeAll() {
+    mysql.start();
+    node =
+        new KeycloakContainer(AbstractResourceTest.KEYCLOAK_IMAGE)
+            .withContextPath("/auth")
+            .withNetwork(network)
+            .withProviderClassesFrom("target/classes")
+            .withProviderLibsFrom(AbstractResourceTest.getDeps())
+            .withEnv("KC_DB", "mysql")
+            .withEnv("KC_DB_URL", "jdbc:mysql://mysql:3306/keycloak")
+            .withEnv("KC_DB_USERNAME", "keycloak")
+            .withEnv("KC_DB_PASSWORD", "keycloak")
+            .withCustomCommand(
+                "--spi-connections-http-client-default-disable-trust-manager=true"
+                    + " --spi-events-listener-ext-event-webhook-store-webhook-events=true")
+            .withAccessToHost(true);
+    node.start();
+    Testcontainers.exposeHostPorts(PORT);
+    keycloak =
+        Keycloak.getInstance(
+            node.getAuthServerUrl(),
+            REALM,
+            node.getAdminUsername(),
+            node.getAdminPassword(),
+            AbstractResourceTest.ADMIN_CLI);
+    addEventListener(keycloak, REALM, "ext-event-webhook");
+  }
+
+  @AfterAll
+  public static void afterAll() {
+    if (keycloak != null) removeEventListener(keycloak, REALM, "ext-event-webhook");
+    if (node != null) node.stop();
+    mysql.stop();
+  }
+
+  @Test
+  public void testRecordsRetriedSend() throws Exception {
+    AtomicInteger attempts = new AtomicInteger();
+    Server server = new Server(PORT);
+    server
+        .router()
+        .POST(
+            "/webhook",
+            (request, response) -> {
+              String b = request.body();
+              boolean user = b != null && b.contains(USER);
+              // the first attempt of the send of the test user fails
+              response.status(user && attempts.incrementAndGet() == 1 ? 500 : 202);
+            });
+    server.start();
+    String url = node.getAuthServerUrl() + "/realms/" + REALM + "/webhooks";
+    String id =
+        createWebhook(
+            keycloak,
+            httpClient,
+            url,
+            "http://host.testcontainers.internal:" + PORT + "/webhook",
+            "qlfwemke",
+            ImmutableSet.of("admin.USER-CREATE"));
+    try {
+      createUser(keycloak, REALM, USER);
+      List<WebhookSend> sends = List.of();
+      for (int i = 0; i < 75; i++) {
+        sends = getSends(keycloak, httpClient, url, id);
+        if (sends.size() == 1 && sends.get(0).getRetries() > 1) break;
+        Thread.sleep(200l);
+      }
+      assertThat(sends.size(), is(1));
+      WebhookSend s = sends.get(0);
+      assertNotNull(s);
+      assertThat(attempts.get(), is(2));
+      assertThat(s.getStatus(), is(202));
+      assertThat(s.getRetries(), is(2));
+      assertThat(s.getEventType(), is("admin.USER-CREATE"));
+    } finally {
+      removeWebhook(keycloak, httpClient, url, id);
+      server.stop();
+    }
+  }
+}
@@ -0,0 +1,217 @@
+package io.phasetwo.keycloak.resources;
+
+import static io.phasetwo.keycloak.Helpers.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.hamcrest.MatcherAssert.*;
+import static org.junit.Assert.assertNotNull;
+
+import com.github.xgp.http.server.Server;
+import com.google.common.collect.ImmutableSet;
+import dasniko.testcontainers.keycloak.KeycloakContainer;
+import io.phasetwo.keycloak.representation.WebhookSend;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import lombok.extern.jbosslog.JBossLog;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.keycloak.admin.client.Keycloak;
+import org.keycloak.representations.idm.UserRepresentation;
+import org.keycloak.util.JsonSerialization;
+import org.testcontainers.Testcontainers;
+
+/**
+ * Records the sends of a webhook with the upsert of PostgreSQL, {@code INSERT ... ON CONFLICT}. The
+ * first node stores webhook events and the second doesn't, so the sends of the events of the second
+ * node have no stored event to refer to, and must not be recorded. The first node processes events
+ * on its post-commit threads, so that events are stored in the sessions of those threads.
+ */
+@JBossLog
+public class WebhookSendsTest extends AbstractPostgresResourceTest {
+
+  static final int PORT = 8085;
+  static final String ONCE = "sends-once";
+  static final String RETRIED = "sends-retried";
+  static final String UNSTORED = "sends-unstored";
+  static final String CONCURRENT = "sends-concurrent-";
+  static final Set<String> USERS = ImmutableSet.of(ONCE, RETRIED, UNSTORED);
+
+  static KeycloakContainer stored;
+  static KeycloakContainer unstored;
+  static Keycloak keycloak;
+
+  CloseableHttpClient httpClient = HttpClients.createDefault();
+
+  @BeforeAll
+  public static void beforeAll() {
+    stored = node("store-webhook-events=true", "post-commit-threads=4");
+    stored.start();
+    unstored = node();
+    unstored.start();
+    Testcontainers.exposeHostPorts(PORT);
+    keycloak = admin(stored);
+    addEventListener(keycloak, REALM, "ext-event-webhook");
+  }
+
+  @AfterAll
+  public static void afterAll() {
+    if (keycloak != null) removeEventListener(keycloak, REALM, "ext-event-webhook");
+    if (unstored != null) unstored.stop();
+    if (stored != null) stored.stop();
+  }
+
+  @Test
+  public void testRecordsSends() throws Exception {
+    Map<String, String> uids = new ConcurrentHashMap<>();
+    ConcurrentMap<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    // the first attempt of the send of the retried user fails
+    Server server = server(uids, attempts, RETRIED);
+    String id = webhook();
+    try {
+      createUser(keycloak, REALM, ONCE);
+      createUser(keycloak, REALM, RETRIED);
+      Map<String, WebhookSend> sends = Map.of();
+      for (int i = 0; i < 75; i++) {
+        sends = sends(id);
+        WebhookSend r = uids.containsKey(RETRIED) ? sends.get(uids.get(RETRIED)) : null;
+        if (uids.containsKey(ONCE)
+            && sends.containsKey(uids.get(ONCE))
+            && r != null
+            && r.getRetries() > 1) break;
+        Thread.sleep(200l);
+      }
+      assertThat(sends.size(), is(2));
+      // inserted by the first attempt
+      WebhookSend s = sends.get(uids.get(ONCE));
+      assertNotNull(s);
+      assertThat(s.getStatus(), is(202));
+      assertThat(s.getRetries(), is(1));
+      assertThat(s.getEventType(), is("admin.USER-CREATE"));
+      // updated by the retry
+      s = sends.get(uids.get(RETRIED));
+      assertNotNull(s);
+      assertThat(attempts.get(uids.get(RETRIED)).get(), is(2));
+      assertThat(s.getStatus(), is(202));
+      assertThat(s.getRetries(), is(2));
+    } finally {
+      removeWebhook(keycloak, httpClient, webhooksUrl(stored), id);
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testSkipsUnstoredEvents() throws Exception {
+    Map<String, String> uids = new ConcurrentHashMap<>();
+    Server server = server(uids, new ConcurrentHashMap<>(), null);
+    String id = webhook();
+    try {
+      // the event is sent by the node that doesn't store it
+      createUser(admin(unstored), REALM, UNSTORED);
+      for (int i = 0; i < 75 && !uids.containsKey(UNSTORED); i++) {
+        Thread.sleep(200l);
+      }
+      assertNotNull(uids.get(UNSTORED));
+      // past the interval of the send recorder
+      Thread.sleep(3000l);
+      assertThat(sends(id).containsKey(uids.get(UNSTORED)), is(false));
+    } finally {
+      removeWebhook(keycloak, httpClient, webhooksUrl(stored), id);
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testStoresEventsOnPostCommitThreads() throws Exception {
+    final int users = 10;
+    Server server = new Server(PORT);
+    server.router().POST("/webhook", (request, response) -> response.status(202));
+    server.start();
+    String id = webhook();
+    ExecutorService requests = Executors.newFixedThreadPool(5);
+    try {
+      // events of concurrent requests are stored on the post-commit threads at the same time
+      List<Future<UserRepresentation>> created = new ArrayList<>();
+      for (int i = 0; i < users; i++) {
+        final String username = CONCURRENT + i;
+        created.add(requests.submit(() -> createUser(keycloak, REALM, username)));
+      }
+      for (Future<UserRepresentation> f : created) f.get(30, TimeUnit.SECONDS);
+      Map<String, WebhookSend> sends = Map.of();
+      for (int i = 0; i < 75 && sends.size() < users; i++) {
+        sends = sends(id);
+        Thread.sleep(200l);
+      }
+      // each send is only recorded if its event was stored
+      assertThat(sends.size(), is(users));
+      for (WebhookSend s : sends.values()) {
+        assertThat(s.getEventType(), is("admin.USER-CREATE"));
+      }
+    } finally {
+      requests.shutdown();
+      removeWebhook(keycloak, httpClient, webhooksUrl(stored), id);
+      server.stop();
+    }
+  }
+
+  private String webhook() throws Exception {
+    return createWebhook(
+        keycloak,
+        httpClient,
+        webhooksUrl(stored),
+        "http://host.testcontainers.internal:" + PORT + "/webhook",
+        "qlfwemke",
+        ImmutableSet.of("admin.USER-CREATE"));
+  }
+
+  private Map<String, WebhookSend> sends(String id) throws Exception {
+    return getSends(keycloak, httpClient, webhooksUrl(stored), id).stream()
+        .collect(Collectors.toMap(WebhookSend::getId, s -> s));
+  }
+
+  /**
+   * Keep the uid of the send of each test user, and count its attempts. The first attempt of the
+   * send of the user to fail is answered with an error.
+   */
+  private static Server server(
+      Map<String, String> uids, ConcurrentMap<String, AtomicInteger> attempts, String fail)
+      throws Exception {
+    Server server = new Server(PORT);
+    server
+        .router()
+        .POST(
+            "/webhook",
+            (request, response) -> {
+              String b = request.body();
+              String user =
+                  b == null ? null : USERS.stream().filter(b::contains).findFirst().orElse(null);
+              if (user == null) {
+                response.status(202);
+                return;
+              }
+              try {
+                String uid = (String) JsonSerialization.readValue(b, Map.class).get("uid");
+                uids.put(user, uid);
+                int attempt =
+                    attempts.computeIfAbsent(uid, k -> new AtomicInteger()).incrementAndGet();
+                log.infof("send %s of %s attempt %d", uid, user, attempt);
+                response.status(user.equals(fail) && attempt == 1 ? 500 : 202);
+              } catch (Exception e) {
+                response.status(400);
+              }
+            });
+    server.start();
+    return server;
+  }
+}
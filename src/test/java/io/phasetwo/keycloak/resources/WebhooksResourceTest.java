@@ -13,13 +13,19 @@ import com.github.xgp.http.server.Server;
 import com.google.common.collect.ImmutableSet;
 import io.phasetwo.keycloak.events.HttpSenderEventListenerProvider;
 import io.phasetwo.keycloak.representation.ApiKeyRequest;
+import io.phasetwo.keycloak.representation.WebhookDeadLetter;
 import io.phasetwo.keycloak.representation.WebhookRepresentation;
+import io.phasetwo.keycloak.representation.WebhookSend;
 
 import java.io.IOException;
 import java.net.URLEncoder;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
 
@@ -289,6 +295,192 @@ public class WebhooksResourceTest extends AbstractResourceTest {
     assertThat(response.getStatus(), is(204));
   }
 
+  @Test
+  public void testDeadLetters() throws Exception {
+    addEventListener(keycloak, "master", "ext-event-webhook");
+    // the host can't be resolved, so each send fails without a retry, and is a dead letter
+    String id =
+        createWebhook(
+            keycloak,
+            httpClient,
+            baseUrl(),
+            "http://webhook.invalid/dead",
+            "qlfwemke",
+            ImmutableSet.of("admin.USER-CREATE"));
+    try {
+      for (int i = 0; i < 3; i++) {
+        createUser(keycloak, "master", "dead-letter-" + i);
+      }
+      List<WebhookDeadLetter> all = awaitDeadLetters(id, 3);
+      assertThat(all.size(), is(3));
+      for (WebhookDeadLetter d : all) {
+        assertThat(d.getWebhookId(), is(id));
+        assertThat(d.getEventType(), is("admin.USER-CREATE"));
+        assertNotNull(d.getError());
+        assertThat(d.getAttempts(), is(1));
+        // the list is brief
+        assertNull(d.getPayload());
+      }
+
+      // keyset paging, oldest first
+      List<WebhookDeadLetter> page = getDeadLetters(id, null, 2);
+      assertThat(ids(page), is(ids(all.subList(0, 2))));
+      page = getDeadLetters(id, page.get(1).getId(), 2);
+      assertThat(ids(page), is(ids(all.subList(2, 3))));
+      assertFalse(page.get(0).getCreatedAt().before(all.get(1).getCreatedAt()));
+      assertThat(getDeadLetters(id, all.get(2).getId(), 2).size(), is(0));
+      assertThat(deadLettersResponse(id, "?after=nonexistent").getStatus(), is(400));
+
+      // one, with its payload
+      LegacySimpleHttp.Response response =
+          LegacySimpleHttp.doGet(
+                  baseUrl() + "/" + urlencode(id) + "/dead-letters/" + all.get(0).getId(),
+                  httpClient)
+              .auth(keycloak.tokenManager().getAccessTokenString())
+              .asResponse();
+      assertThat(response.getStatus(), is(200));
+      WebhookDeadLetter one = response.asJson(new TypeReference<WebhookDeadLetter>() {});
+      assertThat(one.getId(), is(all.get(0).getId()));
+      assertThat(one.getPayload(), containsString("dead-letter-"));
+      response =
+          LegacySimpleHttp.doGet(
+                  baseUrl() + "/nonexistent/dead-letters/" + all.get(0).getId(), httpClient)
+              .auth(keycloak.tokenManager().getAccessTokenString())
+              .asResponse();
+      assertThat(response.getStatus(), is(404));
+
+      // replay, which fails again and makes new dead letters of the same sends
+      response =
+          LegacySimpleHttp.doPost(
+                  baseUrl() + "/" + urlencode(id) + "/dead-letters/replay", httpClient)
+              .auth(keycloak.tokenManager().getAccessTokenString())
+              .asResponse();
+      assertThat(response.getStatus(), is(202));
+      Set<String> replayed = ImmutableSet.copyOf(ids(all));
+      List<WebhookDeadLetter> again = all;
+      for (int i = 0; i < 50 && again.stream().anyMatch(d -> replayed.contains(d.getId())); i++) {
+        Thread.sleep(200l);
+        again = getDeadLetters(id, null, null);
+      }
+      assertThat(again.size(), is(3));
+      assertTrue(again.stream().noneMatch(d -> replayed.contains(d.getId())));
+
+      response =
+          LegacySimpleHttp.doPost(baseUrl() + "/nonexistent/dead-letters/replay", httpClient)
+              .auth(keycloak.tokenManager().getAccessTokenString())
+              .asResponse();
+      assertThat(response.getStatus(), is(404));
+    } finally {
+      removeWebhook(keycloak, httpClient, baseUrl(), id);
+      removeEventListener(keycloak, "master", "ext-event-webhook");
+    }
+  }
+
+  /**
+   * The outcome of each attempt of a send is recorded with the upsert of the database, which is the
+   * {@code MERGE} of H2 here. A send that is delivered at once is inserted with 1 retry, and a send
+   * that fails first is updated with the status of its retry, and 2 retries.
+   */
+  @Test
+  public void testRecordsSends() throws Exception {
+    addEventListener(keycloak, "master", "ext-event-webhook");
+    final String once = "sends-once-" + System.currentTimeMillis();
+    final String retried = "sends-retried-" + System.currentTimeMillis();
+    Map<String, String> uids = new ConcurrentHashMap<>();
+    ConcurrentMap<String, AtomicInteger> attempts = new ConcurrentHashMap<>();
+    Server server = new Server(WEBHOOK_SERVER_PORT);
+    server
+        .router()
+        .POST(
+            "/webhook",
+            (request, response) -> {
+              String b = request.body();
+              String user =
+                  b == null ? null : b.contains(once) ? once : b.contains(retried) ? retried : null;
+              if (user == null) {
+                response.status(202);
+                return;
+              }
+              try {
+                String uid = (String) JsonSerialization.readValue(b, Map.class).get("uid");
+                uids.put(user, uid);
+                int attempt =
+                    attempts.computeIfAbsent(uid, k -> new AtomicInteger()).incrementAndGet();
+                response.status(user.equals(retried) && attempt == 1 ? 500 : 202);
+              } catch (Exception e) {
+                response.status(400);
+              }
+            });
+    server.start();
+    String id =
+        createWebhook(
+            keycloak,
+            httpClient,
+            baseUrl(),
+            "http://host.testcontainers.internal:" + WEBHOOK_SERVER_PORT + "/webhook",
+            "qlfwemke",
+            ImmutableSet.of("admin.USER-CREATE"));
+    try {
+      createUser(keycloak, "master", once);
+      createUser(keycloak, "master", retried);
+      Map<String, WebhookSend> sends = Map.of();
+      for (int i = 0; i < 75; i++) {
+        sends =
+            getSends(keycloak, httpClient, baseUrl(), id).stream()
+                .collect(Collectors.toMap(WebhookSend::getId, s -> s));
+        WebhookSend r = uids.containsKey(retried) ? sends.get(uids.get(retried)) : null;
+        if (uids.containsKey(once)
+            && sends.containsKey(uids.get(once))
+            && r != null
+            && r.getRetries() > 1) break;
+        Thread.sleep(200l);
+      }
+      assertThat(sends.size(), is(2));
+      WebhookSend s = sends.get(uids.get(once));
+      assertNotNull(s);
+      assertThat(s.getStatus(), is(202));
+      assertThat(s.getRetries(), is(1));
+      assertThat(s.getEventType(), is("admin.USER-CREATE"));
+      s = sends.get(uids.get(retried));
+      assertNotNull(s);
+      assertThat(attempts.get(uids.get(retried)).get(), is(2));
+      assertThat(s.getStatus(), is(202));
+      assertThat(s.getRetries(), is(2));
+    } finally {
+      removeWebhook(keycloak, httpClient, baseUrl(), id);
+      removeEventListener(keycloak, "master", "ext-event-webhook");
+      server.stop();
+    }
+  }
+
+  LegacySimpleHttp.Response deadLettersResponse(String id, String query) throws IOException {
+    return LegacySimpleHttp.doGet(
+            baseUrl() + "/" + urlencode(id) + "/dead-letters" + query, httpClient)
+        .auth(keycloak.tokenManager().getAccessTokenString())
+        .asResponse();
+  }
+
+  List<WebhookDeadLetter> getDeadLetters(String id, String after, Integer max) throws IOException {
+    String query = "?max=" + (max != null ? max : 100);
+    if (after != null) query += "&after=" + urlencode(after);
+    LegacySimpleHttp.Response response = deadLettersResponse(id, query);
+    assertThat(response.getStatus(), is(200));
+    return response.asJson(new TypeReference<List<WebhookDeadLetter>>() {});
+  }
+
+  List<WebhookDeadLetter> awaitDeadLetters(String id, int count) throws Exception {
+    List<WebhookDeadLetter> deadLetters = getDeadLetters(id, null, null);
+    for (int i = 0; i < 50 && deadLetters.size() < count; i++) {
+      Thread.sleep(200l);
+      deadLetters = getDeadLetters(id, null, null);
+    }
+    return deadLetters;
+  }
+
+  static List<String> ids(List<WebhookDeadLetter> deadLetters) {
+    return deadLetters.stream().map(WebhookDeadLetter::getId).collect(Collectors.toList());
+  }
+
   void createOrg(Keycloak keycloak, String name) throws Exception {
     Map<String, String> m = new HashMap<>();
     m.put("name", name);